@@ -1,17 +1,16 @@
 import sys
-import subprocess
 import os
 
-def download_audio(youtube_url):
+def download_audio(youtube_url, download_dir="downloaded_audios"):
     """
     Downloads audio from a YouTube URL using yt-dlp.
 
     Args:
         youtube_url: The URL of the YouTube video.
+        download_dir: Station library to save into (defaults to the main station).
     """
     try:
         # Create downloads directory if it doesn't exist
-        download_dir = "downloaded_audios"
         os.makedirs(download_dir, exist_ok=True)
         
         # Build command - use yt-dlp directly from PATH
@@ -20,37 +19,28 @@ def download_audio(youtube_url):
             '-x',  # Extract audio only
             '--audio-format', 'mp3',
             '--audio-quality', '0',  # Best quality
-            '-o', 'downloaded_audios/%(title)s.%(ext)s',
+            '-o', os.path.join(download_dir, '%(title)s.%(ext)s'),
             '--no-playlist',  # Only download single video, not playlist
             '--embed-metadata',  # Embed metadata
+            '--print', 'after_move:filepath',  # Final path of the mp3, for the server's ingest pipeline
+            '--newline',  # One progress line per update instead of a redrawn bar
+            '--progress',  # Keep progress lines although --print implies --quiet
+            '--',  # Everything after this is a URL, never an option
             youtube_url
         ]
         
-        print(f"Downloading: {youtube_url}")
-        print(f"Command: {' '.join(command)}")
+        print(f"Downloading: {youtube_url}", flush=True)
+        print(f"Command: {' '.join(command)}", flush=True)
         
-        # Run the command
-        result = subprocess.run(command, check=True, capture_output=True, text=True, encoding='utf-8', errors='replace')
-        print("[SUCCESS] Download completed successfully!")
-        if result.stdout:
-            print("Output:")
-            print(result.stdout)
+        # Become yt-dlp rather than wait for it: its output goes straight to the server,
+        # its exit code is ours, and when the server kills us on a timeout it kills the download
+        os.execvp(command[0], command)
             
     except FileNotFoundError as e:
         print(f"[ERROR] yt-dlp not found in PATH: {e}")
         print("Please install yt-dlp: pip install yt-dlp")
         sys.exit(1)
         
-    except subprocess.CalledProcessError as e:
-        print(f"[ERROR] Download failed (exit code {e.returncode})")
-        if e.stderr:
-            print("Error details:")
-            print(e.stderr)
-        if e.stdout:
-            print("Output:")
-            print(e.stdout)
-        sys.exit(1)
-        
     except Exception as e:
         print(f"[ERROR] Unexpected error: {e}")
         import traceback
@@ -60,7 +50,10 @@ def download_audio(youtube_url):
 if __name__ == '__main__':
     if len(sys.argv) > 1:
         url = sys.argv[1]
-        download_audio(url)
+        if len(sys.argv) > 2:
+            download_audio(url, sys.argv[2])
+        else:
+            download_audio(url)
     else:
-        print("Usage: python download.py <youtube_url>")
+        print("Usage: python download.py <youtube_url> [download_dir]")
         sys.exit(1)
@@ -0,0 +1,55 @@
+import sys
+import os
+import re
+import shutil
+import time
+
+def fake_download(url, download_dir="downloaded_audios"):
+    """
+    Stands in for download.py when testing the server's ingest pipeline
+    without yt-dlp or a network. Prints the same kind of output that
+    download.py passes through from yt-dlp: "[download]  42.0% ..." progress
+    lines, then the path of the finished mp3.
+
+    Start the server with
+        -Dradio.ingest.command="python download_stub.py {url} {dir}"
+
+    Environment:
+        DOWNLOAD_STUB_SOURCE   mp3 to copy as the result (default: 4 KB of zeros)
+        DOWNLOAD_STUB_SECONDS  how long the fake download takes (default: 2)
+    A URL containing "fail" exits with an error after half the download.
+    """
+    os.makedirs(download_dir, exist_ok=True)
+    seconds = float(os.environ.get("DOWNLOAD_STUB_SECONDS", "2"))
+    name = re.sub(r'[^A-Za-z0-9._-]', '_', url.split('/')[-1]) or "stub"
+    target = os.path.join(download_dir, name + ".mp3")
+
+    print(f"Downloading: {url}", flush=True)
+    steps = 20
+    for i in range(steps + 1):
+        percent = 100.0 * i / steps
+        eta = int(round(seconds * (steps - i) / steps))
+        print(f"[download] {percent:5.1f}% of ~4.00MiB at 1.00MiB/s ETA {eta // 60:02d}:{eta % 60:02d}", flush=True)
+        if "fail" in url and i == steps // 2:
+            print("[ERROR] Stub failure requested by URL", flush=True)
+            sys.exit(1)
+        time.sleep(seconds / steps)
+
+    source = os.environ.get("DOWNLOAD_STUB_SOURCE")
+    if source:
+        shutil.copyfile(source, target)
+    else:
+        with open(target, "wb") as f:
+            f.write(bytes(4096))
+    print(target, flush=True)
+
+if __name__ == '__main__':
+    if len(sys.argv) > 1:
+        url = sys.argv[1]
+        if len(sys.argv) > 2:
+            fake_download(url, sys.argv[2])
+        else:
+            fake_download(url)
+    else:
+        print("Usage: python download_stub.py <url> [download_dir]")
+        sys.exit(1)
@@ -1,24 +1,77 @@
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class server {
 
@@ -31,21 +84,71 @@ public class server {
     private static final int    SAMPLE_RATE = 44_100; // Hz
     private static final int    CHANNELS    = 2;      // stereo
     private static final int    BYTES_PER_SEC = SAMPLE_RATE * CHANNELS * 2; // 16-bit
+    private static final int    BYTES_PER_SAMPLE_FRAME = CHANNELS * 2;      // one stereo s16le sample
     private static final int    HEADER_SIZE_BYTES = 23; // 8+8+1+4+2 = seq+timestamp+flags+song_index+length
+    private static final int    PCM_FRAME_BYTES   = 4096; // ≈23 ms of PCM (1024 stereo samples)
+    private static final int    FEC_PREFIX_BYTES  = 4;    // parity payload prefix: count, xor flags, xor length
+    private static final int    MAX_PACKET_BYTES  = HEADER_SIZE_BYTES + FEC_PREFIX_BYTES + PCM_FRAME_BYTES;
+    private static final long   FRAME_PERIOD_NS   = PCM_FRAME_BYTES / (CHANNELS * 2) * 1_000_000_000L / SAMPLE_RATE;
+    private static final int    FANOUT_SENDERS    = Integer.getInteger("radio.fanout.senders",
+                                                        Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int    STREAM_THREADS    = Integer.getInteger("radio.stream.threads",
+                                                        Runtime.getRuntime().availableProcessors()); // shared by all stations
+    private static final String DEFAULT_STATION   = "main";
 
-    private static final List<ClientHandler>           clients          = Collections.synchronizedList(new ArrayList<>());
-    private static final PlaylistManager               playlistManager  = new PlaylistManager(AUDIO_DIR);
-    private static final ExecutorService               clientExecutor   = Executors.newCachedThreadPool();
+    private static final byte   FLAG_EOS          = 0x02;
+    private static final byte   FLAG_TRACK_START  = 0x04; // first frame of a gapless transition; timestamp = boundary sample
+    private static final int    LOOKAHEAD_SECONDS = 5;    // start decoding the next track this early
+    private static final byte   FLAG_FEC          = 0x08; // XOR parity packet, see FecEncoder
+    private static final int    FEC_GROUP         = Integer.getInteger("radio.fec.group", 8); // frames per parity, <2 = off
+    private static final int    RETRANSMIT_FRAMES = Integer.highestOneBit(Math.max(16,
+                                                        Integer.getInteger("radio.retransmit.frames", 256))); // ≈6 s of frames kept for NACKs
+    private static final int    RETRANSMIT_RATE   = Integer.getInteger("radio.retransmit.rate", 20); // resent frames/s per client, 0 = off
+    private static final int    OUTBOUND_LIMIT_BYTES     = Integer.getInteger("radio.client.queue.kb", 256) * 1024; // per connection
+    private static final int    OUTBOUND_WATERMARK_BYTES = OUTBOUND_LIMIT_BYTES / 2; // above this a client counts as behind
+    private static final long   EVICT_AFTER_MS    = Long.getLong("radio.client.evict.ms", 10_000); // behind this long: disconnect
+    private static final int    PLAYLIST_OPLOG    = Math.max(16, Integer.getInteger("radio.playlist.oplog", 1024)); // ops kept for catch-up
+    private static final long   LIBRARY_SETTLE_MS    = Long.getLong("radio.library.settle.ms", 1000); // quiet time before a new file is listed
+    private static final long   LIBRARY_RECONCILE_MS = Long.getLong("radio.library.reconcile.s", 600) * 1000; // full rescan period, 0 = off
+    private static final boolean JOURNAL_ENABLED      = !"false".equals(System.getProperty("radio.journal")); // queue + position survive restarts
+    private static final long    JOURNAL_CHECKPOINT_MS = Long.getLong("radio.journal.checkpoint.ms", 1000);
+    private static final String  JOURNAL_FILE         = ".playlist.journal";  // in each station directory
+    private static final int     JOURNAL_COMPACT_MIN   = 1024;                // records before compaction is considered
+    private static final int     JOURNAL_COMPACT_RATIO = 4;                   // ... and more than this many per track
+
+    /* Download/ingest jobs; the command runs without a shell, {url} and {dir} are substituted per argument */
+    private static final String INGEST_COMMAND    = System.getProperty("radio.ingest.command", "python download.py {url} {dir}");
+    private static final int    INGEST_WORKERS    = Math.max(1, Integer.getInteger("radio.ingest.workers",
+                                                        Integer.getInteger("radio.download.threads", 2))); // concurrent downloaders
+    private static final int    INGEST_QUEUE      = Integer.getInteger("radio.ingest.queue", 32);     // jobs waiting for a worker
+    private static final int    INGEST_PER_CLIENT = Integer.getInteger("radio.ingest.perclient", 3);  // pending jobs per connection
+    private static final long   INGEST_TIMEOUT_S  = Long.getLong("radio.ingest.timeout.s", 600);      // downloader is killed after this
+    private static final int    FLAG_CODEC_SHIFT  = 4;    // flag bits 4-5: codec id of the payload (0 = raw PCM)
+    private static final int    FLAG_CODEC_MASK   = 0x30;
+
+    /* Payload codecs, indexed by id; clients pick from these at SUBSCRIBE (codecs=a,b,...) */
+    private static final AudioCodec[] CODECS = AudioCodec.registry(System.getProperty("radio.codecs", "lpcr,pcm"));
+    private static final AudioCodec   MULTICAST_CODEC = AudioCodec.byName(CODECS, System.getProperty("radio.multicast.codec", "pcm"));
+
+    /* Multicast streaming: off unless -Dradio.multicast.group=<address> is given */
+    private static final String MULTICAST_GROUP     = System.getProperty("radio.multicast.group");
+    private static final int    MULTICAST_PORT      = Integer.getInteger("radio.multicast.port", 5556);
+    private static final int    MULTICAST_TTL       = Integer.getInteger("radio.multicast.ttl", 1);
+    private static final String MULTICAST_INTERFACE = System.getProperty("radio.multicast.interface");
+
+    private static final Map<String, Station>          stations         = new ConcurrentHashMap<>();
+    private static volatile Station[]                  stationList      = new Station[0]; // creation order
+    private static final TrackIndex                    trackIndex       = new TrackIndex(new File(AUDIO_DIR, ".track_index"),
+                                                            Integer.getInteger("radio.probe.threads",
+                                                                Math.min(4, Runtime.getRuntime().availableProcessors())));
+    private static final PcmCache                      pcmCache         = new PcmCache(new File(AUDIO_DIR, ".pcm_cache"),
+                                                            Long.getLong("radio.pcmcache.mb", 2048) * 1024 * 1024);
+    private static final IngestScheduler               ingest           = new IngestScheduler(INGEST_WORKERS, INGEST_QUEUE);
     private static final ScheduledExecutorService      scheduler        = Executors.newScheduledThreadPool(1);
-    private static volatile boolean                    songWasManuallyChanged = false; // Flag to handle playlist changes
 
-    // Radio state - always playing if there are songs
-    private static       boolean isRadioActive   = false;  // Radio is on/off
-    private static       double  currentVolume   = 1.0;
-    private static       double  currentTime     = 0.0;    // seconds into current song
-    private static       double  totalDuration   = 0.0;    // seconds
-    private static       long    songStartTime   = 0;      // System.currentTimeMillis() when song started
-    private static       boolean isStreamActive  = false;  // Whether UDP stream is actively running
+    private static       StreamScheduler streamScheduler; // set in main, read by the admin console
+    private static       TCPServer       controlPlane;    // set in main before any client can connect
+    private static       LibraryWatcher  libraryWatcher;  // null if the platform has no WatchService
 
     /* ---------------------------------------------------------- *
      *  MAIN
@@ -55,519 +158,3875 @@ public class server {
         /* Ensure audio folder exists */
         File audioDir = new File(AUDIO_DIR);
         if (!audioDir.exists()) audioDir.mkdirs();
+        pcmCache.load();
+
+        /* Initialize one playlist per station: from its journal if it has one, else a full scan */
+        createStations(audioDir);
+        List<Station> restored = new ArrayList<>();
+        for (Station st : allStations()) {
+            if (JOURNAL_ENABLED && st.playlistManager.restore()) restored.add(st);
+        }
+        trackIndex.loadInBackground(); // after the restores, which do not need it, so they get the CPU first
+        int onAir = 0;
+        for (Station st : allStations()) {
+            if (!restored.contains(st)) {
+                st.playlistManager.scanDirectory();
+                if (JOURNAL_ENABLED) st.playlistManager.startJournal();
+            }
+            if (st.playlistManager.hasSongs()) {
+                st.isRadioActive = true;
+                onAir++;
+                System.out.println("🎵 Station '" + st.id + "' starting with " + st.playlistManager.getSongCount() + " songs");
+            }
+        }
+        if (onAir == 0) System.out.println("📻 Radio server started - waiting for songs to be added");
+
+        /* From here on the playlists follow their directories event by event */
+        libraryWatcher = LibraryWatcher.start(allStations());
 
-        /* Initialize playlist and start radio if songs exist */
-        playlistManager.scanDirectory();
-        if (playlistManager.hasSongs()) {
-            isRadioActive = true;
-            System.out.println("🎵 Radio server starting with " + playlistManager.getSongCount() + " songs");
-        } else {
-            System.out.println("📻 Radio server started - waiting for songs to be added");
+        /* Restored playlists are on air already; catch up with what changed while we were down */
+        if (!restored.isEmpty()) {
+            Thread reconcile = new Thread(() -> {
+                for (Station st : restored) {
+                    st.playlistManager.scanDirectory();
+                    st.broadcastPlaylistUpdate();
+                    st.playlistManager.compactJournal(); // also drops a torn tail left by a crash
+                }
+            }, "startup-reconcile");
+            reconcile.setDaemon(true);
+            reconcile.start();
         }
 
-        /* TCP server for commands */
-        new Thread(new TCPServer()).start();
+        /* TCP server for commands: one selector thread for every connection */
+        controlPlane = new TCPServer();
+        new Thread(controlPlane, "control-plane").start();
 
-        /* UDP broadcaster for raw PCM - starts immediately */
-        new Thread(new UDPStreamBroadcaster()).start();
+        /* Broadcasters for every station, multiplexed over a core-sized worker pool - start immediately */
+        streamScheduler = new StreamScheduler(STREAM_THREADS);
+        for (Station st : allStations()) streamScheduler.add(st);
 
         /* Periodic status broadcasts (every 1 second) */
         scheduler.scheduleAtFixedRate(() -> {
-            updateCurrentTime();
-            broadcastPlaybackState();
+            for (Station st : allStations()) {
+                st.updateCurrentTime();
+                st.broadcastPlaybackState();
+            }
         }, 0, 1, TimeUnit.SECONDS);
 
+        /* Play position checkpoints, and a last one on shutdown */
+        if (JOURNAL_ENABLED) {
+            scheduler.scheduleAtFixedRate(() -> {
+                for (Station st : allStations()) st.checkpoint();
+            }, JOURNAL_CHECKPOINT_MS, JOURNAL_CHECKPOINT_MS, TimeUnit.MILLISECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                for (Station st : allStations()) {
+                    st.checkpoint();
+                    st.playlistManager.closeJournal();
+                }
+            }, "journal-shutdown"));
+        }
+
         /* Periodic playlist updates (every 5 seconds) */
         scheduler.scheduleAtFixedRate(() -> {
-            broadcastPlaylistUpdate();
+            for (Station st : allStations()) st.broadcastPlaylistUpdate();
         }, 0, 5, TimeUnit.SECONDS);
 
         System.out.println("🎵 Collaborative Music Radio Server is running on port " + TCP_PORT);
-        System.out.println("📻 Radio status: " + (isRadioActive ? "ON AIR" : "OFF AIR"));
+        System.out.println("📻 " + allStations().length + " stations on " + STREAM_THREADS + " stream threads, "
+                + onAir + " ON AIR");
 
         // Start console handler for admin commands
         new Thread(new ConsoleHandler()).start();
     }
 
     /* ---------------------------------------------------------- *
-     *  TCP SERVER — command & control
+     *  TCP SERVER — command & control (one selector thread)
      * ---------------------------------------------------------- */
+    /**
+     * Non-blocking control plane. One selector thread accepts connections, reads
+     * command lines and does every socket write. Other threads reply through
+     * {@link ClientHandler#sendMessage}, which only queues the bytes and flags the
+     * connection for a flush, so a slow or stalled client never blocks a caller.
+     * A connection costs a channel, a key and a small queue: no thread, no stack,
+     * no per-connection read buffer.
+     */
     static class TCPServer implements Runnable {
+        private static final int READ_BUFFER_BYTES = 16 * 1024; // shared by every connection
+        private static final int MAX_LINE_BYTES    = 8 * 1024;  // longer lines drop the connection
+        private static final int LATENCY_SAMPLES   = 8192;      // most recent command latencies kept
+
+        private final Selector            selector;
+        private final ServerSocketChannel listener;
+        private final ByteBuffer          readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        private final ConcurrentLinkedQueue<ClientHandler> flushQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean       wakeupPending = new AtomicBoolean();
+        final DatagramChannel             resendUdp; // NACK resends; non-blocking, like everything on this thread
+
+        /* Written by the selector thread only */
+        private volatile int  connections = 0, peakConnections = 0;
+        private volatile long accepted = 0, commands = 0, evicted = 0;
+
+        /* Outbound lines superseded by a newer state line, or refused by a full queue */
+        final AtomicLong      coalesced = new AtomicLong(), dropped = new AtomicLong();
+        private final long[]  latencyNs = new long[LATENCY_SAMPLES];
+        private volatile int  latencyCount = 0;
+
+        TCPServer() throws IOException {
+            selector = Selector.open();
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(TCP_PORT), 1024);
+            listener.configureBlocking(false);
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+            resendUdp = DatagramChannel.open();
+            resendUdp.configureBlocking(false);
+        }
+
+        /** Asks the selector thread to write out {@code c}'s queue. Any thread. */
+        void requestFlush(ClientHandler c) {
+            flushQueue.add(c);
+            if (wakeupPending.compareAndSet(false, true)) selector.wakeup();
+        }
+
         @Override
         public void run() {
-            try (ServerSocket ss = new ServerSocket(TCP_PORT)) {
+            while (true) {
+                try {
+                    selector.select();
+                    wakeupPending.set(false);
+                    ClientHandler c;
+                    while ((c = flushQueue.poll()) != null) flush(c);
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        ClientHandler ch = (ClientHandler) key.attachment();
+                        if (key.isReadable()) read(ch);
+                        if (key.isValid() && key.isWritable()) flush(ch);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel sc;
+            while ((sc = listener.accept()) != null) {
+                sc.configureBlocking(false);
+                sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ClientHandler ch = new ClientHandler(sc);
+                ch.key = sc.register(selector, SelectionKey.OP_READ, ch);
+                ch.station.join(ch);
+                accepted++;
+                peakConnections = Math.max(peakConnections, ++connections);
+                System.out.println("📡 New client connected: " + ch.getAddr());
+            }
+        }
+
+        /* Splits what arrived into lines and runs each command on this thread */
+        private void read(ClientHandler ch) {
+            readBuffer.clear();
+            int n;
+            try {
+                n = ch.channel.read(readBuffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                close(ch);
+                return;
+            }
+            long start = System.nanoTime();
+            byte[] buf = readBuffer.array();
+            int len = readBuffer.position(), from = 0;
+            for (int i = 0; i < len; i++) {
+                if (buf[i] != '\n') continue;
+                String line = ch.takeLine(buf, from, i);
+                from = i + 1;
+                ch.onLine(line);
+                commands++;
+                recordLatency(System.nanoTime() - start);
+                if (!ch.key.isValid()) return;
+            }
+            if (!ch.keepPartial(buf, from, len, MAX_LINE_BYTES)) {
+                System.out.println("📡 Client " + ch.getAddr() + " sent an over-long line, dropping it.");
+                close(ch);
+                return;
+            }
+            flush(ch); // replies go out before the next select
+        }
+
+        private void flush(ClientHandler ch) {
+            if (!ch.key.isValid()) return;
+            ch.flushRequested.set(false); // cleared first: a concurrent send re-queues the connection
+            try {
                 while (true) {
-                    Socket s = ss.accept();
-                    ClientHandler ch = new ClientHandler(s);
-                    clients.add(ch);
-                    clientExecutor.submit(ch);
-                    System.out.println("📡 New client connected: " + s.getInetAddress());
+                    ByteBuffer b = ch.writing;
+                    boolean queued = true;
+                    if (b == null && (b = ch.outbound.poll()) == null) {
+                        byte[] state = ch.pendingState.getAndSet(null);
+                        if (state == null) break;
+                        b = ByteBuffer.wrap(state);
+                        queued = false;
+                    }
+                    ch.writing = null;
+                    int before = b.remaining();
+                    ch.channel.write(b);
+                    if (queued) ch.queuedBytes.addAndGet(b.remaining() - before);
+                    if (b.hasRemaining()) {        // socket buffer full: wait for OP_WRITE
+                        if (!queued) ch.queuedBytes.addAndGet(b.remaining()); // counted like a queued line from now on
+                        ch.writing = b;
+                        break;
+                    }
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                close(ch);
+                return;
+            }
+            if (isStalled(ch)) {
+                evicted++;
+                System.out.println("📡 Client " + ch.getAddr() + " evicted: " + ch.queuedBytes.get()
+                        + " bytes queued for over " + EVICT_AFTER_MS + " ms.");
+                close(ch);
+                return;
+            }
+            ch.key.interestOps(ch.writing == null ? SelectionKey.OP_READ
+                                                  : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        /* True once the queue has stayed above the watermark for EVICT_AFTER_MS */
+        private boolean isStalled(ClientHandler ch) {
+            if (ch.queuedBytes.get() <= OUTBOUND_WATERMARK_BYTES) {
+                ch.behindSince = 0;
+                return false;
             }
+            long now = System.nanoTime();
+            if (ch.behindSince == 0) ch.behindSince = now;
+            return now - ch.behindSince > EVICT_AFTER_MS * 1_000_000L;
+        }
+
+        private void close(ClientHandler ch) {
+            if (ch.closed) return;
+            ch.closed = true;
+            ch.key.cancel();
+            try { ch.channel.close(); } catch (IOException ignored) { }
+            ch.station.leave(ch);
+            connections--;
+            System.out.println("📡 Client " + ch.getAddr() + " disconnected.");
+        }
+
+        private void recordLatency(long ns) {
+            latencyNs[latencyCount % LATENCY_SAMPLES] = ns;
+            latencyCount++;
+        }
+
+        String getStats() {
+            int n = Math.min(latencyCount, LATENCY_SAMPLES);
+            long[] sorted = Arrays.copyOf(latencyNs, n);
+            Arrays.sort(sorted);
+            String latency = n == 0 ? "no commands yet" : String.format("command latency p50 %.0f µs, p99 %.0f µs, max %.0f µs",
+                    sorted[n / 2] / 1e3, sorted[Math.min(n - 1, n * 99 / 100)] / 1e3, sorted[n - 1] / 1e3);
+            return String.format("control: %d connections (peak %d, %d accepted), %d commands, %s (last %d)%n"
+                    + "control: outbound %d coalesced, %d dropped, %d clients evicted",
+                    connections, peakConnections, accepted, commands, latency, n,
+                    coalesced.get(), dropped.get(), evicted);
         }
     }
 
     /* ---------------------------------------------------------- *
      *  CLIENT HANDLER (one per TCP connection)
      * ---------------------------------------------------------- */
-    static class ClientHandler implements Runnable {
+    /**
+     * State and commands of one control connection. Commands run on the
+     * control-plane selector thread; {@link #sendMessage} may be called from any
+     * thread.
+     */
+    static class ClientHandler {
 
-        private final Socket        socket;
+        private final SocketChannel channel;
         private final InetAddress   addr;
-        private PrintWriter         out;
-        private BufferedReader      in;
-        private int                 udpPort = -1;
+        private SelectionKey        key;                     // selector thread
+        private byte[]              partialLine;             // unterminated tail of the last read, usually null
+        private volatile boolean    closed = false;
+        private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queuedBytes = new AtomicInteger();   // bytes in outbound, not yet written
+        private final AtomicReference<byte[]> pendingState = new AtomicReference<>(); // latest PLAYBACK_STATE
+        private final AtomicBoolean flushRequested = new AtomicBoolean();
+        private ByteBuffer          writing;                 // selector thread: line the socket only took part of
+        private long                behindSince = 0;         // selector thread: when the queue crossed the watermark
+        private volatile int        udpPort = -1;
+        private volatile InetSocketAddress udpTarget; // cached so the send loop never allocates
+        private volatile boolean    multicastMember = false; // receives the group stream instead of unicast
+        private volatile int        codecId = 0;             // negotiated payload codec, 0 = raw PCM
+        private volatile Station    station = defaultStation(); // until SUBSCRIBE picks another
+        private volatile boolean    binaryControl = false;   // PROTO 1: state goes out as ControlProtocol frames
 
-        ClientHandler(Socket s) {
-            socket = s;
-            addr   = s.getInetAddress();
+        /* NACK token bucket: RETRANSMIT_RATE frames/s, bursts of up to one second's worth */
+        private double              nackTokens     = RETRANSMIT_RATE;
+        private long                nackRefilledAt = System.nanoTime();
+        private ByteBuffer          resendBuffer;            // lazily allocated, reused for every resend
+
+        ClientHandler(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.addr    = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
         }
 
-        @Override
-        public void run() {
+        void onLine(String line) {
+            if (line.startsWith("SUBSCRIBE")) {
+                // SUBSCRIBE <udpPort> [station=id] [multicast=yes] [codecs=name,name,...] [playlist=version]
+                String[] parts = line.split(" ");
+                Station target = station(option(parts, "station"));
+                if (target == null) {
+                    sendMessage("{\"type\":\"ERROR\",\"payload\":{\"message\":\"unknown station\"}}");
+                    sendMessage(getStationsJson());
+                    return;
+                }
+                try {
+                    udpPort = Integer.parseInt(parts[1]);
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                    return;
+                }
+                moveTo(target);
+                udpTarget = new InetSocketAddress(addr, udpPort);
+                String offered = option(parts, "codecs");
+                AudioCodec codec = AudioCodec.negotiate(CODECS, offered);
+                boolean wantsMulticast = MULTICAST_GROUP != null
+                        && "yes".equalsIgnoreCase(option(parts, "multicast"))
+                        && AudioCodec.offers(offered, MULTICAST_CODEC);
+                codecId = codec.id();
+                Station st = station;
+                st.subscribers.add(this);
+                st.subscribers.setMulticast(this, wantsMulticast);
+                System.out.println("📡 Client " + addr + " subscribed to '" + st.id + "' on UDP port " + udpPort + " (codec " + codec.name() + ")"
+                        + (wantsMulticast ? " (multicast " + st.multicastTarget + ")" : ""));
+                sendMessage(st.getStreamConfigJson(wantsMulticast, codec));
+                sendSnapshots(st, parseVersion(option(parts, "playlist")));
+            } else if (line.startsWith("UNICAST")) {
+                // Client could not receive the group stream: fall back to a unicast copy
+                station.subscribers.setMulticast(this, false);
+                System.out.println("📡 Client " + addr + " fell back to unicast on UDP port " + udpPort);
+                sendMessage(station.getStreamConfigJson(false, CODECS[codecId]));
+            } else if (line.startsWith("NACK")) {
+                // NACK <seq>,<seq>,... frames the client is missing and can still play
+                handleNack(line.substring(4).trim());
+            } else if (line.startsWith("DOWNLOAD")) {
+                if (line.length() > 9) ingest.submit(this, station, line.substring(9).trim());
+            } else if (line.startsWith("STATIONS")) {
+                sendMessage(getStationsJson());
+            } else if (line.startsWith("STATUS")) {
+                // STATUS [playlist version]: playlist ops since that version, or a snapshot
+                sendSnapshots(station, parseVersion(line.length() > 7 ? line.substring(7).trim() : null));
+            } else if (line.startsWith("PROTO")) {
+                // PROTO <n>: 1 = binary control frames, 0 = JSON lines
+                String version = line.length() > 6 ? line.substring(6).trim() : "";
+                if (version.equals("0") || version.equals(String.valueOf(ControlProtocol.VERSION))) {
+                    binaryControl = !version.equals("0");
+                    sendSnapshots(station, 0);
+                } else {
+                    sendMessage("{\"type\":\"ERROR\",\"payload\":{\"message\":\"unsupported control protocol\"}}");
+                }
+            } else if (line.startsWith("VOLUME")) {
+                // Keep volume control for server admin purposes (per station)
+                try {
+                    Station st = station;
+                    st.currentVolume = Math.max(0, Math.min(1,
+                            Double.parseDouble(line.split(" ")[1])));
+                    System.out.println("🔊 [" + st.id + "] volume set to " + (int)(st.currentVolume * 100) + "%");
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException ignored) { }
+            }
+        }
+
+        /*
+         * Playback state plus whatever playlist update a client holding version
+         * `knownPlaylist` needs, in this connection's encoding. JSON has no ops,
+         * so it gets the full list unless it is already current.
+         */
+        private void sendSnapshots(Station st, int knownPlaylist) {
+            PlaylistSnapshot snap = st.playlistManager.snapshot();
+            if (binaryControl) {
+                byte[] playlist = snap.changesSince(knownPlaylist);
+                if (playlist != null) sendLine(playlist);
+                sendState(st.control.playbackSnapshot());
+            } else {
+                if (knownPlaylist != snap.version) sendMessage(snap.toJson(st.totalDuration));
+                sendState(encodeLine(st.getPlaybackStateJson()));
+            }
+        }
+
+        private static int parseVersion(String s) {
             try {
-                out = new PrintWriter(socket.getOutputStream(), true);
-                in  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                return s == null || s.isEmpty() ? 0 : Integer.parseInt(s);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
 
-                String line;
-                while ((line = in.readLine()) != null) {
-                    if (line.startsWith("SUBSCRIBE")) {
-                        udpPort = Integer.parseInt(line.split(" ")[1]);
-                        System.out.println("📡 Client " + addr + " subscribed to UDP port " + udpPort);
-                        sendMessage(playlistManager.getPlaylistStateJson());
-                        sendMessage(getPlaybackStateJson());
-                    } else if (line.startsWith("DOWNLOAD")) {
-                        downloadAndAddToPlaylist(line.substring(9).trim());
-                    } else if (line.startsWith("STATUS")) {
-                        sendMessage(playlistManager.getPlaylistStateJson());
-                        sendMessage(getPlaybackStateJson());
-                    } else if (line.startsWith("VOLUME")) {
-                        // Keep volume control for server admin purposes
-                        try {
-                            currentVolume = Math.max(0, Math.min(1,
-                                    Double.parseDouble(line.split(" ")[1])));
-                            System.out.println("🔊 Server volume set to " + (int)(currentVolume * 100) + "%");
-                        } catch (NumberFormatException ignored) { }
-                    }
-                }
-            } catch (IOException ignored) {
-            } finally {
-                clients.remove(this);
-                try { socket.close(); } catch (IOException ignored) { }
-                System.out.println("📡 Client " + addr + " disconnected.");
+        /* The line ending at buf[end], joined with any earlier partial bytes; a trailing CR is dropped */
+        String takeLine(byte[] buf, int from, int end) {
+            if (end > from && buf[end - 1] == '\r') end--;
+            if (partialLine == null) return new String(buf, from, end - from, StandardCharsets.UTF_8);
+            byte[] joined = Arrays.copyOf(partialLine, partialLine.length + end - from);
+            System.arraycopy(buf, from, joined, partialLine.length, end - from);
+            partialLine = null;
+            int len = joined.length;
+            if (len > 0 && joined[len - 1] == '\r') len--;
+            return new String(joined, 0, len, StandardCharsets.UTF_8);
+        }
+
+        /* Keeps an unterminated tail for the next read; false once the line grows past the limit */
+        boolean keepPartial(byte[] buf, int from, int end, int maxLine) {
+            if (from == end) return true;
+            int have = partialLine == null ? 0 : partialLine.length;
+            if (have + end - from > maxLine) return false;
+            byte[] next = partialLine == null ? new byte[end - from] : Arrays.copyOf(partialLine, have + end - from);
+            System.arraycopy(buf, from, next, have, end - from);
+            partialLine = next;
+            return true;
+        }
+
+        /* Leaves the current station's listeners and control broadcasts for another's */
+        private synchronized void moveTo(Station target) {
+            if (target == station) return;
+            station.leave(this);
+            multicastMember = false;
+            station = target;
+            target.join(this);
+        }
+
+        private void handleNack(String list) {
+            UDPStreamBroadcaster broadcaster = station.broadcaster;
+            if (udpTarget == null || list.isEmpty() || broadcaster == null) return;
+            String[] items = list.split(",");
+            int n = Math.min(items.length, 64);
+            long[] seqs = new long[n];
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                try { seqs[count] = Long.parseLong(items[i].trim()); count++; }
+                catch (NumberFormatException ignored) { }
+            }
+            int granted = takeRetransmitTokens(count);
+            if (resendBuffer == null) resendBuffer = ByteBuffer.allocate(MAX_PACKET_BYTES);
+            broadcaster.retransmit(this, seqs, count, granted, resendBuffer, controlPlane.resendUdp);
+        }
+
+        /** Takes up to {@code wanted} tokens from this client's retransmission budget. */
+        private int takeRetransmitTokens(int wanted) {
+            long now = System.nanoTime();
+            nackTokens = Math.min(RETRANSMIT_RATE, nackTokens + (now - nackRefilledAt) * RETRANSMIT_RATE / 1e9);
+            nackRefilledAt = now;
+            int granted = Math.min(wanted, (int) nackTokens);
+            nackTokens -= granted;
+            return granted;
+        }
+
+        /** Queues one message line for the selector thread to write. Never blocks. */
+        void sendMessage(String msg) { sendLine(encodeLine(msg)); }
+
+        /*
+         * Broadcasts encode once and share the bytes across connections. A line
+         * that would push the queue past OUTBOUND_LIMIT_BYTES is dropped: the
+         * client is already far behind and will be evicted if it stays there.
+         */
+        void sendLine(byte[] line) {
+            if (closed) return;
+            if (queuedBytes.addAndGet(line.length) > OUTBOUND_LIMIT_BYTES) {
+                queuedBytes.addAndGet(-line.length);
+                controlPlane.dropped.incrementAndGet();
+            } else {
+                outbound.add(ByteBuffer.wrap(line));
             }
+            requestFlush();
+        }
+
+        /* Replaces any state line not yet written; it goes out after the queued lines */
+        void sendState(byte[] line) {
+            if (closed) return;
+            if (pendingState.getAndSet(line) != null) controlPlane.coalesced.incrementAndGet();
+            requestFlush();
+        }
+
+        /* Binary state: a delta only follows what the client has; once one is pending, only a full frame is safe */
+        void sendState(byte[] delta, byte[] full) {
+            if (closed) return;
+            byte[] prev;
+            do {
+                prev = pendingState.get();
+            } while (!pendingState.compareAndSet(prev, prev == null ? delta : full));
+            if (prev != null) controlPlane.coalesced.incrementAndGet();
+            requestFlush();
+        }
+
+        private void requestFlush() {
+            if (flushRequested.compareAndSet(false, true)) controlPlane.requestFlush(this);
+        }
+
+        static byte[] encodeLine(String msg) {
+            return (msg + "\n").getBytes(StandardCharsets.UTF_8);
         }
 
-        void sendMessage(String msg) { out.println(msg); }
         InetAddress getAddr()        { return addr;      }
         int         getUdpPort()     { return udpPort;   }
+        InetSocketAddress getUdpTarget() { return udpTarget; }
+        boolean isMulticastMember()  { return multicastMember; }
+        boolean isBinaryControl()    { return binaryControl; }
+        int         getCodecId()     { return codecId;   }
+
+        /* Value of a key=value token after the fixed command arguments, or null */
+        private static String option(String[] parts, String key) {
+            for (int i = 2; i < parts.length; i++) {
+                int eq = parts[i].indexOf('=');
+                if (eq > 0 && parts[i].substring(0, eq).equalsIgnoreCase(key)) return parts[i].substring(eq + 1);
+            }
+            return null;
+        }
+    }
+
+    /* ---------------------------------------------------------- *
+     *  CONTROL PROTOCOL — binary frames with delta state updates
+     * ---------------------------------------------------------- */
+    /**
+     * Binary alternative to the JSON control lines, switched on per connection
+     * with {@code PROTO 1}. Every frame is
+     * <pre>
+     *   0xB1 magic | u8 type | u32 payload length | payload      (big-endian)
+     * </pre>
+     * JSON lines always start with '{', so one connection can carry both and the
+     * client tells them apart by the first byte. Messages without a binary form
+     * (STREAM_CONFIG, STATIONS, DOWNLOAD_*, ERROR) stay JSON.
+     * <pre>
+     * STATE        u32 version | u32 base (0 = full) | u8 field mask | masked fields in bit order:
+     *              playing u8, volume f32, currentTime f32, duration f32, radioActive u8, currentSong str
+     * PLAYLIST     u32 version | i32 now playing | u32 count | count * str       (snapshot)
+     * PLAYLIST_OPS u32 version | u32 base | u16 count | count * op              (changes since base)
+     * op           u8 kind, then ADD u32 index, str | REMOVE u32 index |
+     *              MOVE u32 from, u32 to | NOW_PLAYING i32 index
+     * str          u16 byte length | UTF-8
+     * </pre>
+     * A delta applies only to the version named as its base; a client that
+     * missed one asks for a snapshot with STATUS. Versions come from one
+     * server-wide counter, so they only grow.
+     */
+    static final class ControlProtocol {
+        static final byte MAGIC    = (byte) 0xB1;
+        static final int  VERSION  = 1;
+        static final byte STATE        = 1;
+        static final byte PLAYLIST     = 2;
+        static final byte PLAYLIST_OPS = 3;
+
+        static final byte OP_ADD = 1, OP_REMOVE = 2, OP_MOVE = 3, OP_NOW_PLAYING = 4;
+
+        static final int F_PLAYING = 1, F_VOLUME = 2, F_TIME = 4, F_DURATION = 8, F_RADIO = 16, F_SONG = 32;
+        static final int F_ALL     = 63;
+
+        private ControlProtocol() { }
+
+        /* Collects a payload, then prefixes the frame header */
+        static final class FrameWriter {
+            private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            private final DataOutputStream      out   = new DataOutputStream(bytes);
+
+            FrameWriter(byte type) {
+                try {
+                    out.writeByte(MAGIC);
+                    out.writeByte(type);
+                    out.writeInt(0); // patched in frame()
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            FrameWriter u8(int v)     { return write(() -> out.writeByte(v)); }
+            FrameWriter u16(int v)    { return write(() -> out.writeShort(v)); }
+            FrameWriter i32(int v)    { return write(() -> out.writeInt(v)); }
+            FrameWriter f32(float v)  { return write(() -> out.writeFloat(v)); }
+            FrameWriter str(String s) {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                int len = Math.min(utf8.length, 0xFFFF);
+                return write(() -> { out.writeShort(len); out.write(utf8, 0, len); });
+            }
+
+            byte[] frame() {
+                byte[] f = bytes.toByteArray();
+                ByteBuffer.wrap(f).putInt(2, f.length - 6);
+                return f;
+            }
+
+            private interface Write { void run() throws IOException; }
+
+            private FrameWriter write(Write w) {
+                try {
+                    w.run();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e); // in-memory stream, cannot happen
+                }
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Last published playback state and playlist version of one station, kept to
+     * derive deltas. Each change is encoded once and the same bytes are queued on
+     * every connection; JSON connections get the full line as before.
+     */
+    static final class ControlState {
+        private static final AtomicInteger VERSIONS = new AtomicInteger(); // shared, so versions never go back on a station switch
+
+        private final Station station;
+
+        /* Playback, guarded by this */
+        private int      stateVersion = 0;
+        private boolean  playing, radioActive;
+        private float    volume, currentTime, duration;
+        private String   song = "";
+        private byte[]   stateFull;
+
+        /* Playlist, guarded by this */
+        private int      publishedPlaylist = 0; // playlist version last fanned out
+
+        ControlState(Station station) { this.station = station; }
+
+        /* Next state or playlist version; one counter for every station */
+        static int nextVersion() { return VERSIONS.incrementAndGet(); }
+
+        /* Called by the 1 s tick. Binary clients get only the fields that changed, nothing when idle. */
+        synchronized void publishPlayback() {
+            byte[] delta = refreshPlayback();
+            byte[] json  = null;
+            for (ClientHandler c : station.clients) {
+                if (c.isBinaryControl()) {
+                    if (delta != null) c.sendState(delta, stateFull);
+                } else {
+                    if (json == null) json = ClientHandler.encodeLine(station.getPlaybackStateJson());
+                    c.sendState(json);
+                }
+            }
+        }
+
+        /*
+         * After a playlist change. Binary clients get the ops since the last
+         * publish, JSON clients the full list; an unchanged playlist costs nothing.
+         */
+        synchronized void publishPlaylist() {
+            PlaylistSnapshot snap = station.playlistManager.snapshot();
+            if (snap.version == publishedPlaylist) return;
+            byte[] changes = snap.changesSince(publishedPlaylist);
+            byte[] json    = ClientHandler.encodeLine(snap.toJson(station.totalDuration));
+            publishedPlaylist = snap.version;
+            for (ClientHandler c : station.clients) c.sendLine(c.isBinaryControl() ? changes : json);
+        }
+
+        /* Snapshot as of the last publish, so the deltas that follow apply to it */
+        synchronized byte[] playbackSnapshot() {
+            if (stateFull == null) refreshPlayback();
+            return stateFull;
+        }
+
+        /* Takes the station's current playback state; returns the delta frame, or null if nothing changed */
+        private byte[] refreshPlayback() {
+            File current = station.playlistManager.getCurrentTrack();
+            boolean p  = station.isRadioActive && station.isStreamActive;
+            boolean r  = station.isRadioActive;
+            float   v  = (float) station.currentVolume;
+            float   t  = (float) station.currentTime;
+            float   d  = (float) station.totalDuration;
+            String  s  = current != null ? current.getName() : "No song";
+
+            int mask = 0;
+            if (p != playing)     mask |= ControlProtocol.F_PLAYING;
+            if (v != volume)      mask |= ControlProtocol.F_VOLUME;
+            if (t != currentTime) mask |= ControlProtocol.F_TIME;
+            if (d != duration)    mask |= ControlProtocol.F_DURATION;
+            if (r != radioActive) mask |= ControlProtocol.F_RADIO;
+            if (!s.equals(song))  mask |= ControlProtocol.F_SONG;
+            if (mask == 0 && stateFull != null) return null;
+
+            playing = p; volume = v; currentTime = t; duration = d; radioActive = r; song = s;
+            int base = stateVersion;
+            stateVersion = nextVersion();
+            stateFull = stateFrame(stateVersion, 0, ControlProtocol.F_ALL);
+            return base == 0 ? null : stateFrame(stateVersion, base, mask);
+        }
+
+        private byte[] stateFrame(int version, int base, int mask) {
+            ControlProtocol.FrameWriter w = new ControlProtocol.FrameWriter(ControlProtocol.STATE)
+                    .i32(version).i32(base).u8(mask);
+            if ((mask & ControlProtocol.F_PLAYING)  != 0) w.u8(playing ? 1 : 0);
+            if ((mask & ControlProtocol.F_VOLUME)   != 0) w.f32(volume);
+            if ((mask & ControlProtocol.F_TIME)     != 0) w.f32(currentTime);
+            if ((mask & ControlProtocol.F_DURATION) != 0) w.f32(duration);
+            if ((mask & ControlProtocol.F_RADIO)    != 0) w.u8(radioActive ? 1 : 0);
+            if ((mask & ControlProtocol.F_SONG)     != 0) w.str(song);
+            return w.frame();
+        }
     }
 
     /* ---------------------------------------------------------- *
      *  PLAYLIST MANAGEMENT
      * ---------------------------------------------------------- */
-    static class PlaylistManager {
+    /** One recorded playlist change; {@code base} is the version it applies to. */
+    static final class PlaylistOp {
+        final byte   kind;     // ControlProtocol.OP_*
+        final int    base, version;
+        final int    index, to; // to: MOVE only
+        final String title;    // ADD only
+
+        PlaylistOp(byte kind, int base, int version, int index, int to, String title) {
+            this.kind = kind; this.base = base; this.version = version;
+            this.index = index; this.to = to; this.title = title;
+        }
+    }
+
+    /**
+     * Immutable state of one station's playlist: the tracks, the current index,
+     * the version and the most recent ops that led to it. Readers get the latest
+     * one from {@link PlaylistManager#snapshot()} without taking any lock.
+     */
+    static final class PlaylistSnapshot {
+        static final PlaylistSnapshot EMPTY =
+                new PlaylistSnapshot(Collections.emptyList(), 0, 0, new PlaylistOp[0]);
+
+        final List<File>   tracks;   // unmodifiable
+        final int          idx;      // always a valid index unless tracks is empty
+        final int          version;  // 0 until the first change
+        final PlaylistOp[] ops;      // oldest first, at most PLAYLIST_OPLOG; never modified
+        private volatile byte[] frame; // snapshot frame, encoded on first use
+
+        PlaylistSnapshot(List<File> tracks, int idx, int version, PlaylistOp[] ops) {
+            this.tracks  = tracks;
+            this.idx     = idx;
+            this.version = version;
+            this.ops     = ops;
+        }
+
+        File current()    { return tracks.isEmpty() ? null : tracks.get(idx); }
+        File next()       { return tracks.isEmpty() ? null : tracks.get((idx + 1) % tracks.size()); }
+        int  nowPlaying() { return tracks.isEmpty() ? -1 : idx; }
+
+        /*
+         * What a client holding playlist version `known` needs: null when it is
+         * current, the ops since `known` when the log still reaches back that far
+         * and they are smaller than the list, a snapshot otherwise.
+         */
+        byte[] changesSince(int known) {
+            if (known == version) return null;
+            for (int i = 0; i < ops.length; i++) {
+                if (ops[i].base != known) continue;
+                if (ops.length - i <= Math.max(tracks.size(), 1)) return opsFrame(i, known);
+                break;
+            }
+            return snapshotFrame();
+        }
+
+        byte[] snapshotFrame() {
+            byte[] f = frame;
+            if (f == null) {
+                ControlProtocol.FrameWriter w = new ControlProtocol.FrameWriter(ControlProtocol.PLAYLIST)
+                        .i32(version).i32(nowPlaying()).i32(tracks.size());
+                for (File t : tracks) w.str(t.getName());
+                frame = f = w.frame();
+            }
+            return f;
+        }
+
+        private byte[] opsFrame(int from, int base) {
+            ControlProtocol.FrameWriter w = new ControlProtocol.FrameWriter(ControlProtocol.PLAYLIST_OPS)
+                    .i32(version).i32(base).u16(ops.length - from);
+            for (int i = from; i < ops.length; i++) {
+                PlaylistOp op = ops[i];
+                w.u8(op.kind);
+                switch (op.kind) {
+                    case ControlProtocol.OP_ADD:  w.i32(op.index).str(op.title); break;
+                    case ControlProtocol.OP_MOVE: w.i32(op.index).i32(op.to);     break;
+                    default:                      w.i32(op.index);                break;
+                }
+            }
+            return w.frame();
+        }
+
+        String toJson(double currentDuration) {
+            StringBuilder queue = new StringBuilder();
+            for (int i = 0; i < tracks.size(); i++) {
+                File f = tracks.get(i);
+                queue.append(String.format("{\"title\":\"%s\",\"isPlaying\":%b}",
+                    escapeJson(f.getName()), i == idx));
+                if (i < tracks.size() - 1) queue.append(",");
+            }
+            
+            String now = tracks.isEmpty() ? "null" :
+                String.format("{\"title\":\"%s\",\"duration\":%.1f}",
+                              escapeJson(tracks.get(idx).getName()), currentDuration);
+            return String.format("{\"type\":\"PLAYLIST_UPDATE\",\"payload\":{\"version\":%d,\"queue\":[%s],\"now_playing\":%s}}",
+                                 version, queue, now);
+        }
+
+        static String escapeJson(String s) {
+            if (s == null) return null;
+            return s.replace("\\", "\\\\")
+                    .replace("\"", "\\\"")
+                    .replace("\b", "\\b")
+                    .replace("\f", "\\f")
+                    .replace("\n", "\\n")
+                    .replace("\r", "\\r")
+                    .replace("\t", "\\t");
+        }
+    }
 
+    /**
+     * The station's track list. State lives in an immutable
+     * {@link PlaylistSnapshot} behind an atomic reference: readers (the
+     * broadcaster every frame, the status tick, the JSON and frame builders)
+     * never block. Every change goes through one writer lock, builds the next
+     * snapshot, records its ops (add, remove, move, now-playing) and publishes
+     * it. Directory listing, probing and broadcasting happen outside that lock.
+     *
+     * Tracks stay in the order they were added. The {@link LibraryWatcher}
+     * appends and removes single files as they appear and vanish;
+     * {@link #scanDirectory()} is the full reconcile behind it.
+     */
+    static class PlaylistManager {
+        private final Station    station;
         private final File       dir;
-        private final List<File> list = new ArrayList<>();
-        private int              idx  = 0;
+        private final AtomicReference<PlaylistSnapshot> current = new AtomicReference<>(PlaylistSnapshot.EMPTY);
+        private final Object     writeLock = new Object(); // the single writer path; readers never take it
+        private final Set<File>  members   = new HashSet<>(); // tracks of the current snapshot; writeLock
+        private final PlaylistJournal journal;
+        private final AtomicBoolean compactionQueued = new AtomicBoolean(false); // one compaction on the scheduler at a time
+
+        PlaylistManager(Station station, File d) {
+            this.station = station;
+            this.dir     = d;
+            this.journal = new PlaylistJournal(new File(d, JOURNAL_FILE));
+        }
+
+        /**
+         * Restores the queue and play position from the journal, trusting it
+         * without touching the directory: no walk, no probes (durations come
+         * from the track index). Returns false if there is no usable journal.
+         * The caller reconciles with the directory once the station is on air.
+         */
+        boolean restore() {
+            PlaylistJournal.Replay r = journal.replay();
+            if (r == null) return false;
+            List<File> tracks = new ArrayList<>(r.names.size());
+            for (String name : r.names) tracks.add(new File(dir, name));
+            synchronized (writeLock) {
+                int idx = r.idx;
+                long resumeAt = -1;
+                File playing = tracks.isEmpty() ? null : tracks.get(idx);
+                if (playing != null && playing.getName().equals(r.checkpointName)) resumeAt = r.checkpointSamples;
+                if (playing != null && !playing.isFile()) {
+                    idx = (idx + 1) % tracks.size(); // gone while we were down; the reconcile removes it
+                    resumeAt = -1;
+                }
+                members.addAll(tracks);
+                current.set(new PlaylistSnapshot(Collections.unmodifiableList(tracks), idx,
+                                                 ControlState.nextVersion(), new PlaylistOp[0]));
+                if (!tracks.isEmpty()) {
+                    station.isRadioActive = true;
+                    station.resumeAt(tracks.get(idx), Math.max(0, resumeAt));
+                    updateCurrentTrackDuration();
+                }
+            }
+            journal.open();
+            return true;
+        }
+
+        /** Starts journaling: writes the current state as the journal's snapshot. */
+        void startJournal() {
+            compactJournal();
+        }
+
+        /* Rewrites the journal as a snapshot; ops published meanwhile are carried over */
+        void compactJournal() {
+            PlaylistSnapshot snap;
+            synchronized (writeLock) {
+                if (!journal.mark()) return;
+                snap = current.get();
+            }
+            journal.compact(snap);
+        }
 
-        PlaylistManager(String d) { dir = new File(d); }
+        /* Called by the station's checkpoint tick */
+        void checkpoint(File song, long samples) {
+            PlaylistSnapshot snap = current.get();
+            int index = song.equals(snap.current()) ? snap.idx : snap.tracks.indexOf(song);
+            if (index < 0) return;
+            journal.checkpoint(index, samples, song.getName());
+            if (journal.wantsCompaction(snap.tracks.size()) && compactionQueued.compareAndSet(false, true)) {
+                scheduler.execute(() -> {
+                    try {
+                        compactJournal();
+                    } finally {
+                        compactionQueued.set(false);
+                    }
+                });
+            }
+        }
+
+        void closeJournal() {
+            journal.flush();
+            journal.close();
+        }
+
+        String journalStats() { return journal.stats(); }
+
+        /** The current playlist; never blocks. */
+        PlaylistSnapshot snapshot() { return current.get(); }
 
-        synchronized void scanDirectory() {
-            int oldSize = list.size();
-            list.clear();
+        /**
+         * Full reconcile with the directory: listed tracks that are gone are
+         * removed, files not listed yet are appended oldest first. Costs a walk
+         * of the whole directory; the watcher keeps it off the common path.
+         */
+        void scanDirectory() {
             File[] files = dir.listFiles((f,n)->n.endsWith(".mp3"));
-            if (files != null) Collections.addAll(list, files);
-            
-            if (list.size() > oldSize) {
-                System.out.println("📋 Playlist updated: " + list.size() + " tracks");
-                // If this is the first song and radio wasn't active, start it
-                if (!isRadioActive && !list.isEmpty()) {
-                    isRadioActive = true;
-                    resetCurrentSong();
-                    System.out.println("🎵 Radio starting with first song!");
+            List<File> onDisk = files == null ? new ArrayList<>() : Arrays.asList(files);
+            Set<File> present = new HashSet<>(onDisk);
+            List<File> found;
+            List<File> gone = new ArrayList<>();
+
+            /* Stat the new files before taking the lock: a first scan can be thousands of them */
+            Set<File> listed = new HashSet<>(current.get().tracks);
+            Map<File, Long> fresh = new HashMap<>();
+            for (File f : onDisk) if (!listed.contains(f)) fresh.put(f, f.lastModified()); // one stat each
+            List<File> byAge = new ArrayList<>(fresh.keySet());
+            byAge.sort((x, y) -> {
+                int c = Long.compare(fresh.get(x), fresh.get(y));
+                return c != 0 ? c : x.getName().compareTo(y.getName());
+            });
+
+            synchronized (writeLock) {
+                for (File t : current.get().tracks) {
+                    if (present.contains(t)) continue;
+                    removeLocked(current.get().tracks.indexOf(t));
+                    gone.add(t);
                 }
+                appendLocked(byAge); // skips any listed since the copy
+                found = current.get().tracks;
             }
-            
-            if (!list.isEmpty()) {
-                updateCurrentTrackDuration();
+
+            for (File f : gone) {
+                pcmCache.invalidate(f);
+                trackIndex.remove(f);
+            }
+            trackIndex.retainOnly(dir, found);
+            trackIndex.probeAll(found); // parallel, only files that are new or changed
+        }
+
+        /**
+         * Appends the files not listed yet, in the given order, as one change;
+         * files already listed are re-probed if they changed on disk. Returns
+         * how many were appended. No directory walk.
+         */
+        int addTracks(List<File> files) {
+            int added;
+            synchronized (writeLock) {
+                added = appendLocked(files);
             }
+            trackIndex.probeAll(files);
+            return added;
         }
 
-        synchronized boolean hasSongs() { return !list.isEmpty(); }
-        synchronized int getSongCount() { return list.size(); }
-        synchronized File getCurrentTrack() { return list.isEmpty() ? null : list.get(idx); }
-        synchronized List<File> getPlaylist() { return new ArrayList<>(list); }
-        synchronized int getCurrentSongIndex() { return idx; }
+        /**
+         * Removes tracks whose files are gone. A removed current track is
+         * skipped first, as with {@link #deleteSong}. Returns how many were listed.
+         */
+        int removeTracks(List<File> files) {
+            int removed = 0;
+            synchronized (writeLock) {
+                for (File f : files) {
+                    if (!members.contains(f)) continue; // never listed, or already removed by deleteSong
+                    removeLocked(current.get().tracks.indexOf(f));
+                    removed++;
+                }
+            }
+            for (File f : files) {
+                pcmCache.invalidate(f);
+                trackIndex.remove(f);
+            }
+            return removed;
+        }
 
-        synchronized boolean deleteSong(int songIndex) {
-            if (songIndex < 0 || songIndex >= list.size()) {
-                System.out.println("❌ Invalid song index.");
-                return false;
+        /* Appends the files not listed yet as one change, starting an idle station; writeLock held */
+        private int appendLocked(List<File> files) {
+            PlaylistSnapshot before = current.get();
+            Changes changes = new Changes(before.version);
+            List<File> list = new ArrayList<>(before.tracks.size() + files.size());
+            list.addAll(before.tracks);
+            for (File f : files) {
+                if (!members.add(f)) continue;
+                changes.record(ControlProtocol.OP_ADD, list.size(), 0, f.getName());
+                list.add(f);
             }
-        
-            File songToDelete = list.get(songIndex);
-            String songName = songToDelete.getName();
-            boolean wasCurrentSong = (songIndex == idx);
+            int added = list.size() - before.tracks.size();
+            if (added == 0) return 0;
+
+            publish(before, list, before.idx, changes);
+            System.out.println("📋 [" + station.id + "] Playlist updated: " + list.size() + " tracks");
+            // If this is the first song and radio wasn't active, start it
+            if (!station.isRadioActive) {
+                station.isRadioActive = true;
+                resetCurrentSong();
+                System.out.println("🎵 [" + station.id + "] Radio starting with first song!");
+            }
+            updateCurrentTrackDuration();
+            return added;
+        }
+
+        /* Removes one track, switching away first if it is playing; returns whether it was; writeLock held */
+        private boolean removeLocked(int songIndex) {
+            PlaylistSnapshot before = current.get();
+            File track = before.tracks.get(songIndex);
+            boolean wasCurrentSong = (songIndex == before.idx);
         
             // If deleting the current song, we must switch tracks first to release the file lock.
             if (wasCurrentSong) {
                 System.out.println("🎵 Current song is playing. Switching to the next track before deleting...");
                 // Note: moveToNextTrack() also calls resetCurrentSong() and updateCurrentTrackDuration()
                 moveToNextTrack();
-                songWasManuallyChanged = true; // Signal the streamer to restart with the new song
+                station.songWasManuallyChanged = true; // Signal the streamer to restart with the new song
+                before = current.get();
+            }
+        
+            // Update the playlist data structure
+            List<File> list = new ArrayList<>(before.tracks);
+            list.remove(songIndex);
+            members.remove(track);
+            Changes changes = new Changes(before.version);
+            changes.record(ControlProtocol.OP_REMOVE, songIndex, 0, null);
+            System.out.println("📋 Removed '" + track.getName() + "' from playlist.");
+        
+            // If a song before the current one was deleted (including the one we just
+            // moved away from), the current index shifts down.
+            int idx = before.idx;
+            if (songIndex < idx) {
+                idx--;
+            }
+        
+            // If the playlist is now empty, turn off the radio.
+            if (list.isEmpty()) {
+                station.isRadioActive = false;
+                idx = 0;
+                station.currentTime = 0;
+                station.totalDuration = 0;
+                station.songWasManuallyChanged = true; // Ensure streamer loop stops
+                System.out.println("📻 [" + station.id + "] Playlist is empty. Radio OFF AIR.");
+            }
+            publish(before, list, idx, changes);
+            return wasCurrentSong;
+        }
+
+        boolean hasSongs()          { return !current.get().tracks.isEmpty(); }
+        int getSongCount()          { return current.get().tracks.size(); }
+        File getCurrentTrack()      { return current.get().current(); }
+        List<File> getPlaylist()    { return current.get().tracks; }
+        int getCurrentSongIndex()   { return current.get().idx; }
+        File getNextTrack()         { return current.get().next(); }
+        int getVersion()            { return current.get().version; }
+        byte[] changesSince(int known) { return current.get().changesSince(known); }
+        String getPlaylistStateJson()  { return current.get().toJson(station.totalDuration); }
+
+        boolean deleteSong(int songIndex) {
+            File songToDelete;
+            String songName;
+            boolean wasCurrentSong;
+            synchronized (writeLock) {
+                PlaylistSnapshot before = current.get();
+                if (songIndex < 0 || songIndex >= before.tracks.size()) {
+                    System.out.println("❌ Invalid song index.");
+                    return false;
+                }
+        
+                songToDelete = before.tracks.get(songIndex);
+                songName = songToDelete.getName();
+                wasCurrentSong = removeLocked(songIndex);
+            }
+        
+            // Published after the writer lock is released
+            station.broadcastPlaylistUpdate();
+        
+            // Defer the actual file deletion to give the streamer time to release the file lock.
+            // Give the streamer a moment to kill the old ffmpeg process.
+            scheduler.schedule(() -> {
+                pcmCache.invalidate(songToDelete);
+                trackIndex.remove(songToDelete);
+                if (songToDelete.delete()) {
+                    System.out.println("🗑️ Deleted song file: " + songName);
+                } else {
+                    System.out.println("❌ Failed to delete song file: " + songName + ". It may still be locked.");
+                }
+            }, wasCurrentSong ? 1 : 0, TimeUnit.SECONDS);
+        
+            return true; // Logical deletion was successful.
+        }
+
+        void moveToNextTrack() {
+            synchronized (writeLock) {
+                PlaylistSnapshot before = current.get();
+                if (!before.tracks.isEmpty()) {
+                    publish(before, before.tracks, (before.idx + 1) % before.tracks.size(), new Changes(before.version));
+                    resetCurrentSong();
+                    updateCurrentTrackDuration();
+                    System.out.println("🎵 [" + station.id + "] Now playing: " + getCurrentTrack().getName());
+                }
+            }
+        }
+
+        /* Builds, logs and publishes the next snapshot; writeLock held */
+        private void publish(PlaylistSnapshot before, List<File> tracks, int idx, Changes changes) {
+            if (idx >= tracks.size()) idx = 0;
+            int now = tracks.isEmpty() ? -1 : idx;
+            if (now != before.nowPlaying()) changes.record(ControlProtocol.OP_NOW_PLAYING, now, 0, null);
+            if (changes.ops.isEmpty()) return; // nothing a reader could tell apart
+
+            int keep = Math.min(before.ops.length, PLAYLIST_OPLOG - Math.min(changes.ops.size(), PLAYLIST_OPLOG));
+            PlaylistOp[] ops = new PlaylistOp[keep + Math.min(changes.ops.size(), PLAYLIST_OPLOG)];
+            System.arraycopy(before.ops, before.ops.length - keep, ops, 0, keep);
+            List<PlaylistOp> added = changes.ops.subList(changes.ops.size() - (ops.length - keep), changes.ops.size());
+            for (int i = 0; i < added.size(); i++) ops[keep + i] = added.get(i);
+
+            List<File> frozen = tracks == before.tracks ? before.tracks
+                                                        : Collections.unmodifiableList(new ArrayList<>(tracks));
+            journal.ops(changes.ops); // queued before the swap, so a compaction's mark never falls between the two
+            current.set(new PlaylistSnapshot(frozen, idx, changes.version, ops));
+        }
+
+        private void resetCurrentSong() {
+            station.currentTime = 0.0;
+            station.songStartTime = System.currentTimeMillis();
+        }
+
+        /* Index lookup only; an unknown track gets a provisional duration until its probe lands */
+        private void updateCurrentTrackDuration() {
+            File current = getCurrentTrack();
+            if (current == null) {
+                station.totalDuration = 0.0;
+                return;
+            }
+            TrackIndex.TrackInfo info = trackIndex.lookup(current);
+            if (info != null) {
+                station.totalDuration = info.duration;
+                return;
+            }
+            long cached = pcmCache.cachedBytes(current);
+            station.totalDuration = cached > 0 ? cached / (double) BYTES_PER_SEC : 180.0; // fallback
+            trackIndex.probe(current);
+        }
+
+        /* Probe-pool callback: a probe for `track` has finished */
+        void trackProbed(File track, TrackIndex.TrackInfo info) {
+            synchronized (writeLock) { // so a track change cannot slip between the check and the write
+                if (track.equals(getCurrentTrack())) station.totalDuration = info.duration;
+            }
+        }
+
+        /* Ops of one change, chained by version */
+        private static final class Changes {
+            final List<PlaylistOp> ops = new ArrayList<>();
+            int version;
+
+            Changes(int version) { this.version = version; }
+
+            void record(byte kind, int index, int to, String title) {
+                int base = version;
+                version = ControlState.nextVersion();
+                ops.add(new PlaylistOp(kind, base, version, index, to, title));
+            }
+        }
+    }
+
+    /* ---------------------------------------------------------- *
+     *  STATE JOURNAL (playlist ops + play position checkpoints)
+     * ---------------------------------------------------------- */
+    /**
+     * Append-only record of one station's queue and play position. A restart
+     * replays it to get the same queue back at the same sample, without
+     * walking the directory or probing a file. One text line per record:
+     * <pre>
+     * S                          snapshot: what follows starts from an empty list
+     * A  index  name             track added
+     * R  index                   track removed
+     * M  from   to               track moved
+     * N  index                   now playing (-1: none)
+     * C  index  samples  name    checkpoint: `name` was playing at this sample offset
+     * X                          unreplayable from here (a name with a line break)
+     * </pre>
+     * The playlist's writer path queues ops as it publishes them. The station
+     * queues a checkpoint every JOURNAL_CHECKPOINT_MS and at shutdown. Queued
+     * records are written in order on the shared scheduler, so neither the
+     * writer lock nor the stream worker ever waits on the file.
+     * Nothing is fsynced, so a crash loses at most what the OS had not written
+     * yet. Replay stops at the first record it cannot apply. Once the records
+     * outnumber the tracks JOURNAL_COMPACT_RATIO times over, the journal is
+     * rewritten on the shared scheduler: a snapshot, then whatever was appended
+     * while the snapshot was being written.
+     */
+    static class PlaylistJournal {
+
+        private static final class Queued {
+            final String lines;
+            final int    count;
+            final long   seq;
+
+            Queued(String lines, int count, long seq) {
+                this.lines = lines;
+                this.count = count;
+                this.seq = seq;
+            }
+        }
+
+        /** What replay recovered. */
+        static final class Replay {
+            final List<String> names;
+            final int          idx;
+            final String       checkpointName; // null: no checkpoint for the track at idx
+            final long         checkpointSamples;
+
+            Replay(List<String> names, int idx, String checkpointName, long checkpointSamples) {
+                this.names = names;
+                this.idx = idx;
+                this.checkpointName = checkpointName;
+                this.checkpointSamples = checkpointSamples;
+            }
+        }
+
+        private final File   file;
+        private Writer       out;            // append mode; null until opened or after a failure
+        private int          records = 0;    // since the last snapshot
+        private String       lastCheckpoint; // carried into the next snapshot
+        private List<String> sinceMark;      // appended while a compaction runs
+        private int          markRecords;
+        private long         markSeq;        // records queued from here on belong after the snapshot
+        private final ArrayDeque<Queued> queue = new ArrayDeque<>(); // guarded by itself
+        private long         queuedSeq = 0;  // sequence of the next record queued; queue lock
+        private boolean      flushQueued = false; // queue lock
+        private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+        PlaylistJournal(File file) {
+            this.file = file;
+        }
+
+        /** Reads the journal; null if there is none or it does not start with a snapshot. */
+        Replay replay() {
+            if (!file.isFile()) return null;
+            List<String> names = new ArrayList<>();
+            int idx = 0;
+            String cpName = null;
+            long cpSamples = 0;
+            boolean snapshot = false;
+            int lines = 0;
+            try (BufferedReader r = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String ln;
+                while ((ln = r.readLine()) != null) {
+                    // Hand-parsed: this runs cold at startup, once per track of a large library
+                    int t1 = ln.indexOf('\t'), t2 = t1 < 0 ? -1 : ln.indexOf('\t', t1 + 1);
+                    int end = t2 < 0 ? ln.length() : t2;
+                    try {
+                        switch (ln.isEmpty() ? '?' : ln.charAt(0)) {
+                            case 'S': names.clear(); idx = 0; cpName = null; snapshot = true; break;
+                            case 'A': if (t2 < 0) throw new IllegalStateException("torn");
+                                      names.add(Integer.parseInt(ln, t1 + 1, end, 10), ln.substring(t2 + 1)); break;
+                            case 'R': names.remove(Integer.parseInt(ln, t1 + 1, end, 10)); break;
+                            case 'M': names.add(Integer.parseInt(ln, t2 + 1, ln.length(), 10),
+                                                names.remove(Integer.parseInt(ln, t1 + 1, end, 10))); break;
+                            case 'N': idx = Math.max(0, Integer.parseInt(ln, t1 + 1, end, 10)); break;
+                            case 'C': {
+                                int t3 = ln.indexOf('\t', t2 + 1);
+                                cpSamples = Long.parseLong(ln, t2 + 1, t3, 10);
+                                cpName = ln.substring(t3 + 1);
+                                break;
+                            }
+                            default:  throw new IllegalStateException(ln.isEmpty() ? "empty" : ln.substring(0, 1)); // X, or a torn line
+                        }
+                    } catch (RuntimeException e) {
+                        System.err.println("⚠️ Journal " + file + ": stopped at record " + (lines + 1) + " (" + e + ")");
+                        break;
+                    }
+                    lines++;
+                }
+            } catch (IOException e) {
+                System.err.println("❌ Journal " + file + " unreadable: " + e.getMessage());
+                return null;
+            }
+            if (!snapshot) return null;
+            if (idx >= names.size()) idx = 0;
+            records = lines;
+            return new Replay(names, idx, cpName, cpSamples);
+        }
+
+        synchronized void open() {
+            if (out != null) return;
+            try {
+                out = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.err.println("❌ Journal " + file + " not writable, state will not survive a restart: " + e.getMessage());
+            }
+        }
+
+        synchronized void close() {
+            if (out == null) return;
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+        }
+
+        /* Called by the playlist's writer path, in publish order */
+        void ops(List<PlaylistOp> ops) {
+            StringBuilder sb = new StringBuilder();
+            for (PlaylistOp op : ops) {
+                switch (op.kind) {
+                    case ControlProtocol.OP_ADD:
+                        if (op.title.indexOf('\n') >= 0 || op.title.indexOf('\r') >= 0) { sb.append("X\n"); break; }
+                        sb.append("A\t").append(op.index).append('\t').append(op.title).append('\n');
+                        break;
+                    case ControlProtocol.OP_REMOVE: sb.append("R\t").append(op.index).append('\n'); break;
+                    case ControlProtocol.OP_MOVE:   sb.append("M\t").append(op.index).append('\t').append(op.to).append('\n'); break;
+                    default:                        sb.append("N\t").append(op.index).append('\n'); break;
+                }
+            }
+            enqueue(sb.toString(), ops.size());
+        }
+
+        void checkpoint(int index, long samples, String name) {
+            if (name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) return;
+            String line = "C\t" + index + "\t" + samples + "\t" + name + "\n";
+            synchronized (this) {
+                if (line.equals(lastCheckpoint)) return; // paused or idle: nothing new
+                lastCheckpoint = line;
+            }
+            enqueue(line, 1);
+        }
+
+        /* Never blocks on I/O: the records are written by a flush on the scheduler */
+        private void enqueue(String lines, int count) {
+            boolean submit;
+            synchronized (queue) {
+                queue.add(new Queued(lines, count, queuedSeq++));
+                submit = !flushQueued;
+                flushQueued = true;
+            }
+            if (submit) {
+                try {
+                    scheduler.execute(this::flush);
+                } catch (RejectedExecutionException e) {
+                    flush(); // shutting down
+                }
+            }
+        }
+
+        /** Writes everything queued so far, in queue order. */
+        synchronized void flush() {
+            for (;;) {
+                Queued q;
+                synchronized (queue) {
+                    q = queue.poll();
+                    if (q == null) {
+                        flushQueued = false;
+                        return;
+                    }
+                }
+                append(q.lines, q.count, q.seq);
+            }
+        }
+
+        private synchronized void append(String lines, int count, long seq) {
+            if (out == null) return;
+            try {
+                out.write(lines);
+                out.flush(); // to the OS, not to disk
+                records += count;
+                if (sinceMark != null && seq >= markSeq) {
+                    sinceMark.add(lines);
+                    markRecords += count;
+                }
+            } catch (IOException e) {
+                System.err.println("❌ Journal " + file + " write failed, journaling off: " + e.getMessage());
+                close();
+            }
+        }
+
+        boolean wantsCompaction(int tracks) {
+            return records > JOURNAL_COMPACT_MIN && records > (long) tracks * JOURNAL_COMPACT_RATIO && !compacting.get();
+        }
+
+        /*
+         * Phase 1, with the playlist's writer lock held so no op slips between the
+         * snapshot and the mark: records queued from now on are also kept aside.
+         * Ones queued earlier are in the snapshot, even if not written yet.
+         */
+        boolean mark() {
+            if (!compacting.compareAndSet(false, true)) return false;
+            long seq;
+            synchronized (queue) { seq = queuedSeq; }
+            synchronized (this) {
+                sinceMark = new ArrayList<>();
+                markRecords = 0;
+                markSeq = seq;
+            }
+            return true;
+        }
+
+        /* Phase 2, no playlist lock: write the snapshot, add what came since the mark, swap it in */
+        void compact(PlaylistSnapshot snap) {
+            File tmp = new File(file.getPath() + ".tmp");
+            try {
+                int n = 1;
+                try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+                    w.write("S\n");
+                    for (int i = 0; i < snap.tracks.size(); i++) {
+                        String name = snap.tracks.get(i).getName();
+                        if (name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) { w.write("X\n"); n++; break; }
+                        w.write("A\t" + i + "\t" + name + "\n");
+                        n++;
+                    }
+                    w.write("N\t" + snap.nowPlaying() + "\n");
+                    n++;
+                    String cp;
+                    synchronized (this) { cp = lastCheckpoint; }
+                    if (cp != null) { w.write(cp); n++; }
+                }
+                synchronized (this) {
+                    try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp, true), StandardCharsets.UTF_8)) {
+                        for (String lines : sinceMark) w.write(lines);
+                    }
+                    n += markRecords;
+                    close();
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    records = n;
+                    open();
+                }
+            } catch (IOException e) {
+                System.err.println("❌ Journal compaction failed for " + file + ": " + e.getMessage());
+                tmp.delete();
+            } finally {
+                synchronized (this) { sinceMark = null; }
+                compacting.set(false);
+            }
+        }
+
+        synchronized String stats() {
+            return String.format("journal %s: %d records%s", file.getName(), records, out == null ? " (closed)" : "");
+        }
+    }
+
+    /* ---------------------------------------------------------- *
+     *  LIBRARY WATCHER (incremental indexing)
+     * ---------------------------------------------------------- */
+    /**
+     * Keeps every station's playlist in step with its directory without
+     * re-listing it. One thread holds a WatchService over all station
+     * directories. A created or modified .mp3 is held until it has been quiet
+     * for LIBRARY_SETTLE_MS, because a download may still be writing it, and is
+     * then appended. A deleted one is removed at once. Files that settle
+     * together become one playlist change. Each event costs a stat of that
+     * one file, never a directory walk.
+     *
+     * Events can be lost (OVERFLOW, a directory that goes away), so
+     * {@link PlaylistManager#scanDirectory} still runs as a full reconcile.
+     * It runs once the events that asked for it have gone quiet, and every
+     * LIBRARY_RECONCILE_MS as a safety net.
+     */
+    static class LibraryWatcher implements Runnable {
+        private final WatchService watcher;
+        private final Map<Path, Station> dirs = new HashMap<>();
+        private final Set<Station> watched = ConcurrentHashMap.newKeySet();
+        private final Map<Path, Long> settling = new HashMap<>();  // file -> quiet until (ms)
+        private final Set<Station> reconcile = new HashSet<>();   // stations owed a full reconcile
+        private long reconcileAt = Long.MAX_VALUE;
+        private long periodicAt;
+        private volatile long events = 0, added = 0, removed = 0, reconciles = 0, lastReconcileMs = 0;
+
+        private LibraryWatcher(WatchService watcher) {
+            this.watcher = watcher;
+        }
+
+        /** Watches every station's directory; null (callers rescan instead) if the platform cannot. */
+        static LibraryWatcher start(Station[] stations) {
+            LibraryWatcher w;
+            try {
+                w = new LibraryWatcher(FileSystems.getDefault().newWatchService());
+            } catch (IOException | UnsupportedOperationException e) {
+                System.err.println("❌ Library watcher unavailable, rescanning after downloads: " + e.getMessage());
+                return null;
+            }
+            for (Station st : stations) {
+                Path dir = st.dir.toPath(); // same form as the playlist's files, so File.equals matches
+                try {
+                    dir.register(w.watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                 StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    w.dirs.put(dir, st);
+                    w.watched.add(st);
+                } catch (IOException e) {
+                    System.err.println("❌ Cannot watch " + dir + ": " + e.getMessage());
+                }
+            }
+            Thread t = new Thread(w, "library-watcher");
+            t.setDaemon(true);
+            t.start();
+            System.out.println("👀 Watching " + w.watched.size() + " station directories");
+            return w;
+        }
+
+        boolean isWatching(Station st) { return watched.contains(st); }
+
+        @Override
+        public void run() {
+            periodicAt = LIBRARY_RECONCILE_MS > 0 ? System.currentTimeMillis() + LIBRARY_RECONCILE_MS : Long.MAX_VALUE;
+            try {
+                while (true) {
+                    long wait = nextDeadline() - System.currentTimeMillis();
+                    WatchKey key = wait > 0 ? watcher.poll(wait, TimeUnit.MILLISECONDS) : watcher.poll();
+                    for (; key != null; key = watcher.poll()) drain(key);
+
+                    long now = System.currentTimeMillis();
+                    settle(now);
+                    if (now >= periodicAt) {
+                        reconcile.addAll(watched);
+                        reconcileAt = now;
+                        periodicAt = now + LIBRARY_RECONCILE_MS;
+                    }
+                    if (now >= reconcileAt) reconcileNow();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                System.out.println("👀 Library watcher stopped");
+            }
+        }
+
+        private long nextDeadline() {
+            long next = Math.min(reconcileAt, periodicAt);
+            for (long t : settling.values()) next = Math.min(next, t);
+            return next;
+        }
+
+        private void drain(WatchKey key) {
+            Path dir = (Path) key.watchable();
+            Station st = dirs.get(dir);
+            long now = System.currentTimeMillis();
+            Map<Station, List<File>> gone = new HashMap<>();
+            for (WatchEvent<?> ev : key.pollEvents()) {
+                events++;
+                if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    requestReconcile(st, now); // events were dropped: only a walk can tell what changed
+                    continue;
+                }
+                Path file = dir.resolve((Path) ev.context());
+                if (!file.toString().endsWith(".mp3")) continue;
+                if (ev.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    settling.remove(file);
+                    gone.computeIfAbsent(st, s -> new ArrayList<>()).add(file.toFile());
+                } else {
+                    settling.put(file, now + LIBRARY_SETTLE_MS); // every write pushes it back
+                }
+            }
+            for (Map.Entry<Station, List<File>> e : gone.entrySet()) {
+                int n = e.getKey().playlistManager.removeTracks(e.getValue());
+                if (n > 0) {
+                    removed += n;
+                    e.getKey().broadcastPlaylistUpdate();
+                }
+            }
+            if (!key.reset()) {
+                System.err.println("❌ [" + st.id + "] Stopped watching " + dir + " (directory gone?)");
+                watched.remove(st);
+                requestReconcile(st, now);
+            }
+        }
+
+        /* Appends the files that have been quiet long enough, one change per station */
+        private void settle(long now) {
+            Map<Station, List<File>> ready = new HashMap<>();
+            for (Iterator<Map.Entry<Path, Long>> it = settling.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Path, Long> e = it.next();
+                if (e.getValue() > now) continue;
+                it.remove();
+                Path file = e.getKey();
+                if (ingest.isClaimed(file)) continue; // the ingest job lists it once it is probed and decoded
+                if (Files.isRegularFile(file)) {
+                    ready.computeIfAbsent(dirs.get(file.getParent()), s -> new ArrayList<>()).add(file.toFile());
+                }
+            }
+            for (Map.Entry<Station, List<File>> e : ready.entrySet()) {
+                List<File> files = e.getValue();
+                files.sort(Comparator.comparing(File::getName));
+                int n = e.getKey().playlistManager.addTracks(files);
+                if (n > 0) {
+                    added += n;
+                    e.getKey().broadcastPlaylistUpdate();
+                }
+            }
+        }
+
+        /* Debounced: every further request before the walk pushes it back */
+        private void requestReconcile(Station st, long now) {
+            reconcile.add(st);
+            reconcileAt = now + LIBRARY_SETTLE_MS;
+        }
+
+        private void reconcileNow() {
+            long t0 = System.nanoTime();
+            for (Station st : reconcile) {
+                st.playlistManager.scanDirectory();
+                st.broadcastPlaylistUpdate(); // nothing is sent if the walk found nothing new
+            }
+            reconcile.clear();
+            reconcileAt = Long.MAX_VALUE;
+            reconciles++;
+            lastReconcileMs = (System.nanoTime() - t0) / 1_000_000;
+        }
+
+        String stats() {
+            return String.format("library watcher: %d dirs, %d events, %d added, %d removed, %d reconciles (last %d ms), %d settling",
+                    watched.size(), events, added, removed, reconciles, lastReconcileMs, settling.size());
+        }
+    }
+
+    /* ---------------------------------------------------------- *
+     *  TRACK METADATA INDEX (persistent, probed in parallel)
+     * ---------------------------------------------------------- */
+    /**
+     * On-disk index of duration, sample count, size, mtime and a content hash
+     * per track. Lookups are in-memory and never block on ffprobe; new or changed
+     * files are probed by a small bounded pool and the index is rewritten
+     * (debounced) afterwards. A file whose mtime moved but whose content hash is
+     * unchanged is not probed again.
+     *
+     * The index loads in the background so a restart does not wait for it:
+     * lookups miss until it is in, and probes, removals and saves wait for it.
+     */
+    static class TrackIndex {
+        private static final int HASH_SAMPLE_BYTES = 64 * 1024; // hash covers head + tail + length
+
+        static final class TrackInfo {
+            final String name;      // path relative to the library root
+            final long   size;
+            final long   mtime;
+            final String hash;
+            final double duration;  // seconds
+            final long   samples;   // per channel at SAMPLE_RATE
+
+            TrackInfo(String name, long size, long mtime, String hash, double duration, long samples) {
+                this.name = name;
+                this.size = size;
+                this.mtime = mtime;
+                this.hash = hash;
+                this.duration = duration;
+                this.samples = samples;
+            }
+
+            TrackInfo withMtime(long newMtime) { return new TrackInfo(name, size, newMtime, hash, duration, samples); }
+        }
+
+        private final File file;
+        private final Path root;   // keys are paths relative to this, so stations never collide
+        private final Map<String, TrackInfo> byName = new ConcurrentHashMap<>();
+        private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+        private final ExecutorService probePool;
+        private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
+        private final CountDownLatch loaded = new CountDownLatch(1);
+        private volatile long probes = 0, hashHits = 0;
+
+        TrackIndex(File file, int threads) {
+            this.file = file;
+            this.root = file.getAbsoluteFile().getParentFile().toPath();
+            AtomicInteger n = new AtomicInteger();
+            this.probePool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+                Thread t = new Thread(r, "track-probe-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        void loadInBackground() {
+            Thread t = new Thread(this::load, "track-index-load");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void load() {
+            if (!file.exists()) {
+                loaded.countDown();
+                return;
+            }
+            try {
+                for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                    // size \t mtime \t hash \t duration \t samples \t name (name last: it may contain tabs)
+                    String[] f = line.split("\t", 6);
+                    if (f.length < 6) continue;
+                    byName.put(f[5], new TrackInfo(f[5], Long.parseLong(f[0]), Long.parseLong(f[1]), f[2],
+                                                   Double.parseDouble(f[3]), Long.parseLong(f[4])));
+                }
+                System.out.println("📇 Track index: " + byName.size() + " entries");
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("❌ Track index unreadable, re-probing library: " + e.getMessage());
+                byName.clear();
+            } finally {
+                loaded.countDown();
+            }
+        }
+
+        private void awaitLoaded() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    loaded.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        /* The entry for an unchanged file, else null */
+        private TrackInfo unchanged(File track) {
+            TrackInfo info = byName.get(key(track));
+            return info != null && info.size == track.length() && info.mtime == track.lastModified() ? info : null;
+        }
+
+        /** Cached info if the file is unchanged (same size and mtime), else null. Never blocks. */
+        TrackInfo lookup(File track) {
+            TrackInfo info = byName.get(key(track));
+            if (info == null || info.size != track.length()) return null;
+            if (info.mtime != track.lastModified()) {
+                probe(track);   // touched: verify the hash off-thread, keep serving the old entry
+            }
+            return info;
+        }
+
+        void probeAll(List<File> tracks) {
+            awaitLoaded();
+            for (File t : tracks) {
+                if (unchanged(t) == null) probe(t);
+            }
+        }
+
+        /** Queues a probe unless one for this file is already running. */
+        void probe(File track) {
+            String key = key(track);
+            if (!inFlight.add(key)) return;
+            probePool.submit(() -> {
+                try {
+                    awaitLoaded();
+                    TrackInfo info = unchanged(track); // a miss while the index was loading
+                    if (info == null) info = refresh(track);
+                    if (info != null) {
+                        for (Station st : allStations()) st.playlistManager.trackProbed(track, info);
+                    }
+                } finally {
+                    inFlight.remove(key);
+                }
+            });
+        }
+
+        /** Probes on the calling thread (the ingest pipeline); null if the file has no readable duration. */
+        TrackInfo probeNow(File track) {
+            awaitLoaded();
+            return refresh(track); // reuses the entry when the content hash matches
+        }
+
+        void remove(File track) {
+            awaitLoaded();
+            if (byName.remove(key(track)) != null) scheduleSave();
+        }
+
+        /** Drops entries for files of {@code dir} (one station's library) that are not in {@code tracks}. */
+        void retainOnly(File dir, List<File> tracks) {
+            awaitLoaded();
+            Set<String> keys = new HashSet<>();
+            for (File t : tracks) keys.add(key(t));
+            String prefix = key(dir);
+            prefix = prefix.isEmpty() ? "" : prefix + "/";
+            boolean changed = false;
+            for (String k : byName.keySet()) {
+                boolean inDir = k.startsWith(prefix) && k.indexOf('/', prefix.length()) < 0;
+                if (inDir && !keys.contains(k)) changed |= byName.remove(k) != null;
+            }
+            if (changed) scheduleSave();
+        }
+
+        /* Path relative to the library root with '/' separators; plain file name for the default station */
+        private String key(File f) {
+            return root.relativize(f.getAbsoluteFile().toPath()).toString().replace(File.separatorChar, '/');
+        }
+
+        String stats() {
+            return String.format("track index: %d entries, %d probes run, %d re-probes avoided by hash, %d queued",
+                    byName.size(), probes, hashHits, inFlight.size());
+        }
+
+        private TrackInfo refresh(File track) {
+            long size = track.length(), mtime = track.lastModified();
+            String hash;
+            try {
+                hash = contentHash(track);
+            } catch (IOException e) {
+                System.err.println("❌ Cannot hash " + track.getName() + ": " + e.getMessage());
+                return null;
+            }
+            TrackInfo old = byName.get(key(track));
+            if (old != null && old.size == size && old.hash.equals(hash)) {
+                hashHits++;
+                TrackInfo info = old.withMtime(mtime);
+                byName.put(info.name, info);
+                scheduleSave();
+                return info;
+            }
+            double duration = ffprobeDuration(track);
+            if (duration <= 0) return null;
+            probes++;
+            TrackInfo info = new TrackInfo(key(track), size, mtime, hash, duration, Math.round(duration * SAMPLE_RATE));
+            byName.put(info.name, info);
+            scheduleSave();
+            return info;
+        }
+
+        private static double ffprobeDuration(File track) {
+            try {
+                // Use ffprobe to get duration in seconds
+                Process p = new ProcessBuilder(
+                    "ffprobe", "-v", "error", "-show_entries",
+                    "format=duration", "-of",
+                    "default=noprint_wrappers=1:nokey=1",
+                    track.getAbsolutePath()
+                ).redirectErrorStream(true).start();
+                String line;
+                try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                    line = r.readLine();
+                }
+                p.waitFor();
+                return line == null ? -1 : Double.parseDouble(line.trim());
+            } catch (Exception e) {
+                System.err.println("Failed to get duration for " + track.getName() + ": " + e.getMessage());
+                return -1;
+            }
+        }
+
+        private static String contentHash(File track) throws IOException {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            byte[] buf = new byte[HASH_SAMPLE_BYTES];
+            try (RandomAccessFile raf = new RandomAccessFile(track, "r")) {
+                long len = raf.length();
+                int head = (int) Math.min(len, HASH_SAMPLE_BYTES);
+                raf.readFully(buf, 0, head);
+                md.update(buf, 0, head);
+                if (len > HASH_SAMPLE_BYTES) {
+                    int tail = (int) Math.min(len - HASH_SAMPLE_BYTES, HASH_SAMPLE_BYTES);
+                    raf.seek(len - tail);
+                    raf.readFully(buf, 0, tail);
+                    md.update(buf, 0, tail);
+                }
+                md.update(Long.toString(len).getBytes(StandardCharsets.US_ASCII));
+            }
+            StringBuilder hex = new StringBuilder();
+            byte[] digest = md.digest();
+            for (int i = 0; i < 16; i++) hex.append(String.format("%02x", digest[i]));
+            return hex.toString();
+        }
+
+        private void scheduleSave() {
+            if (saveScheduled.compareAndSet(false, true)) {
+                scheduler.schedule(this::save, 2, TimeUnit.SECONDS);
+            }
+        }
+
+        /* Write to a temp file and move it over the index so a crash never leaves half a file */
+        private void save() {
+            awaitLoaded(); // never write out a half-loaded index
+            saveScheduled.set(false);
+            StringBuilder sb = new StringBuilder();
+            for (TrackInfo i : byName.values()) {
+                if (i.name.indexOf('\n') >= 0) continue;
+                sb.append(i.size).append('\t').append(i.mtime).append('\t').append(i.hash).append('\t')
+                  .append(i.duration).append('\t').append(i.samples).append('\t').append(i.name).append('\n');
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            try {
+                Files.write(tmp.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("❌ Failed to save track index: " + e.getMessage());
+            }
+        }
+    }
+
+    /* ---------------------------------------------------------- *
+     *  PCM SOURCES & DECODE-ONCE CACHE
+     * ---------------------------------------------------------- */
+    /** A stream of s16le stereo PCM for one track. */
+    interface PcmSource extends AutoCloseable {
+        /** Reads up to {@code len} bytes; returns -1 at end of track, 0 if nothing is ready yet. */
+        int read(byte[] buf, int off, int len) throws IOException;
+
+        /** Bytes left until end of track, or -1 if the source cannot tell. */
+        default long remainingBytes() { return -1; }
+
+        @Override
+        void close();
+    }
+
+    /** Live decode through an ffmpeg pipe, used until a track is in the cache. */
+    static final class FfmpegPcmSource implements PcmSource {
+        private final Process     ffmpeg;
+        private final InputStream pcm;
+
+        private FfmpegPcmSource(Process ffmpeg) {
+            this.ffmpeg = ffmpeg;
+            this.pcm    = ffmpeg.getInputStream();
+        }
+
+        static FfmpegPcmSource start(File song, double seekSeconds) throws IOException {
+            return new FfmpegPcmSource(new ProcessBuilder(
+                    "ffmpeg",
+                    "-loglevel", "quiet",
+                    "-ss", String.format("%.3f", Math.max(0, seekSeconds)),   // Accurate seek
+                    "-i",  song.getAbsolutePath(),
+                    "-f",  "s16le",
+                    "-acodec", "pcm_s16le",
+                    "-ac", "2",
+                    "-ar", String.valueOf(SAMPLE_RATE),
+                    "-"
+            ).start());
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            // Whole frames only: a pipe may hand back any byte count, codecs need whole samples
+            int n = pcm.readNBytes(buf, off, len);
+            int whole = n - n % BYTES_PER_SAMPLE_FRAME;
+            return whole == 0 && len > 0 ? -1 : whole;
+        }
+
+        /** Stops ffmpeg without touching the pipe, so a thread blocked reading it sees end of stream. */
+        void kill() {
+            ffmpeg.destroyForcibly();
+        }
+
+        @Override
+        public void close() {
+            try { pcm.close(); } catch (IOException ignored) { }
+            ffmpeg.destroyForcibly();
+        }
+    }
+
+    /** Frames served from a memory-mapped cache file; seeking is an offset. */
+    static final class MappedPcmSource implements PcmSource {
+        private final MappedByteBuffer map;
+        private final PcmCache.Entry   entry;
+        private boolean closed = false;
+
+        MappedPcmSource(MappedByteBuffer map, PcmCache.Entry entry, long startByte) {
+            this.map   = map;
+            this.entry = entry;
+            map.position((int) Math.min(map.limit(), startByte));
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) {
+            int n = Math.min(len, map.remaining());
+            if (n <= 0) return -1;
+            map.get(buf, off, n);
+            return n;
+        }
+
+        @Override
+        public long remainingBytes() { return map.remaining(); }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            entry.unpin();
+        }
+    }
+
+    /**
+     * What the stream worker plays from: opens a track on a reader thread, so
+     * the worker never forks ffmpeg, opens or maps a file, or blocks on a pipe.
+     * A cached track is then read straight from its mapping. A live decode is
+     * pumped by the reader thread into a ring of about three seconds, and
+     * {@link #read} only hands out what is already in it: a full frame, or 0
+     * while the decoder has not caught up, in which case the worker skips the
+     * tick.
+     */
+    static final class AsyncPcmSource implements PcmSource {
+        private static final int RING_BYTES = 1 << 19; // power of two
+        private static final ExecutorService READERS = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "pcm-reader");
+            t.setDaemon(true);
+            return t;
+        });
+
+        private final File song;
+        private PcmSource           direct;          // the cached mapping, once open; guarded by this
+        private volatile PcmSource  mapped;          // same, for the worker's reads
+        private volatile boolean    openFailed = false;
+        private volatile boolean    decodeFailed = false;
+        private volatile boolean    closed = false;
+        private volatile boolean    eof = false;     // the reader wrote its last byte
+        private volatile Thread     reader;          // set while a live decode pumps the ring
+        private volatile FfmpegPcmSource live;       // that decode
+
+        /* Single producer (the reader), single consumer (the stream worker) */
+        private byte[]        ring;                  // published by the first write to `written`
+        private volatile long written  = 0;
+        private volatile long consumed = 0;
+
+        private AsyncPcmSource(File song) {
+            this.song = song;
+        }
+
+        /** Starts opening {@code song} at {@code startSample} and returns at once. */
+        static AsyncPcmSource open(File song, long startSample) {
+            AsyncPcmSource src = new AsyncPcmSource(song);
+            READERS.execute(() -> src.run(startSample));
+            return src;
+        }
+
+        /** Warms the PCM cache for {@code song} off the calling thread. */
+        static void prefetch(File song) {
+            if (song != null) READERS.execute(() -> pcmCache.prefetch(song));
+        }
+
+        /** True once opening has failed for good; the caller retries later. */
+        boolean openFailed() { return openFailed; }
+
+        /* Sample-exact from the cache; ffmpeg seeks to the nearest millisecond */
+        private void run(long startSample) {
+            PcmSource src = pcmCache.open(song, startSample * BYTES_PER_SAMPLE_FRAME);
+            if (src == null) {
+                try {
+                    src = FfmpegPcmSource.start(song, startSample / (double) SAMPLE_RATE);
+                } catch (IOException e) {
+                    System.err.println("❌ Failed to start ffmpeg for " + song.getName() + ": " + e.getMessage());
+                    openFailed = true;
+                    return;
+                }
+            }
+            pcmCache.prefetch(song);
+            if (src instanceof FfmpegPcmSource) {
+                live = (FfmpegPcmSource) src;
+                if (closed) live.kill(); // closed while ffmpeg was starting
+            }
+            if (src instanceof MappedPcmSource) {
+                synchronized (this) {
+                    if (!closed) {
+                        direct = src;
+                        mapped = src;
+                        return;
+                    }
+                }
+                src.close();
+                return;
+            }
+            pump(src);
+        }
+
+        private void pump(PcmSource src) {
+            reader = Thread.currentThread();
+            ring = new byte[RING_BYTES];
+            byte[] chunk = new byte[PCM_FRAME_BYTES];
+            try {
+                while (!closed) {
+                    int n = src.read(chunk, 0, chunk.length);
+                    if (n < 0) break;
+                    while (!closed && RING_BYTES - (written - consumed) < n) LockSupport.park(this);
+                    if (closed) break;
+                    int at = (int) (written & (RING_BYTES - 1));
+                    int first = Math.min(n, RING_BYTES - at);
+                    System.arraycopy(chunk, 0, ring, at, first);
+                    System.arraycopy(chunk, first, ring, 0, n - first);
+                    written += n;
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("❌ Live decode of " + song.getName() + " failed: " + e.getMessage());
+                    decodeFailed = true;
+                }
+            } finally {
+                reader = null;
+                eof = true;
+                src.close();
+            }
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            PcmSource m = mapped;
+            if (m != null) return m.read(buf, off, len);
+            if (decodeFailed) throw new IOException("live decode of " + song.getName() + " failed");
+            boolean end = eof; // before `written`, so nothing lands after it
+            long c = consumed, avail = written - c;
+            int n = (int) Math.min(len, avail);
+            n -= n % BYTES_PER_SAMPLE_FRAME;
+            if (n < len && !end) return 0; // a short frame only at the very end
+            if (n == 0) return -1;
+            int at = (int) (c & (RING_BYTES - 1));
+            int first = Math.min(n, RING_BYTES - at);
+            System.arraycopy(ring, at, buf, off, first);
+            System.arraycopy(ring, 0, buf, off + first, n - first);
+            consumed = c + n;
+            if (RING_BYTES - avail < PCM_FRAME_BYTES) {
+                Thread t = reader;
+                if (t != null) LockSupport.unpark(t); // it may be waiting for room
+            }
+            return n;
+        }
+
+        @Override
+        public long remainingBytes() {
+            PcmSource m = mapped;
+            return m == null ? -1 : m.remainingBytes();
+        }
+
+        @Override
+        public void close() {
+            PcmSource d;
+            synchronized (this) {
+                closed = true;
+                d = direct;
+                direct = null;
+            }
+            if (d != null) d.close();
+            FfmpegPcmSource f = live;
+            if (f != null) f.kill(); // the reader may be blocked on the pipe
+            Thread t = reader;
+            if (t != null) LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Decodes each track once into a raw s16le file and serves it memory-mapped.
+     * Entries are keyed by a hash of the canonical path plus size and mtime, so
+     * a replaced file is decoded again. Total size is capped; least recently used unpinned entries are
+     * evicted. Decoding runs on one background thread, never on the stream path.
+     */
+    static class PcmCache {
+
+        static final class Entry {
+            final String key;
+            final File   pcm;
+            final long   bytes;
+            private int  pins = 0;
+
+            Entry(String key, File pcm, long bytes) {
+                this.key = key;
+                this.pcm = pcm;
+                this.bytes = bytes;
+            }
+
+            synchronized void pin()      { pins++; }
+            synchronized void unpin()    { pins--; }
+            synchronized boolean pinned() { return pins > 0; }
+        }
+
+        private final File dir;
+        private final long maxBytes;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // LRU order
+        private final Set<String> decoding = new HashSet<>();
+        private final ExecutorService decoder = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "pcm-decoder");
+            t.setDaemon(true);
+            return t;
+        });
+        private long totalBytes = 0;
+        private volatile long hits = 0, misses = 0, evictions = 0;
+
+        PcmCache(File dir, long maxBytes) {
+            this.dir = dir;
+            this.maxBytes = maxBytes;
+        }
+
+        /** Registers cache files left by a previous run, oldest first. */
+        synchronized void load() {
+            if (!dir.exists()) dir.mkdirs();
+            File[] files = dir.listFiles((f, n) -> n.endsWith(".s16le"));
+            if (files == null) return;
+            Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (File f : files) {
+                String name = f.getName();
+                String key = name.substring(0, name.length() - ".s16le".length());
+                entries.put(key, new Entry(key, f, f.length()));
+                totalBytes += f.length();
+            }
+            File[] parts = dir.listFiles((f, n) -> n.endsWith(".part"));
+            if (parts != null) for (File tmp : parts) tmp.delete();
+            evict();
+            if (!entries.isEmpty()) {
+                System.out.println("💾 PCM cache: " + entries.size() + " tracks, " + (totalBytes >> 20) + " MB");
+            }
+        }
+
+        /**
+         * Opens {@code song} at {@code startByte} from the cache, or returns null
+         * (and starts a background decode) if it is not cached yet.
+         */
+        PcmSource open(File song, long startByte) {
+            Entry e;
+            synchronized (this) {
+                e = entries.get(keyOf(song));
+                if (e == null) {
+                    misses++;
+                    decodeAsync(song);
+                    return null;
+                }
+                e.pin();
+            }
+            try (FileChannel ch = FileChannel.open(e.pcm.toPath(), StandardOpenOption.READ)) {
+                if (ch.size() > Integer.MAX_VALUE) {
+                    e.unpin();
+                    return null; // too long for a single mapping; stream it through ffmpeg instead
+                }
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                hits++;
+                return new MappedPcmSource(map, e, startByte);
+            } catch (IOException ex) {
+                e.unpin();
+                System.err.println("❌ PCM cache entry unreadable, re-decoding " + song.getName() + ": " + ex.getMessage());
+                synchronized (this) {
+                    remove(e);
+                    decodeAsync(song);
+                }
+                return null;
+            }
+        }
+
+        /** Decoded size in bytes, or -1 if the track is not cached. */
+        synchronized long cachedBytes(File song) {
+            Entry e = entries.get(keyOf(song));
+            return e == null ? -1 : e.bytes;
+        }
+
+        /** Warms the cache for a track that is about to be played. */
+        synchronized void prefetch(File song) {
+            if (song != null && !entries.containsKey(keyOf(song))) decodeAsync(song);
+        }
+
+        /**
+         * Decodes {@code song} on the calling thread unless it is cached or
+         * already being decoded elsewhere; returns whether it is cached now.
+         */
+        boolean decodeNow(File song) {
+            String key = keyOf(song);
+            synchronized (this) {
+                if (entries.containsKey(key)) return true;
+                if (!decoding.add(key)) return false;
+            }
+            try {
+                decode(song, key);
+            } finally {
+                synchronized (this) { decoding.remove(key); }
+            }
+            synchronized (this) { return entries.containsKey(key); }
+        }
+
+        /** Drops every cached decode of {@code song}, whatever size and mtime it had. */
+        synchronized void invalidate(File song) {
+            String prefix = pathHash(song) + "-"; // fixed width, so this only matches this exact path
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (!e.key.startsWith(prefix) || e.pinned()) continue;
+                it.remove();
+                totalBytes -= e.bytes;
+                e.pcm.delete();
+            }
+        }
+
+        String stats() {
+            synchronized (this) {
+                return String.format("pcm cache: %d tracks, %d/%d MB, hits %d, misses %d, evictions %d",
+                        entries.size(), totalBytes >> 20, maxBytes >> 20, hits, misses, evictions);
+            }
+        }
+
+        private void decodeAsync(File song) {
+            String key = keyOf(song);
+            if (!decoding.add(key)) return;
+            decoder.submit(() -> {
+                try {
+                    decode(song, key);
+                } finally {
+                    synchronized (this) { decoding.remove(key); }
+                }
+            });
+        }
+
+        private void decode(File song, String key) {
+            File part = new File(dir, key + ".part");
+            File out  = new File(dir, key + ".s16le");
+            try {
+                Process p = new ProcessBuilder(
+                        "ffmpeg", "-loglevel", "quiet", "-y",
+                        "-i", song.getAbsolutePath(),
+                        "-f", "s16le", "-acodec", "pcm_s16le",
+                        "-ac", String.valueOf(CHANNELS), "-ar", String.valueOf(SAMPLE_RATE),
+                        part.getAbsolutePath()
+                ).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+                if (p.waitFor() != 0 || !part.exists()) {
+                    System.err.println("❌ PCM decode failed for " + song.getName());
+                    part.delete();
+                    return;
+                }
+                if (!part.renameTo(out)) {
+                    part.delete();
+                    return;
+                }
+                synchronized (this) {
+                    Entry e = new Entry(key, out, out.length());
+                    entries.put(key, e);
+                    totalBytes += e.bytes;
+                    evict();
+                }
+                System.out.println("💾 Cached PCM for " + song.getName() + " (" + (out.length() >> 20) + " MB)");
+            } catch (IOException e) {
+                System.err.println("❌ Failed to start ffmpeg to cache " + song.getName() + ": " + e.getMessage());
+                part.delete();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                part.delete();
+            }
+        }
+
+        /* Caller holds the lock. Iteration order is least recently used first. */
+        private void evict() {
+            Iterator<Entry> it = entries.values().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Entry e = it.next();
+                if (e.pinned()) continue;
+                it.remove();
+                totalBytes -= e.bytes;
+                evictions++;
+                if (!e.pcm.delete()) e.pcm.deleteOnExit(); // still mapped somewhere; reclaim on exit
+            }
+        }
+
+        private void remove(Entry e) {
+            if (entries.remove(e.key) != null) totalBytes -= e.bytes;
+            e.pcm.delete();
+        }
+
+        private static String keyOf(File song) {
+            return pathHash(song) + "-" + Long.toHexString(song.length()) + "-" + Long.toHexString(song.lastModified());
+        }
+
+        /* First 16 bytes of the SHA-256 of the canonical path, in hex: file names alone collide across directories and scripts */
+        private static String pathHash(File song) {
+            String path;
+            try {
+                path = song.getCanonicalPath();
+            } catch (IOException e) {
+                path = song.getAbsolutePath();
+            }
+            byte[] digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256").digest(path.getBytes(StandardCharsets.UTF_8));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e); // every JRE ships SHA-256
+            }
+            StringBuilder hex = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) hex.append(String.format("%02x", digest[i]));
+            return hex.toString();
+        }
+    }
+
+    /* ---------------------------------------------------------- *
+     *  PACKET PACER — absolute-deadline frame scheduling
+     * ---------------------------------------------------------- */
+    /**
+     * Schedules every frame against an absolute {@link System#nanoTime()} deadline
+     * derived from the number of samples already sent, so the time spent reading
+     * ffmpeg, building packets and fanning out never accumulates into drift.
+     * The pacer never blocks: its {@link StreamWorker} parks until the earliest
+     * deadline among the stations it runs.
+     */
+    static class PacketPacer {
+        private static final long MAX_LAG_NS        = 250_000_000L; // re-anchor instead of bursting past this
+        private static final long NANOS_PER_SEC     = 1_000_000_000L;
+
+        private final int sampleRate;
+        private final int bytesPerSample;     // bytes per sample frame (all channels)
+
+        private boolean anchored   = false;
+        private long    startNanos = 0;
+        private long    samplesSent = 0;
+
+        /* Send-time jitter (actual send - deadline), written by the streaming thread only */
+        private volatile long jitterFrames   = 0;
+        private volatile long jitterSumAbsNs = 0;
+        private volatile long jitterMaxNs    = 0;
+        private volatile long jitterMinNs    = 0;
+        private volatile long reanchors      = 0;
+
+        PacketPacer(int sampleRate, int bytesPerSample) {
+            this.sampleRate     = sampleRate;
+            this.bytesPerSample = bytesPerSample;
+        }
+
+        /** Forget the clock; the next frame goes out immediately and becomes the new anchor. */
+        void reset() {
+            anchored = false;
+            samplesSent = 0;
+        }
+
+        /** Deadline of the next frame: anchor + samplesSent / sampleRate, computed without overflow. */
+        long nextDeadline() {
+            long whole = samplesSent / sampleRate;
+            long part  = samplesSent % sampleRate;
+            return startNanos + whole * NANOS_PER_SEC + part * NANOS_PER_SEC / sampleRate;
+        }
+
+        /** Deadline of the next frame as of {@code now}, anchoring the clock on the first frame. */
+        long frameDeadline(long now) {
+            if (!anchored) {
+                anchored   = true;
+                startNanos = now;
+                samplesSent = 0;
+                return now;
+            }
+            long deadline = nextDeadline();
+            if (now - deadline > MAX_LAG_NS) {
+                // We stalled (track switch, GC, suspended VM): restart the clock instead of bursting.
+                reanchors++;
+                startNanos  = now;
+                samplesSent = 0;
+                return now;
+            }
+            return deadline;
+        }
+
+        /** Records that a frame of {@code bytes} PCM bytes went out, measured against its deadline. */
+        void frameSent(int bytes, long deadline, long sendNanos) {
+            long lateness = sendNanos - deadline;
+            long frames = jitterFrames;
+            jitterMaxNs = frames == 0 ? lateness : Math.max(jitterMaxNs, lateness);
+            jitterMinNs = frames == 0 ? lateness : Math.min(jitterMinNs, lateness);
+            jitterSumAbsNs += Math.abs(lateness);
+            jitterFrames = frames + 1;
+            samplesSent += bytes / bytesPerSample;
+        }
+
+        /** Human readable jitter summary; resets the measurement window. */
+        String drainStats() {
+            long frames = jitterFrames;
+            String s = frames == 0 ? "pacer: no frames sent" : String.format(
+                    "pacer: %d frames, send jitter mean |%.3f| ms, min %.3f ms, max %.3f ms, re-anchors %d",
+                    frames, jitterSumAbsNs / 1e6 / frames, jitterMinNs / 1e6, jitterMaxNs / 1e6, reanchors);
+            jitterFrames = 0;
+            jitterSumAbsNs = 0;
+            return s;
+        }
+    }
+
+    /* ---------------------------------------------------------- *
+     *  AUDIO CODECS — pluggable payload encoding
+     * ---------------------------------------------------------- */
+    /**
+     * Payload codec SPI. The codec id travels in header flag bits 4-5 so every
+     * frame is self-describing; the name is what clients offer at SUBSCRIBE.
+     * Encoders keep scratch state and are only driven by the streaming thread.
+     */
+    interface AudioCodec {
+        int    id();
+        String name();
+
+        /** Encodes s16le stereo PCM into {@code out}; returns the encoded length, or -1 to send raw PCM. */
+        int encode(byte[] pcm, int off, int len, byte[] out);
+
+        /** Codecs listed in {@code names} (comma separated), indexed by id. Raw PCM is always present. */
+        static AudioCodec[] registry(String names) {
+            AudioCodec[] all = { new RawPcmCodec(), new LpcRiceCodec() };
+            AudioCodec[] enabled = new AudioCodec[all.length];
+            enabled[0] = all[0];
+            for (String n : names.split(",")) {
+                for (AudioCodec c : all) if (c.name().equalsIgnoreCase(n.trim())) enabled[c.id()] = c;
+            }
+            for (int i = 0; i < enabled.length; i++) if (enabled[i] == null) enabled[i] = all[0]; // disabled -> raw
+            return enabled;
+        }
+
+        static AudioCodec byName(AudioCodec[] codecs, String name) {
+            for (AudioCodec c : codecs) if (c.name().equalsIgnoreCase(name)) return c;
+            return codecs[0];
+        }
+
+        /** First codec in the client's preference list that the server has enabled, else raw PCM. */
+        static AudioCodec negotiate(AudioCodec[] codecs, String offered) {
+            if (offered == null) return codecs[0];
+            for (String n : offered.split(",")) {
+                AudioCodec c = byName(codecs, n.trim());
+                if (c.name().equalsIgnoreCase(n.trim())) return c;
+            }
+            return codecs[0];
+        }
+
+        static boolean offers(String offered, AudioCodec codec) {
+            if (codec.id() == 0) return true; // every client understands raw PCM
+            if (offered == null) return false;
+            for (String n : offered.split(",")) if (n.trim().equalsIgnoreCase(codec.name())) return true;
+            return false;
+        }
+    }
+
+    static final class RawPcmCodec implements AudioCodec {
+        @Override public int    id()   { return 0; }
+        @Override public String name() { return "pcm"; }
+        @Override public int    encode(byte[] pcm, int off, int len, byte[] out) { return -1; }
+    }
+
+    /**
+     * Lossless "lpcr" codec, FLAC-style: per channel the best fixed polynomial
+     * predictor (order 0-4) is chosen, residuals are Rice coded in partitions of
+     * 256 samples with their own parameter. Stereo is coded as L/R, L/S or R/S,
+     * whichever is cheapest. Warm-up samples are stored verbatim so every frame
+     * decodes on its own.
+     *
+     * Layout (bit packed, MSB first): mode:2, samples:16, then per channel
+     * order:3, order x warm-up sample (16 or 17 bits, two's complement), and per
+     * partition k:5 followed by unary(quotient) + k-bit remainder of each
+     * zigzagged residual.
+     */
+    static final class LpcRiceCodec implements AudioCodec {
+        static final int MODE_LEFT_RIGHT = 0, MODE_LEFT_SIDE = 1, MODE_RIGHT_SIDE = 2;
+        static final int MAX_ORDER = 4;
+        static final int PARTITION = 256;
+
+        private int[] left = new int[0], right = new int[0], side = new int[0];
+        private final BitWriter bits = new BitWriter();
+
+        @Override public int    id()   { return 1; }
+        @Override public String name() { return "lpcr"; }
+
+        @Override
+        public int encode(byte[] pcm, int off, int len, byte[] out) {
+            int n = len / 4;
+            if (len % 4 != 0 || n <= MAX_ORDER || n > 0xFFFF) return -1;
+            if (left.length < n) {
+                left = new int[n];
+                right = new int[n];
+                side = new int[n];
+            }
+            for (int i = 0, p = off; i < n; i++, p += 4) {
+                left[i]  = (short) ((pcm[p]     & 0xFF) | (pcm[p + 1] << 8));
+                right[i] = (short) ((pcm[p + 2] & 0xFF) | (pcm[p + 3] << 8));
+                side[i]  = left[i] - right[i];
+            }
+            long costL = bestOrder(left, n), costR = bestOrder(right, n), costS = bestOrder(side, n);
+            int mode = MODE_LEFT_RIGHT;
+            long best = (costL >>> 3) + (costR >>> 3);
+            if ((costL >>> 3) + (costS >>> 3) < best) { mode = MODE_LEFT_SIDE;  best = (costL >>> 3) + (costS >>> 3); }
+            if ((costR >>> 3) + (costS >>> 3) < best) { mode = MODE_RIGHT_SIDE; }
+
+            BitWriter w = bits.reset(out, Math.min(out.length, len - 1)); // must beat raw PCM
+            w.write(mode, 2);
+            w.write(n, 16);
+            if (mode == MODE_LEFT_RIGHT) {
+                encodeChannel(w, left,  n, (int) (costL & 7), 16);
+                encodeChannel(w, right, n, (int) (costR & 7), 16);
+            } else {
+                int[] first = mode == MODE_LEFT_SIDE ? left : right;
+                encodeChannel(w, first, n, (int) ((mode == MODE_LEFT_SIDE ? costL : costR) & 7), 16);
+                encodeChannel(w, side,  n, (int) (costS & 7), 17);
+            }
+            return w.finish();
+        }
+
+        /* Returns (sum of |residual| << 3) | order for the cheapest fixed predictor */
+        private static long bestOrder(int[] x, int n) {
+            long s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0;
+            for (int i = MAX_ORDER; i < n; i++) {
+                int e0 = x[i];
+                int e1 = e0 - x[i - 1];
+                int e2 = e1 - (x[i - 1] - x[i - 2]);
+                int e3 = e2 - (x[i - 1] - 2 * x[i - 2] + x[i - 3]);
+                int e4 = e3 - (x[i - 1] - 3 * x[i - 2] + 3 * x[i - 3] - x[i - 4]);
+                s0 += Math.abs(e0); s1 += Math.abs(e1); s2 += Math.abs(e2); s3 += Math.abs(e3); s4 += Math.abs(e4);
+            }
+            int order = 0;
+            long best = s0;
+            if (s1 < best) { best = s1; order = 1; }
+            if (s2 < best) { best = s2; order = 2; }
+            if (s3 < best) { best = s3; order = 3; }
+            if (s4 < best) { best = s4; order = 4; }
+            return (best << 3) | order;
+        }
+
+        static int residual(int[] x, int i, int order) {
+            switch (order) {
+                case 0:  return x[i];
+                case 1:  return x[i] - x[i - 1];
+                case 2:  return x[i] - 2 * x[i - 1] + x[i - 2];
+                case 3:  return x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                default: return x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+            }
+        }
+
+        private static void encodeChannel(BitWriter w, int[] x, int n, int order, int sampleBits) {
+            w.write(order, 3);
+            for (int i = 0; i < order; i++) w.write(x[i], sampleBits);
+            for (int start = order; start < n; start += PARTITION) {
+                int end = Math.min(n, start + PARTITION);
+                long sum = 0;
+                for (int i = start; i < end; i++) {
+                    int e = residual(x, i, order);
+                    sum += (e << 1) ^ (e >> 31);
+                }
+                int count = end - start, k = 0;
+                while (k < 30 && ((long) count << (k + 1)) < sum) k++;
+                w.write(k, 5);
+                for (int i = start; i < end; i++) {
+                    int e = residual(x, i, order);
+                    int u = (e << 1) ^ (e >> 31);     // zigzag
+                    w.writeUnary(u >>> k);
+                    if (k > 0) w.write(u, k);
+                }
+            }
+        }
+    }
+
+    /** MSB-first bit packer into a caller-owned array; reports overflow instead of growing. */
+    static final class BitWriter {
+        private byte[] out;
+        private int    limit, pos, nbits;
+        private long   acc;
+        private boolean overflow;
+
+        BitWriter reset(byte[] out, int limit) {
+            this.out = out;
+            this.limit = limit;
+            this.pos = 0;
+            this.nbits = 0;
+            this.acc = 0;
+            this.overflow = false;
+            return this;
+        }
+
+        void write(int value, int bits) {
+            acc = (acc << bits) | (value & ((1L << bits) - 1));
+            nbits += bits;
+            while (nbits >= 8) {
+                nbits -= 8;
+                if (pos >= limit) { overflow = true; return; }
+                out[pos++] = (byte) (acc >>> nbits);
+            }
+        }
+
+        void writeUnary(int zeros) {
+            if (zeros > (limit - pos) * 8) { overflow = true; pos = limit; return; }
+            while (zeros >= 24) { write(0, 24); zeros -= 24; }
+            write(1, zeros + 1);
+        }
+
+        /** Flushes the last partial byte; returns the encoded length or -1 on overflow. */
+        int finish() {
+            if (nbits > 0) write(0, 8 - nbits);
+            return overflow ? -1 : pos;
+        }
+    }
+
+    /* ---------------------------------------------------------- *
+     *  FORWARD ERROR CORRECTION — XOR parity over frame groups
+     * ---------------------------------------------------------- */
+    /**
+     * XOR parity over every {@code groupSize} consecutive frames of one codec
+     * stream (overhead 1/groupSize). The parity packet carries FLAG_FEC; its seq
+     * is the first protected seq, its timestamp and song index are the XOR of the
+     * group's, and its payload is [count:1][xor flags:1][xor length:2][xor of
+     * payloads]. Any single lost frame of a group can be rebuilt from the rest.
+     */
+    static final class FecEncoder {
+        private final int    groupSize;
+        private final byte[] parity = new byte[PCM_FRAME_BYTES];
+        private int  count, maxLen, xorLen, xorFlags, xorSong;
+        private long base, xorTs;
+
+        FecEncoder(int groupSize) { this.groupSize = groupSize; }
+
+        /** Folds a data packet into the current group; true once the group is complete. */
+        boolean add(ByteBuffer pkt) {
+            long seq = pkt.getLong(0);
+            if (count > 0 && seq != base + count) clear(); // stream restarted: open a fresh group
+            if (count == 0) base = seq;
+            int len = pkt.getShort(HEADER_SIZE_BYTES - 2) & 0xFFFF;
+            xorTs    ^= pkt.getLong(8);
+            xorFlags ^= pkt.get(16);
+            xorSong  ^= pkt.getInt(17);
+            xorLen   ^= len;
+            for (int i = 0; i < len; i++) parity[i] ^= pkt.get(HEADER_SIZE_BYTES + i);
+            maxLen = Math.max(maxLen, len);
+            return ++count == groupSize;
+        }
+
+        boolean pending() { return count > 0; }
+
+        /** Writes the parity packet for the current (possibly partial) group and starts the next. */
+        void emit(ByteBuffer dst) {
+            dst.clear();
+            dst.putLong(base);
+            dst.putLong(xorTs);
+            dst.put(FLAG_FEC);
+            dst.putInt(xorSong);
+            dst.putShort((short) (FEC_PREFIX_BYTES + maxLen));
+            dst.put((byte) count);
+            dst.put((byte) xorFlags);
+            dst.putShort((short) xorLen);
+            dst.put(parity, 0, maxLen);
+            dst.flip();
+            clear();
+        }
+
+        private void clear() {
+            Arrays.fill(parity, 0, maxLen, (byte) 0);
+            count = maxLen = xorLen = xorFlags = xorSong = 0;
+            xorTs = 0;
+        }
+    }
+
+    /* ---------------------------------------------------------- *
+     *  RETRANSMISSION — recent frames kept for NACKed resends
+     * ---------------------------------------------------------- */
+    /**
+     * Bounded ring of the most recently sent datagrams of one codec variant,
+     * slotted by {@code seq & mask}. The streaming thread stores every frame;
+     * the control plane's selector thread copies single frames out when a NACK
+     * arrives. Storage is
+     * allocated once, so the streaming path stays allocation-free.
+     */
+    static final class RetransmitRing {
+        private final byte[][] frames;
+        private final int[]    lengths;
+        private final long[]   seqs;
+        private final int      mask;
+
+        RetransmitRing(int capacity) {
+            frames  = new byte[capacity][MAX_PACKET_BYTES];
+            lengths = new int[capacity];
+            seqs    = new long[capacity];
+            mask    = capacity - 1;
+            Arrays.fill(seqs, -1);
+        }
+
+        synchronized void store(ByteBuffer pkt) {
+            long seq  = pkt.getLong(0);
+            int  slot = (int) (seq & mask);
+            int  len  = pkt.limit();
+            pkt.get(0, frames[slot], 0, len);
+            lengths[slot] = len;
+            seqs[slot]    = seq;
+        }
+
+        /** Copies frame {@code seq} into {@code dst}, ready to send; false once it has been overwritten. */
+        synchronized boolean copy(long seq, ByteBuffer dst) {
+            int slot = (int) (seq & mask);
+            if (seq < 0 || seqs[slot] != seq) return false;
+            dst.clear();
+            dst.put(frames[slot], 0, lengths[slot]);
+            dst.flip();
+            return true;
+        }
+    }
+
+    /* ---------------------------------------------------------- *
+     *  PCM DSP — fixed-point gain, ramps and mixing, in place
+     * ---------------------------------------------------------- */
+    /**
+     * Kernels for s16le PCM. Gains are Q16 ({@link #UNITY} = 1.0): each sample is
+     * one 16-bit load, an integer multiply and shift, a clamp and one store, and
+     * results saturate instead of wrapping around. Same kernels as the client's PcmDsp.
+     */
+    static final class PcmDsp {
+        static final int UNITY = 1 << 16;
+
+        private static final VarHandle S16 =
+                MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+        private PcmDsp() { }
+
+        /** Linear gain to Q16, clamped to [0, 8]. */
+        static int gainQ16(double gain) {
+            return (int) Math.round(Math.max(0.0, Math.min(8.0, gain)) * UNITY);
+        }
+
+        static void scale(byte[] pcm, int off, int len, int gainQ16) {
+            if (gainQ16 == UNITY) return;
+            int end = off + (len & ~1);
+            for (int i = off; i < end; i += 2) {
+                int s = (short) S16.get(pcm, i);
+                S16.set(pcm, i, clamp((s * (long) gainQ16) >> 16));
+            }
+        }
+
+        /** Gain moves linearly from {@code fromQ16} to {@code toQ16}, one step per stereo sample. */
+        static void ramp(byte[] pcm, int off, int len, int fromQ16, int toQ16) {
+            if (fromQ16 == toQ16) { scale(pcm, off, len, toQ16); return; }
+            int frames = len / BYTES_PER_SAMPLE_FRAME;
+            if (frames == 0) return;
+            long gain = (long) fromQ16 << 16;   // Q32 accumulator
+            long step = (((long) toQ16 << 16) - gain) / frames;
+            int  end  = off + frames * BYTES_PER_SAMPLE_FRAME;
+            for (int i = off; i < end; i += BYTES_PER_SAMPLE_FRAME) {
+                long g = gain >> 16;
+                int  l = (short) S16.get(pcm, i);
+                int  r = (short) S16.get(pcm, i + 2);
+                S16.set(pcm, i,     clamp((l * g) >> 16));
+                S16.set(pcm, i + 2, clamp((r * g) >> 16));
+                gain += step;
+            }
+        }
+
+        /** {@code out = a * (1 - w) + b * w}, w ramping from {@code fromQ16} to {@code toQ16}; out may alias a or b. */
+        static void crossfade(byte[] a, int aOff, byte[] b, int bOff, byte[] out, int outOff,
+                              int len, int fromQ16, int toQ16) {
+            int frames = len / BYTES_PER_SAMPLE_FRAME;
+            if (frames == 0) return;
+            long weight = (long) fromQ16 << 16;
+            long step   = (((long) toQ16 << 16) - weight) / frames;
+            for (int f = 0; f < frames; f++) {
+                long wb = weight >> 16;
+                long wa = UNITY - wb;
+                for (int c = 0; c < BYTES_PER_SAMPLE_FRAME; c += 2) {
+                    int j  = f * BYTES_PER_SAMPLE_FRAME + c;
+                    int sa = (short) S16.get(a, aOff + j);
+                    int sb = (short) S16.get(b, bOff + j);
+                    S16.set(out, outOff + j, clamp((sa * wa + sb * wb) >> 16));
+                }
+                weight += step;
+            }
+        }
+
+        /** Saturating sum of {@code src} into {@code dst}. */
+        static void mix(byte[] dst, int dstOff, byte[] src, int srcOff, int len) {
+            int n = len & ~1;
+            for (int j = 0; j < n; j += 2) {
+                int s = (short) S16.get(dst, dstOff + j) + (short) S16.get(src, srcOff + j);
+                S16.set(dst, dstOff + j, clamp(s));
+            }
+        }
+
+        private static short clamp(long v) {
+            return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+        }
+    }
+
+    /* ---------------------------------------------------------- *
+     *  PACKET ENCODING — pooled direct buffers, no per-frame garbage
+     * ---------------------------------------------------------- */
+    /**
+     * Fixed pool of direct buffers sized for one datagram. Buffers are handed out
+     * and returned by the streaming path; an empty pool falls back to a fresh
+     * allocation (counted) rather than blocking the audio clock.
+     */
+    static class PacketBufferPool {
+        private final ArrayBlockingQueue<ByteBuffer> free;
+        private final int bufferSize;
+        private volatile long misses = 0;
+
+        PacketBufferPool(int buffers, int bufferSize) {
+            this.free = new ArrayBlockingQueue<>(buffers);
+            this.bufferSize = bufferSize;
+            for (int i = 0; i < buffers; i++) free.offer(newBuffer());
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer b = free.poll();
+            if (b == null) {
+                misses++;
+                b = newBuffer();
+            }
+            b.clear();
+            return b;
+        }
+
+        void release(ByteBuffer b) {
+            if (b != null && b.capacity() == bufferSize) free.offer(b);
+        }
+
+        long getMisses() { return misses; }
+
+        private ByteBuffer newBuffer() {
+            return ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    /**
+     * Writes the 23-byte header (seq, timestamp, flags, song index, length)
+     * followed by the payload straight into a datagram buffer. The buffer is left
+     * flipped and ready to send; callers {@code rewind()} it between receivers.
+     */
+    static final class PacketEncoder {
+        private PacketEncoder() { }
+
+        static void encode(ByteBuffer dst, long seq, long timestamp, byte flags, int songIndex,
+                           byte[] payload, int off, int len) {
+            dst.clear();
+            dst.putLong(seq);
+            dst.putLong(timestamp);
+            dst.put(flags);
+            dst.putInt(songIndex);
+            dst.putShort((short) len);
+            if (len > 0) dst.put(payload, off, len);
+            dst.flip();
+        }
+    }
+
+    /* ---------------------------------------------------------- *
+     *  UDP FAN-OUT — copy-on-write subscribers, sharded senders
+     * ---------------------------------------------------------- */
+    /**
+     * Immutable array of UDP subscribers, replaced wholesale on subscribe and
+     * disconnect. The streaming path reads the current array without locking.
+     */
+    static class SubscriberRegistry {
+        private static final ClientHandler[] EMPTY = new ClientHandler[0];
+        private volatile ClientHandler[]   snapshot = EMPTY;
+        private volatile ClientHandler[][] unicastByCodec = groupByCodec(EMPTY); // derived, same lifetime
+        private volatile int multicastMembers = 0;
+
+        synchronized void add(ClientHandler c) {
+            ClientHandler[] cur = snapshot;
+            for (ClientHandler x : cur) if (x == c) { publish(cur); return; } // re-SUBSCRIBE may change codec
+            ClientHandler[] next = Arrays.copyOf(cur, cur.length + 1);
+            next[cur.length] = c;
+            publish(next);
+        }
+
+        synchronized void remove(ClientHandler c) {
+            ClientHandler[] cur = snapshot;
+            for (int i = 0; i < cur.length; i++) {
+                if (cur[i] != c) continue;
+                ClientHandler[] next = new ClientHandler[cur.length - 1];
+                System.arraycopy(cur, 0, next, 0, i);
+                System.arraycopy(cur, i + 1, next, i, cur.length - i - 1);
+                publish(cur.length == 1 ? EMPTY : next);
+                return;
+            }
+        }
+
+        synchronized void setMulticast(ClientHandler c, boolean member) {
+            if (c.multicastMember == member) return;
+            c.multicastMember = member;
+            publish(snapshot);
+        }
+
+        /* Caller holds the lock. Derived views are rebuilt before the new array is visible. */
+        private void publish(ClientHandler[] next) {
+            int members = 0;
+            for (ClientHandler x : next) if (x.multicastMember) members++;
+            multicastMembers = members;
+            unicastByCodec = groupByCodec(next);
+            snapshot = next;
+        }
+
+        private static ClientHandler[][] groupByCodec(ClientHandler[] all) {
+            ClientHandler[][] groups = new ClientHandler[CODECS.length][];
+            for (int id = 0; id < groups.length; id++) {
+                int n = 0;
+                for (ClientHandler x : all) if (!x.multicastMember && x.codecId == id) n++;
+                groups[id] = new ClientHandler[n];
+                n = 0;
+                for (ClientHandler x : all) if (!x.multicastMember && x.codecId == id) groups[id][n++] = x;
+            }
+            return groups;
+        }
+
+        ClientHandler[] snapshot()           { return snapshot; }
+        ClientHandler[] unicast(int codecId) { return unicastByCodec[codecId]; }
+        boolean hasMulticastMembers()        { return multicastMembers > 0; }
+    }
+
+    /**
+     * Splits a subscriber snapshot into contiguous shards. The calling thread
+     * sends shard 0 on its own channel while each {@link SenderWorker} it could
+     * borrow sends one more shard on a private channel; the call returns once
+     * every shard is out, so the frame buffer can be reused. The senders are
+     * shared by every stream worker, so whichever station is sending right now
+     * gets all the idle ones. Small audiences are sent inline.
+     */
+    static class FanOutStage {
+        private static final int INLINE_THRESHOLD = 64; // below this, hand-off costs more than it saves
+
+        private final DatagramChannel inline;
+        private final SenderWorker[]  pool;
+        private final SenderWorker[]  borrowed;         // this fan-out's senders; caller thread only
+        private final AtomicInteger   pending = new AtomicInteger();
+        private volatile Thread       caller;
+
+        private volatile long frames       = 0;
+        private volatile long maxFanOutNs  = 0;
+        private volatile long lateFanOuts  = 0;     // fan-outs that took longer than one frame period
+
+        FanOutStage(DatagramChannel inline, SenderWorker[] pool) {
+            this.inline   = inline;
+            this.pool     = pool;
+            this.borrowed = new SenderWorker[pool.length];
+        }
+
+        /** Starts {@code count} sender threads to be shared by every fan-out stage. */
+        static SenderWorker[] startSenders(int count) throws IOException {
+            SenderWorker[] senders = new SenderWorker[Math.max(0, count)];
+            for (int i = 0; i < senders.length; i++) {
+                senders[i] = new SenderWorker(DatagramChannel.open());
+                Thread t = new Thread(senders[i], "udp-sender-" + (i + 1));
+                t.setDaemon(true);
+                senders[i].thread = t;
+                t.start();
+            }
+            return senders;
+        }
+
+        /** Sends {@code pkt} (flipped) to every subscriber; blocks until all shards are done. */
+        void send(ByteBuffer pkt, ClientHandler[] subs, long framePeriodNs) {
+            long start = System.nanoTime();
+            int n = subs.length;
+            int helpers = 0;
+            if (n >= INLINE_THRESHOLD) {
+                for (SenderWorker w : pool) if (w.claim()) borrowed[helpers++] = w;
+            }
+            if (helpers == 0) {
+                sendRange(inline, pkt, subs, 0, n);
+            } else {
+                int shards = helpers + 1;
+                caller = Thread.currentThread();
+                pending.set(helpers);
+                for (int w = 0; w < helpers; w++) {
+                    borrowed[w].submit(this, pkt, subs, (w + 1) * n / shards, (w + 2) * n / shards);
+                    borrowed[w] = null;
+                }
+                sendRange(inline, pkt, subs, 0, n / shards);
+                while (pending.get() > 0) {
+                    LockSupport.parkNanos(this, 50_000L);
+                }
+            }
+            long took = System.nanoTime() - start;
+            if (took > maxFanOutNs) maxFanOutNs = took;
+            if (took > framePeriodNs) lateFanOuts++;
+            frames++;
+        }
+
+        static void sendRange(DatagramChannel ch, ByteBuffer pkt, ClientHandler[] subs, int from, int to) {
+            for (int i = from; i < to; i++) {
+                InetSocketAddress target = subs[i].getUdpTarget();
+                if (target == null) continue;
+                pkt.rewind();
+                try {
+                    ch.send(pkt, target);
+                } catch (IOException e) {
+                    // Client might have disconnected, continue
+                }
+            }
+        }
+
+        void shardDone() {
+            if (pending.decrementAndGet() == 0) LockSupport.unpark(caller);
+        }
+
+        String drainStats(int subscriberCount) {
+            String s = String.format("fan-out: %d subscribers over up to %d senders, max %.3f ms/frame, %d frames over budget",
+                    subscriberCount, pool.length + 1, maxFanOutNs / 1e6, lateFanOuts);
+            maxFanOutNs = 0;
+            lateFanOuts = 0;
+            return s;
+        }
+    }
+
+    /**
+     * One fan-out shard: a private channel and a private copy of the current
+     * frame. A stage claims an idle sender, submits one shard to it, and the
+     * sender is idle again once that shard is out.
+     */
+    static final class SenderWorker implements Runnable {
+        private final DatagramChannel channel;
+        private final ByteBuffer      frame = ByteBuffer.allocateDirect(MAX_PACKET_BYTES);
+        private final AtomicBoolean   busy  = new AtomicBoolean(false);
+        private       Thread          thread;
+
+        private FanOutStage     stage;
+        private ClientHandler[] subs;
+        private int from, to;
+        private volatile long submitted = 0;   // volatile write publishes stage/subs/from/to/frame
+
+        SenderWorker(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean claim() {
+            return busy.compareAndSet(false, true);
+        }
+
+        /* Only after a successful claim() */
+        void submit(FanOutStage stage, ByteBuffer pkt, ClientHandler[] subs, int from, int to) {
+            frame.clear();
+            pkt.rewind();
+            frame.put(pkt);
+            frame.flip();
+            this.stage = stage;
+            this.subs = subs;
+            this.from = from;
+            this.to   = to;
+            submitted++;
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            long seen = 0;
+            while (true) {
+                while (submitted == seen) LockSupport.park(this);
+                seen = submitted;
+                FanOutStage.sendRange(channel, frame, subs, from, to);
+                FanOutStage done = stage;
+                stage = null;
+                subs = null;
+                busy.set(false);
+                done.shardDone();
+            }
+        }
+    }
+
+    /* ---------------------------------------------------------- *
+     *  STATIONS — independent channels on a shared stream scheduler
+     * ---------------------------------------------------------- */
+    /** Sample offset into {@code song} as of {@code at} (nanoTime). */
+    static final class PlayPosition {
+        final File song;
+        final long samples;
+        final long at;
+
+        PlayPosition(File song, long samples, long at) {
+            this.song = song;
+            this.samples = samples;
+            this.at = at;
+        }
+    }
+
+    /**
+     * One radio channel: its own playlist directory, play clock, listeners and
+     * broadcaster. The default station plays {@code AUDIO_DIR} itself; every
+     * sub-directory of it is another station named after the directory.
+     */
+    static final class Station {
+        final String               id;
+        final int                  ordinal;          // stable position, picks the multicast port
+        final File                 dir;
+        final PlaylistManager      playlistManager;
+        final SubscriberRegistry   subscribers = new SubscriberRegistry();
+        final Set<ClientHandler>   clients     = ConcurrentHashMap.newKeySet(); // broadcasts iterate without a lock
+        final ControlState         control     = new ControlState(this); // last published state, for deltas
+        final InetSocketAddress    multicastTarget;  // null when multicast is disabled
+        UDPStreamBroadcaster       broadcaster;      // set once by StreamScheduler.add
+
+        // Radio state - always playing if there are songs
+        volatile boolean songWasManuallyChanged = false; // Flag to handle playlist changes
+        volatile boolean isRadioActive   = false;  // Radio is on/off
+        volatile double  currentVolume   = 1.0;
+        volatile double  currentTime     = 0.0;    // seconds into current song
+        volatile double  totalDuration   = 0.0;    // seconds
+        volatile long    songStartTime   = 0;      // System.currentTimeMillis() when song started
+        volatile boolean isStreamActive  = false;  // Whether UDP stream is actively running
+        volatile PlayPosition resume     = null;   // restored from the journal, taken by the first track open
+
+        // Where the broadcaster is, updated in place so the stream path allocates nothing; positionLock
+        private final Object positionLock = new Object();
+        private File         positionSong;
+        private long         positionSamples;
+        private long         positionAt;
+
+        Station(String id, int ordinal, File dir) {
+            this.id      = id;
+            this.ordinal = ordinal;
+            this.dir     = dir;
+            this.playlistManager = new PlaylistManager(this, dir);
+            InetSocketAddress group = null;
+            if (MULTICAST_GROUP != null) {
+                try {
+                    group = new InetSocketAddress(InetAddress.getByName(MULTICAST_GROUP), MULTICAST_PORT + ordinal);
+                } catch (IOException e) {
+                    System.err.println("❌ Bad multicast group " + MULTICAST_GROUP + ": " + e.getMessage());
+                }
+            }
+            this.multicastTarget = group;
+        }
+
+        void join(ClientHandler c)  { clients.add(c); }
+
+        void leave(ClientHandler c) {
+            clients.remove(c);
+            subscribers.remove(c);
+        }
+
+        /* Journal restore: the first track open starts `song` at this sample */
+        void resumeAt(File song, long samples) {
+            resume        = new PlayPosition(song, samples, System.nanoTime());
+            currentTime   = samples / (double) SAMPLE_RATE;
+            songStartTime = System.currentTimeMillis() - samples * 1000 / SAMPLE_RATE;
+        }
+
+        /* Journals where playback is now: the last published position plus the time streamed since */
+        void checkpoint() {
+            File song;
+            long samples, at;
+            synchronized (positionLock) {
+                song = positionSong;
+                samples = positionSamples;
+                at = positionAt;
+            }
+            if (song == null || !isRadioActive) return;
+            if (isStreamActive) samples += (System.nanoTime() - at) * SAMPLE_RATE / 1_000_000_000L;
+            playlistManager.checkpoint(song, samples);
+        }
+
+        /* Called by the broadcaster: `samples` into `song` were sent by `at` (nanoTime) */
+        void position(File song, long samples, long at) {
+            synchronized (positionLock) {
+                positionSong = song;
+                positionSamples = samples;
+                positionAt = at;
+            }
+        }
+
+        void updateCurrentTime() {
+            if (isRadioActive && playlistManager.hasSongs()) {
+                long now = System.currentTimeMillis();
+                currentTime = (now - songStartTime) / 1000.0;
+
+                // Check if current song finished. While a stream is running the broadcaster
+                // advances tracks itself at the exact end of the PCM (gapless).
+                if (currentTime >= totalDuration && !isStreamActive) {
+                    playlistManager.moveToNextTrack();
+                    broadcastPlaylistUpdate();
+                }
+            }
+        }
+
+        void broadcastPlaylistUpdate() {
+            control.publishPlaylist();
+        }
+
+        /* State snapshots supersede each other, so a backed-up client only keeps the latest */
+        void broadcastPlaybackState() {
+            control.publishPlayback();
+        }
+
+        void broadcast(String msg) {
+            byte[] line = ClientHandler.encodeLine(msg);
+            for (ClientHandler c : clients) c.sendLine(line);
+        }
+
+        String getStreamConfigJson(boolean multicast, AudioCodec codec) {
+            if (multicast) {
+                return String.format(
+                    "{\"type\":\"STREAM_CONFIG\",\"payload\":{\"station\":\"%s\",\"transport\":\"multicast\",\"group\":\"%s\",\"port\":%d,\"codec\":\"%s\",\"fecGroup\":%d}}",
+                    PlaylistSnapshot.escapeJson(id), MULTICAST_GROUP, multicastTarget.getPort(), MULTICAST_CODEC.name(),
+                    FEC_GROUP > 1 ? FEC_GROUP : 0);
+            }
+            return String.format("{\"type\":\"STREAM_CONFIG\",\"payload\":{\"station\":\"%s\",\"transport\":\"unicast\",\"codec\":\"%s\",\"fecGroup\":%d}}",
+                    PlaylistSnapshot.escapeJson(id), codec.name(), FEC_GROUP > 1 ? FEC_GROUP : 0);
+        }
+
+        String getPlaybackStateJson() {
+            File currentSong = playlistManager.getCurrentTrack();
+            String songName = currentSong != null ? currentSong.getName() : "No song";
+
+            String escapedSongName = PlaylistSnapshot.escapeJson(songName);
+
+            return String.format(
+                "{\"type\":\"PLAYBACK_STATE\",\"payload\":{\"playing\":%b,\"volume\":%.2f," +
+                "\"progress\":%.3f,\"currentTime\":%.1f,\"duration\":%.1f,\"currentSong\":\"%s\",\"radioActive\":%b}}",
+                isRadioActive && isStreamActive, currentVolume,
+                totalDuration > 0 ? Math.min(1.0, currentTime / totalDuration) : 0,
+                currentTime, totalDuration, escapedSongName, isRadioActive
+            );
+        }
+    }
+
+    /**
+     * Runs every station's broadcaster on a fixed set of {@link StreamWorker}
+     * threads (one per core by default) instead of a thread per station. Stations
+     * are assigned round-robin and stay on their worker. The fan-out senders are
+     * one pool for all workers, FANOUT_SENDERS - 1 threads besides the caller.
+     */
+    static final class StreamScheduler {
+        private final StreamWorker[] workers;
+        private int nextWorker = 0;
+
+        StreamScheduler(int threads) throws IOException {
+            workers = new StreamWorker[Math.max(1, threads)];
+            SenderWorker[] senders = FanOutStage.startSenders(FANOUT_SENDERS - 1);
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new StreamWorker(i, senders);
+                Thread t = new Thread(workers[i], "stream-worker-" + i);
+                t.setDaemon(true);
+                workers[i].thread = t;
+                t.start();
             }
-        
-            // Update the playlist data structure
-            list.remove(songIndex);
-            System.out.println("📋 Removed '" + songName + "' from playlist.");
-        
-            // If a song *before* the current one was deleted, the current index shifts down.
-            if (!wasCurrentSong && songIndex < idx) {
-                idx--;
+            if (MULTICAST_GROUP != null) {
+                System.out.println("📻 Multicast streaming enabled on " + MULTICAST_GROUP + " from port " + MULTICAST_PORT);
             }
-        
-            // If the playlist is now empty, turn off the radio.
-            if (list.isEmpty()) {
-                isRadioActive = false;
-                idx = 0;
-                currentTime = 0;
-                totalDuration = 0;
-                songWasManuallyChanged = true; // Ensure streamer loop stops
-                System.out.println("📻 Playlist is empty. Radio OFF AIR.");
+        }
+
+        synchronized void add(Station station) {
+            StreamWorker w = workers[nextWorker++ % workers.length];
+            station.broadcaster = new UDPStreamBroadcaster(station, w);
+            w.add(station.broadcaster);
+        }
+
+        String stats() {
+            StringBuilder sb = new StringBuilder();
+            for (StreamWorker w : workers) {
+                if (sb.length() > 0) sb.append('\n');
+                sb.append(w.drainStats());
             }
-        
-            broadcastPlaylistUpdate();
-        
-            // Defer the actual file deletion to give the streamer time to release the file lock.
-            new Thread(() -> {
-                if (wasCurrentSong) {
-                    // Give the streamer a moment to kill the old ffmpeg process.
-                    try { Thread.sleep(1000); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
-                }
-                if (songToDelete.delete()) {
-                    System.out.println("🗑️ Deleted song file: " + songName);
-                } else {
-                    System.out.println("❌ Failed to delete song file: " + songName + ". It may still be locked.");
-                }
-            }).start();
-        
-            return true; // Logical deletion was successful.
+            return sb.toString();
         }
+    }
 
-        synchronized void moveToNextTrack() {
-            if (!list.isEmpty()) {
-                idx = (idx + 1) % list.size();
-                resetCurrentSong();
-                updateCurrentTrackDuration();
-                System.out.println("🎵 Now playing: " + getCurrentTrack().getName());
+    /**
+     * Event loop for a group of stations: polls each broadcaster, then parks
+     * until the earliest time any of them needs the CPU. Frames may go out up to
+     * {@link #SEND_EARLY_NS} before their deadline, which lets one wakeup serve
+     * stations whose deadlines are close together and avoids spinning.
+     */
+    static final class StreamWorker implements Runnable {
+        static final long SEND_EARLY_NS = 250_000L;
+        private static final long MAX_PARK_NS = 100_000_000L;
+
+        private final int             index;
+        final DatagramChannel         udp;
+        final FanOutStage             fanOut;
+        private volatile UDPStreamBroadcaster[] stations = new UDPStreamBroadcaster[0];
+        private Thread                thread;
+
+        /* Load and allocation accounting (see drainStats) */
+        private volatile long busyNanos = 0, frames = 0, allocatedBytes = -1;
+        private long statsBusy = 0, statsFrames = 0, statsAllocated = -1, statsAt = System.nanoTime();
+
+        StreamWorker(int index, SenderWorker[] senders) throws IOException {
+            this.index = index;
+            this.udp   = DatagramChannel.open();
+            if (MULTICAST_GROUP != null) {
+                udp.setOption(StandardSocketOptions.IP_MULTICAST_TTL, MULTICAST_TTL);
+                if (MULTICAST_INTERFACE != null) {
+                    udp.setOption(StandardSocketOptions.IP_MULTICAST_IF, NetworkInterface.getByName(MULTICAST_INTERFACE));
+                }
             }
+            this.fanOut = new FanOutStage(udp, senders);
         }
 
-        private void resetCurrentSong() {
-            currentTime = 0.0;
-            songStartTime = System.currentTimeMillis();
+        synchronized void add(UDPStreamBroadcaster b) {
+            UDPStreamBroadcaster[] cur = stations;
+            UDPStreamBroadcaster[] next = Arrays.copyOf(cur, cur.length + 1);
+            next[cur.length] = b;
+            stations = next;
+            LockSupport.unpark(thread);
         }
 
-        private void updateCurrentTrackDuration() {
-            File current = getCurrentTrack();
-            if (current == null) {
-                totalDuration = 0.0;
-                return;
-            }
-            try {
-                // Use ffprobe to get duration in seconds
-                ProcessBuilder pb = new ProcessBuilder(
-                    "ffprobe", "-v", "error", "-show_entries",
-                    "format=duration", "-of",
-                    "default=noprint_wrappers=1:nokey=1",
-                    current.getAbsolutePath()
-                );
-                pb.redirectErrorStream(true);
-                Process p = pb.start();
-                try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
-                    String line = r.readLine();
-                    if (line != null) {
-                        totalDuration = Double.parseDouble(line.trim());
-                    } else {
-                        totalDuration = 180.0; // fallback
+        @Override
+        public void run() {
+            while (true) {
+                long start = System.nanoTime();
+                long wake  = start + MAX_PARK_NS;
+                long sent  = 0;
+                for (UDPStreamBroadcaster b : stations) {
+                    long before = b.framesStreamed, due;
+                    try {
+                        due = b.poll(System.nanoTime());
+                    } catch (RuntimeException e) {
+                        System.err.println("❌ Station " + b.station.id + " failed a stream step");
+                        e.printStackTrace();
+                        due = System.nanoTime() + UDPStreamBroadcaster.IDLE_RETRY_NS;
                     }
+                    sent += b.framesStreamed - before;
+                    if (due < wake) wake = due;
                 }
-                p.waitFor();
-            } catch (Exception e) {
-                System.err.println("Failed to get duration for " + current.getName() + ": " + e.getMessage());
-                totalDuration = 180.0; // fallback
+                long end = System.nanoTime();
+                busyNanos += end - start;
+                if (sent > 0) {
+                    frames += sent;
+                    allocatedBytes = threadAllocatedBytes();
+                }
+                if (wake > end) LockSupport.parkNanos(this, wake - end);
             }
         }
-        
-        private String escapeJson(String s) {
-            if (s == null) return null;
-            return s.replace("\\", "\\\\")
-                    .replace("\"", "\\\"")
-                    .replace("\b", "\\b")
-                    .replace("\f", "\\f")
-                    .replace("\n", "\\n")
-                    .replace("\r", "\\r")
-                    .replace("\t", "\\t");
-        }
 
-        synchronized String getPlaylistStateJson() {
-            StringBuilder queue = new StringBuilder();
-            for (int i = 0; i < list.size(); i++) {
-                File f = list.get(i);
-                queue.append(String.format("{\"title\":\"%s\",\"isPlaying\":%b}",
-                    escapeJson(f.getName()), i == idx));
-                if (i < list.size() - 1) queue.append(",");
+        private static long threadAllocatedBytes() {
+            java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+            if (mx instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) mx).getCurrentThreadAllocatedBytes();
             }
-            
-            String now = list.isEmpty() ? "null" :
-                String.format("{\"title\":\"%s\",\"duration\":%.1f}",
-                              escapeJson(list.get(idx).getName()), totalDuration);
-            return String.format("{\"type\":\"PLAYLIST_UPDATE\",\"payload\":{\"queue\":[%s],\"now_playing\":%s}}",
-                                 queue, now);
+            return -1;
+        }
+
+        /** Load, heap allocation per frame and fan-out timing since the previous call. */
+        synchronized String drainStats() {
+            long now = System.nanoTime(), busy = busyNanos, f = frames, allocated = allocatedBytes;
+            String alloc = allocated < 0 || statsAllocated < 0 || f == statsFrames ? "n/a"
+                    : String.format("%.1f", (allocated - statsAllocated) / (double) (f - statsFrames));
+            int listeners = 0;
+            for (UDPStreamBroadcaster b : stations) listeners += b.subscribers.snapshot().length;
+            String s = String.format("worker %d: %d stations, %d frames, busy %.1f%%, %s bytes allocated/frame; %s",
+                    index, stations.length, f - statsFrames, 100.0 * (busy - statsBusy) / Math.max(1, now - statsAt),
+                    alloc, fanOut.drainStats(listeners));
+            statsBusy = busy;
+            statsFrames = f;
+            statsAllocated = allocated;
+            statsAt = now;
+            return s;
         }
     }
 
     /* ---------------------------------------------------------- *
      *  UDP STREAM BROADCASTER (PCM over UDP)
      * ---------------------------------------------------------- */
-    static class UDPStreamBroadcaster implements Runnable {
+    static class UDPStreamBroadcaster {
+        private static final long IDLE_RETRY_NS  = 1_000_000_000L; // off air / nothing to play
+        private static final long OPEN_RETRY_NS  = 5_000_000_000L; // track could not be opened
+        private static final long NOT_READY_NS   = 2_000_000L;     // source still opening or decoding
+        private static final long POSITION_EVERY_NS = 250_000_000L; // Station.position() refresh
+
+        private final Station            station;
+        private final PlaylistManager    playlistManager;
+        private final SubscriberRegistry subscribers;
+        private final StreamWorker       worker;
+        private final DatagramChannel  udp;
+        private final FanOutStage      fanOut;
+        private final InetSocketAddress multicastTarget; // null when multicast is disabled
+        private final PacketPacer      pacer = new PacketPacer(SAMPLE_RATE, CHANNELS * 2);
+        private final PacketBufferPool pool  = new PacketBufferPool(CODECS.length + 2, MAX_PACKET_BYTES); // one frame per variant + parity/EOS
+        private final ByteBuffer[]     variants = new ByteBuffer[CODECS.length]; // this frame, per codec id
+        private final byte[]           encoded  = new byte[PCM_FRAME_BYTES];
+        private final FecEncoder[]     fec      = new FecEncoder[CODECS.length]; // null entries when FEC is off
+        private volatile long          parityPackets = 0;
+        private          int           appliedGain   = PcmDsp.UNITY; // Q16 gain the last frame ended on
+        private final RetransmitRing[] history  = new RetransmitRing[CODECS.length]; // created on first use
+
+        /* NACK accounting, updated from the control plane's selector thread */
+        private final AtomicLong nackRequested = new AtomicLong();
+        private final AtomicLong nackResent    = new AtomicLong();
+        private final AtomicLong nackExpired   = new AtomicLong();
+        private final AtomicLong nackThrottled = new AtomicLong();
 
-        private final DatagramSocket udp;
+        /* Codec accounting: PCM bytes in vs payload bytes out, per codec id */
+        private final long[] codecPcmBytes     = new long[CODECS.length];
+        private final long[] codecPayloadBytes = new long[CODECS.length];
 
-        UDPStreamBroadcaster() {
-            DatagramSocket tmp = null;
-            try { tmp = new DatagramSocket(); }
-            catch (SocketException e) { e.printStackTrace(); }
-            udp = tmp;
+        /* Stream state, touched only by the owning StreamWorker's thread */
+        private final byte[]    buffer        = new byte[PCM_FRAME_BYTES];
+        private       long      seq           = 0;
+        private       long      streamSamples = 0;     // RTP-style media clock carried in the timestamp field
+        private       long      trackSamples  = 0;
+        private       File      song          = null;
+        private AsyncPcmSource  pcm           = null;  // current track
+        private AsyncPcmSource  next          = null;  // look-ahead decoder for the following track
+        private       File      nextSong      = null;
+        private       boolean   trackStart    = false; // the next frame is the first of a gapless transition
+        private       int       frameBytes    = -1;    // PCM bytes of the encoded, unsent frame; -1 = none
+        private       long      idleUntil     = 0;     // nanoTime before which there is nothing to do
+        private       long      positionDue   = 0;     // nanoTime of the next Station.position() update
+        private volatile long   framesStreamed = 0;
+
+        UDPStreamBroadcaster(Station station, StreamWorker worker) {
+            this.station         = station;
+            this.playlistManager = station.playlistManager;
+            this.subscribers     = station.subscribers;
+            this.worker          = worker;
+            this.udp             = worker.udp;
+            this.fanOut          = worker.fanOut;
+            this.multicastTarget = station.multicastTarget;
+            if (FEC_GROUP > 1) {
+                for (int id = 0; id < fec.length; id++) fec[id] = new FecEncoder(FEC_GROUP);
+            }
         }
 
-        @Override
-        public void run() {
-            if (udp == null) return;
+        /**
+         * One scheduling step, called by the owning {@link StreamWorker}. Sends the
+         * prepared frame if it is due, then reads and encodes the next one so the
+         * work is done ahead of its deadline. Returns the nanoTime at which this
+         * station next needs the CPU.
+         */
+        long poll(long now) {
+            if (now < idleUntil) return idleUntil;
+            if (frameBytes < 0 && !prepareFrame(now)) return idleUntil;
 
-            byte[] buffer = new byte[4096];  // ≈93 ms of PCM
-            long   seq    = 0;
+            long deadline = pacer.frameDeadline(now);
+            if (deadline - now > StreamWorker.SEND_EARLY_NS) return deadline - StreamWorker.SEND_EARLY_NS;
 
-            System.out.println("📻 UDP Stream Broadcaster started");
+            /* Send to every subscribed client (even if no clients, keep streaming) */
+            long sentAt = System.nanoTime();
+            sendVariants();
+            pacer.frameSent(frameBytes, deadline, sentAt);
+            streamSamples += frameBytes / BYTES_PER_SAMPLE_FRAME;
+            trackSamples  += frameBytes / BYTES_PER_SAMPLE_FRAME;
+            framesStreamed++;
+            frameBytes = -1;
+            if (sentAt - positionDue >= 0) {
+                station.position(song, trackSamples, sentAt); // for the journal's checkpoints
+                positionDue = sentAt + POSITION_EVERY_NS;
+            }
+
+            if (!prepareFrame(sentAt)) return idleUntil;
+            return pacer.nextDeadline() - StreamWorker.SEND_EARLY_NS;
+        }
 
+        /**
+         * Reads and encodes the next frame, handling track starts, gapless
+         * hand-overs and interruptions on the way. Returns false, with
+         * {@code idleUntil} set, when there is nothing to send yet.
+         */
+        private boolean prepareFrame(long now) {
             while (true) {
                 /* Wait until radio is active and has songs */
-                if (!isRadioActive || !playlistManager.hasSongs()) {
-                    sleep(1000);
-                    continue;
+                if (!station.isRadioActive || !playlistManager.hasSongs()) {
+                    closeSources();
+                    station.isStreamActive = false;
+                    pacer.reset();
+                    idleUntil = now + IDLE_RETRY_NS;
+                    return false;
                 }
-
-                File song = playlistManager.getCurrentTrack();
-                if (song == null) { 
-                    sleep(1000); 
-                    continue; 
+                if (pcm == null) openCurrentTrack();
+                if (pcm == null) {
+                    idleUntil = now + IDLE_RETRY_NS;
+                    return false;
+                }
+                if (pcm.openFailed()) {
+                    closeSources();
+                    station.isStreamActive = false;
+                    idleUntil = now + OPEN_RETRY_NS;
+                    return false;
                 }
 
-                isStreamActive = true;
-                System.out.println("🎵 Starting stream for: " + song.getName());
+                if (station.songWasManuallyChanged) {
+                    station.songWasManuallyChanged = false; // Reset flag
+                    System.out.println("Manual track change detected, restarting stream.");
+                    interruptStream();
+                    continue;
+                }
 
-                /* --------- Start ffmpeg process for this track ---------- */
-                Process ffmpeg;
+                int n;
                 try {
-                    // Calculate accurate seek position
-                    double seekTime = Math.max(0, currentTime);
-                    
-                    ffmpeg = new ProcessBuilder(
-                            "ffmpeg",
-                            "-loglevel", "quiet",
-                            "-ss", String.format("%.3f", seekTime),   // Accurate seek
-                            "-i",  song.getAbsolutePath(),
-                            "-f",  "s16le",
-                            "-acodec", "pcm_s16le",
-                            "-ac", "2",
-                            "-ar", String.valueOf(SAMPLE_RATE),
-                            "-"
-                    ).start();
+                    n = pcm.read(buffer, 0, buffer.length);
                 } catch (IOException e) {
-                    System.err.println("❌ Failed to start ffmpeg for " + song.getName());
-                    e.printStackTrace();
-                    sleep(5000);
+                    System.err.println("❌ Error streaming " + song.getName() + ": " + e.getMessage());
+                    interruptStream();
+                    continue;
+                }
+                if (n == 0) {
+                    idleUntil = now + NOT_READY_NS; // skip this tick rather than wait for the reader
+                    return false;
+                }
+                if (n == -1) {
+                    endOfTrack();
                     continue;
                 }
 
-                try (InputStream pcm = ffmpeg.getInputStream()) {
-                    int n;
-                    while (isRadioActive && (n = pcm.read(buffer)) != -1) {
-                        // Check if we need to move to next track
-                        if (currentTime >= totalDuration) {
-                            break; // Will trigger next track
-                        }
+                /* Look-ahead: start the next decoder before this track runs out */
+                if (next == null && nearEndOfTrack()) {
+                    nextSong = playlistManager.getNextTrack();
+                    if (nextSong != null) next = AsyncPcmSource.open(nextSong, 0L);
+                }
 
-                        if (songWasManuallyChanged) {
-                            songWasManuallyChanged = false; // Reset flag
-                            System.out.println("Manual track change detected, restarting stream.");
-                            break;
-                        }
+                /* Apply volume in-place */
+                applyVolume(buffer, n, station.currentVolume);
 
-                        /* Apply volume in-place */
-                        applyVolume(buffer, n, currentVolume);
-
-                        /* Build packet: 8 B seq, 8 B timestamp, 1 B flags, 4 B song_index, 2 B len */
-                        long timestamp = (long) currentTime;
-                        int songIndex = playlistManager.getCurrentSongIndex();
-
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream(n + HEADER_SIZE_BYTES);
-                        DataOutputStream dos = new DataOutputStream(baos);
-                        dos.writeLong(seq++);
-                        dos.writeLong(timestamp);
-                        dos.writeByte(0);        // flags
-                        dos.writeInt(songIndex); // song index in playlist
-                        dos.writeShort(n);
-                        dos.write(buffer, 0, n);
-
-                        byte[] pkt = baos.toByteArray();
-
-                        /* Send to every subscribed client (even if no clients, keep streaming) */
-                        synchronized (clients) {
-                            for (ClientHandler c : clients) {
-                                if (c.getUdpPort() > 0) {
-                                    DatagramPacket dp = new DatagramPacket(
-                                            pkt, pkt.length,
-                                            c.getAddr(),
-                                            c.getUdpPort()
-                                    );
-                                    try {
-                                        udp.send(dp);
-                                    } catch (IOException e) {
-                                        // Client might have disconnected, continue
-                                    }
-                                }
-                            }
-                        }
+                /* Build packet: 8 B seq, 8 B timestamp (stream sample clock), 1 B flags, 4 B song_index, 2 B len */
+                int  songIndex = playlistManager.getCurrentSongIndex();
+                byte flags     = trackStart ? FLAG_TRACK_START : 0;
+                trackStart = false;
 
-                        /* Pace: bytes / BYTES_PER_SEC  →  sleep(ms) */
-                        long ms = Math.max(1, (n * 1000L) / BYTES_PER_SEC);
-                        sleep(ms);
-                    }
-                } catch (IOException e) {
-                    System.err.println("❌ Error streaming " + song.getName());
-                    e.printStackTrace();
-                } finally {
-                    ffmpeg.destroyForcibly();
-                    isStreamActive = false;
+                /* Encode once per codec in use, before the deadline */
+                encodeVariants(seq++, streamSamples, flags, songIndex, buffer, n);
+                frameBytes = n;
+                return true;
+            }
+        }
+
+        /* Starts opening the current track, if there is one; pcm stays null if not */
+        private void openCurrentTrack() {
+            song = playlistManager.getCurrentTrack();
+            if (song == null) return;
+            station.isStreamActive = true;
+            System.out.println("🎵 [" + station.id + "] Starting stream for: " + song.getName());
+            /* --------- Open PCM: cached mapping, else a live ffmpeg decode ---------- */
+            PlayPosition resume = station.resume;
+            station.resume = null;
+            if (resume != null && resume.song.equals(song)) {
+                trackSamples = resume.samples;                // restart: where the journal says we were
+                System.out.println("⏩ [" + station.id + "] Resuming at " + String.format("%.3f", resume.samples / (double) SAMPLE_RATE) + " s");
+            } else {
+                trackSamples = (long) (Math.max(0, station.currentTime) * SAMPLE_RATE);
+            }
+            pcm = AsyncPcmSource.open(song, trackSamples);
+            AsyncPcmSource.prefetch(playlistManager.getNextTrack());
+        }
+
+        /* Natural end: splice the look-ahead source in with no gap and no EOS */
+        private void endOfTrack() {
+            pcm.close();
+            pcm = null;
+            if (!station.isRadioActive) return;
+            playlistManager.moveToNextTrack();
+            scheduler.execute(station::broadcastPlaylistUpdate);
+            File now = playlistManager.getCurrentTrack();
+            if (next != null && !next.openFailed() && now != null && now.equals(nextSong)) {
+                System.out.println("🎵 [" + station.id + "] Gapless transition to: " + now.getName());
+                pcm = next;
+                song = now;
+                trackSamples = 0;
+                trackStart = true;
+                AsyncPcmSource.prefetch(playlistManager.getNextTrack());
+            } else if (next != null) {
+                next.close(); // playlist changed under us; open the new current track normally
+            }
+            next = null;
+        }
+
+        /* Stream interrupted (manual change or read error): tell clients, then reopen the current track */
+        private void interruptStream() {
+            closeSources();
+            station.isStreamActive = false;
+            if (station.isRadioActive) {
+                sendEndOfStreamPacket();
+                station.songStartTime = System.currentTimeMillis(); // Reset start time for next track
+            }
+        }
+
+        private void closeSources() {
+            if (pcm != null)  { pcm.close();  pcm = null;  }
+            if (next != null) { next.close(); next = null; }
+        }
+
+        private boolean nearEndOfTrack() {
+            long remaining = pcm.remainingBytes();
+            if (remaining >= 0) return remaining <= LOOKAHEAD_SECONDS * BYTES_PER_SEC;
+            return trackSamples >= (long) ((station.totalDuration - LOOKAHEAD_SECONDS) * SAMPLE_RATE);
+        }
+
+        private void sendEndOfStreamPacket() {
+            // seq = -1 signals EOS, len = 0; the same raw packet goes to every codec group
+            flushParity();
+            ByteBuffer pkt = pool.acquire();
+            PacketEncoder.encode(pkt, -1, System.currentTimeMillis(), FLAG_EOS,
+                                 playlistManager.getCurrentSongIndex(), null, 0, 0);
+            sendToMulticast(pkt);
+            for (int id = 0; id < CODECS.length; id++) {
+                fanOut.send(pkt, subscribers.unicast(id), FRAME_PERIOD_NS);
+            }
+            pool.release(pkt);
+        }
+
+        private boolean codecInUse(int id) {
+            if (CODECS[id].id() != id) return false; // slot of a disabled codec
+            return subscribers.unicast(id).length > 0
+                    || (multicastTarget != null && MULTICAST_CODEC.id() == id && subscribers.hasMulticastMembers());
+        }
+
+        /* One packet per codec somebody listens with. Incompressible frames fall back to raw PCM. */
+        private void encodeVariants(long seq, long timestamp, byte flags, int songIndex, byte[] pcm, int n) {
+            for (int id = 0; id < CODECS.length; id++) {
+                if (!codecInUse(id)) continue;
+                ByteBuffer pkt = pool.acquire();
+                int len = id == 0 ? -1 : CODECS[id].encode(pcm, 0, n, encoded);
+                if (len < 0) {
+                    PacketEncoder.encode(pkt, seq, timestamp, flags, songIndex, pcm, 0, n);
+                    len = n;
+                } else {
+                    byte coded = (byte) (flags | ((id << FLAG_CODEC_SHIFT) & FLAG_CODEC_MASK));
+                    PacketEncoder.encode(pkt, seq, timestamp, coded, songIndex, encoded, 0, len);
                 }
+                codecPcmBytes[id]     += n;
+                codecPayloadBytes[id] += len;
+                variants[id] = pkt;
+            }
+        }
 
-                // Move to next track after song finishes
-                if (isRadioActive) {
-                    try {
-                        sendEndOfStreamPacket();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    // playlistManager.moveToNextTrack();
-                    // broadcastPlaylistUpdate();
-                    songStartTime = System.currentTimeMillis(); // Reset start time for next track
-                }
-            }
-        }
-
-        private void sendEndOfStreamPacket() throws IOException {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(HEADER_SIZE_BYTES);
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeLong(-1);                       // seq = -1 signals EOS
-            dos.writeLong(System.currentTimeMillis());
-            dos.writeByte(0x02);                     // EOS flag
-            dos.writeInt(playlistManager.getCurrentSongIndex()); // song index
-            dos.writeShort(0);                       // len = 0
-            byte[] pkt = baos.toByteArray();
-
-            synchronized (clients) {
-                for (ClientHandler c : clients) {
-                    if (c.getUdpPort() > 0) {
-                        try {
-                            udp.send(new DatagramPacket(pkt, pkt.length,
-                                    c.getAddr(), c.getUdpPort()));
-                        } catch (IOException e) {
-                            // Client disconnected, continue
-                        }
+        private void sendVariants() {
+            for (int id = 0; id < variants.length; id++) {
+                ByteBuffer pkt = variants[id];
+                if (pkt == null) continue;
+                sendToCodecGroup(id, pkt);
+                if (RETRANSMIT_RATE > 0) {
+                    if (history[id] == null) history[id] = new RetransmitRing(RETRANSMIT_FRAMES);
+                    history[id].store(pkt);
+                }
+                if (fec[id] != null && fec[id].add(pkt)) sendParity(id);
+                pool.release(pkt);
+                variants[id] = null;
+            }
+        }
+
+        private void sendToCodecGroup(int id, ByteBuffer pkt) {
+            if (id == MULTICAST_CODEC.id()) sendToMulticast(pkt);
+            fanOut.send(pkt, subscribers.unicast(id), FRAME_PERIOD_NS);
+        }
+
+        private void sendParity(int id) {
+            ByteBuffer parity = pool.acquire();
+            fec[id].emit(parity);
+            sendToCodecGroup(id, parity);
+            pool.release(parity);
+            parityPackets++;
+        }
+
+        /* Protect the tail of the stream before it is interrupted */
+        private void flushParity() {
+            for (int id = 0; id < fec.length; id++) {
+                if (fec[id] != null && fec[id].pending()) sendParity(id);
+            }
+        }
+
+        /**
+         * Resends the first {@code granted} of the requested frames to one client,
+         * in the variant it listens to. Called on the control plane's selector
+         * thread, which serves every connection, so the resends go out on its own
+         * non-blocking {@code channel} rather than the stream worker's blocking
+         * one: a full send buffer drops the rest of the batch instead of stalling
+         * the selector or contending with the worker. Multicast members get their
+         * resends unicast on the group port they listen on.
+         */
+        void retransmit(ClientHandler c, long[] seqs, int count, int granted, ByteBuffer buf, DatagramChannel channel) {
+            nackRequested.addAndGet(count);
+            nackThrottled.addAndGet(count - granted);
+            boolean member = c.isMulticastMember();
+            int id = member ? MULTICAST_CODEC.id() : c.getCodecId();
+            RetransmitRing ring = history[id];
+            InetSocketAddress target = member
+                    ? new InetSocketAddress(c.getAddr(), multicastTarget.getPort()) : c.getUdpTarget();
+            for (int i = 0; i < granted; i++) {
+                if (ring == null || !ring.copy(seqs[i], buf)) {
+                    nackExpired.incrementAndGet();
+                    continue;
+                }
+                try {
+                    if (channel.send(buf, target) == 0) {
+                        nackThrottled.addAndGet(granted - i); // send buffer full; the client's deadline will pass anyway
+                        return;
                     }
+                    nackResent.incrementAndGet();
+                } catch (IOException e) {
+                    return; // client unreachable; its handler will notice the disconnect
                 }
             }
         }
 
-        /* 16-bit PCM volume scale */
-        private void applyVolume(byte[] buf, int len, double vol) {
-            for (int i = 0; i + 1 < len; i += 2) {
-                short s = (short)((buf[i] & 0xFF) | (buf[i+1] << 8));
-                s = (short)(s * vol);
-                buf[i]   = (byte)(s & 0xFF);
-                buf[i+1] = (byte)((s >> 8) & 0xFF);
+        String getRetransmitStats() {
+            if (RETRANSMIT_RATE <= 0) return "retransmit: off";
+            return String.format("retransmit: %d requested, %d resent, %d expired, %d throttled (limit %d/s per client, %d frames kept)",
+                    nackRequested.get(), nackResent.get(), nackExpired.get(), nackThrottled.get(),
+                    RETRANSMIT_RATE, RETRANSMIT_FRAMES);
+        }
+
+        /* One copy to the group serves every multicast member */
+        private void sendToMulticast(ByteBuffer pkt) {
+            if (multicastTarget == null || !subscribers.hasMulticastMembers()) return;
+            pkt.rewind();
+            try {
+                udp.send(pkt, multicastTarget);
+            } catch (IOException e) {
+                // Group unreachable on this interface; unicast members are unaffected
+            }
+        }
+
+        String getCodecStats() {
+            StringBuilder sb = new StringBuilder("codecs:");
+            sb.append(FEC_GROUP > 1 ? " fec 1/" + FEC_GROUP + " (" + parityPackets + " parity packets);" : " fec off;");
+            for (int id = 0; id < CODECS.length; id++) {
+                if (CODECS[id].id() != id || codecPcmBytes[id] == 0) continue;
+                sb.append(String.format(" %s %.1f%% of PCM (%d subscribers);", CODECS[id].name(),
+                        100.0 * codecPayloadBytes[id] / codecPcmBytes[id], subscribers.unicast(id).length));
             }
+            return sb.toString();
         }
 
-        private void sleep(long ms) {
-            try { Thread.sleep(ms); } catch (InterruptedException ignored) { }
+        /* 16-bit PCM volume scale, ramped across one frame on change so the slider never clicks */
+        private void applyVolume(byte[] buf, int len, double vol) {
+            int target = PcmDsp.gainQ16(vol);
+            PcmDsp.ramp(buf, 0, len, appliedGain, target);
+            appliedGain = target;
         }
+
+        String getPacerStats()  { return pacer.drainStats(); }
+        String getStreamStats() { return "stream: " + framesStreamed + " frames sent, pool misses " + pool.getMisses(); }
     }
 
     /* ---------------------------------------------------------- *
-     *  UTILITY: broadcast helpers
+     *  UTILITY: station registry
      * ---------------------------------------------------------- */
-    private static void updateCurrentTime() {
-        if (isRadioActive && playlistManager.hasSongs()) {
-            long now = System.currentTimeMillis();
-            currentTime = (now - songStartTime) / 1000.0;
-
-            // System.out.println("DEBUG: currentTime=" + currentTime + ", totalDuration=" + totalDuration + ", songIndex=" + playlistManager.getCurrentSongIndex() + ", songCount=" + playlistManager.getSongCount());
-            
-            // Check if current song finished
-            if (currentTime >= totalDuration) {
-                // System.out.println("DEBUG: Song finished - moving to next track");
-                playlistManager.moveToNextTrack();
-                broadcastPlaylistUpdate();
+    /**
+     * Creates the default station on AUDIO_DIR plus one per sub-directory (and
+     * per id in -Dradio.stations, creating its directory), in a stable order.
+     */
+    private static void createStations(File audioDir) {
+        Set<String> ids = new TreeSet<>();
+        // Name test first: a stat per track would dominate startup in a large library
+        File[] dirs = audioDir.listFiles((d, n) -> !n.startsWith(".") && !n.endsWith(".mp3") && new File(d, n).isDirectory());
+        if (dirs != null) {
+            for (File d : dirs) {
+                if (isStationId(d.getName())) ids.add(d.getName());
+                else System.out.println("⚠️ Skipping " + d.getName() + ": station names are letters, digits, '.', '_' and '-'");
             }
         }
+        String extra = System.getProperty("radio.stations");
+        if (extra != null) {
+            for (String id : extra.split(",")) {
+                id = id.trim();
+                if (isStationId(id)) ids.add(id);
+            }
+        }
+        registerStation(new Station(DEFAULT_STATION, 0, audioDir));
+        int ordinal = 1;
+        for (String id : ids) {
+            if (id.equals(DEFAULT_STATION)) continue;
+            File dir = new File(audioDir, id);
+            if (!dir.exists()) dir.mkdirs();
+            registerStation(new Station(id, ordinal++, dir));
+        }
     }
 
-    private static void broadcastPlaylistUpdate() { 
-        broadcast(playlistManager.getPlaylistStateJson()); 
-    }
-
-    private static void broadcastPlaybackState() { 
-        broadcast(getPlaybackStateJson()); 
+    /* Goes into JSON and into the space-separated SUBSCRIBE line as is */
+    private static boolean isStationId(String id) {
+        return !id.isEmpty() && id.matches("[A-Za-z0-9._-]+") && !id.startsWith(".");
     }
 
-    private static void broadcast(String msg) {
-        synchronized (clients) { 
-            for (ClientHandler c : clients) {
-                try {
-                    c.sendMessage(msg);
-                } catch (Exception e) {
-                    // Client might have disconnected
-                }
-            }
-        }
+    private static void registerStation(Station station) {
+        stations.put(station.id, station);
+        stationList = stations.values().toArray(new Station[0]);
     }
 
-    private static String getPlaybackStateJson() {
-        File currentSong = playlistManager.getCurrentTrack();
-        String songName = currentSong != null ? currentSong.getName() : "No song";
-        
-        // Proper JSON escaping for song names with quotes or backslashes
-        String escapedSongName = songName.replace("\\", "\\\\").replace("\"", "\\\"");
+    static Station station(String id) { return id == null ? defaultStation() : stations.get(id); }
+    static Station defaultStation()   { return stations.get(DEFAULT_STATION); }
+    static Station[] allStations()    { return stationList; }
 
-        return String.format(
-            "{\"type\":\"PLAYBACK_STATE\",\"payload\":{\"playing\":%b,\"volume\":%.2f," +
-            "\"progress\":%.3f,\"currentTime\":%.1f,\"duration\":%.1f,\"currentSong\":\"%s\",\"radioActive\":%b}}",
-            isRadioActive && isStreamActive, currentVolume,
-            totalDuration > 0 ? Math.min(1.0, currentTime / totalDuration) : 0,
-            currentTime, totalDuration, escapedSongName, isRadioActive
-        );
+    private static String getStationsJson() {
+        StringBuilder list = new StringBuilder();
+        for (Station st : allStations()) {
+            if (list.length() > 0) list.append(',');
+            File now = st.playlistManager.getCurrentTrack();
+            list.append(String.format("{\"id\":\"%s\",\"listeners\":%d,\"tracks\":%d,\"onAir\":%b,\"nowPlaying\":%s}",
+                    PlaylistSnapshot.escapeJson(st.id), st.subscribers.snapshot().length, st.playlistManager.getSongCount(),
+                    st.isRadioActive, now == null ? "null" : "\"" + PlaylistSnapshot.escapeJson(now.getName()) + "\""));
+        }
+        return "{\"type\":\"STATIONS\",\"payload\":{\"stations\":[" + list + "]}}";
     }
 
     /* ---------------------------------------------------------- *
      *  CONSOLE HANDLER for admin commands
      * ---------------------------------------------------------- */
     static class ConsoleHandler implements Runnable {
+        private Station station = defaultStation(); // target of list/delete/stats
+
         @Override
         public void run() {
             BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in));
@@ -577,12 +4036,13 @@ public class server {
             System.out.println("\n---------------------------------------------------");
             System.out.println("     SERVER ADMIN CONSOLE IS READY");
             System.out.println("---------------------------------------------------");
-            System.out.println("Commands: 'list' (show playlist), 'delete' (remove song), 'exit' (shutdown console).");
+            System.out.println("Commands: 'list' (show playlist), 'delete' (remove song), 'stats' (stream timing),");
+            System.out.println("          'stations' (all stations), 'station <id>' (switch station), 'exit' (shutdown console).");
 
 
             while (true) {
                 try {
-                    System.out.print("\nadmin> ");
+                    System.out.print("\nadmin[" + station.id + "]> ");
                     String command = consoleReader.readLine();
                     if (command == null || command.equalsIgnoreCase("exit")) {
                         System.out.println("Shutting down admin console.");
@@ -593,8 +4053,16 @@ public class server {
                         printPlaylist();
                     } else if (command.equalsIgnoreCase("delete")) {
                         handleDelete(consoleReader);
+                    } else if (command.equalsIgnoreCase("stats")) {
+                        printStats();
+                    } else if (command.equalsIgnoreCase("stations")) {
+                        printStations();
+                    } else if (command.toLowerCase().startsWith("station ")) {
+                        Station target = station(command.substring(8).trim());
+                        if (target == null) System.out.println("No such station. Try 'stations'.");
+                        else station = target;
                     } else if (!command.trim().isEmpty()) {
-                         System.out.println("Unknown command. Available: 'list', 'delete', 'exit'");
+                         System.out.println("Unknown command. Available: 'list', 'delete', 'stats', 'stations', 'station <id>', 'exit'");
                     }
 
                 } catch (IOException e) {
@@ -605,31 +4073,58 @@ public class server {
         }
 
         private void printPlaylist() {
-            synchronized (playlistManager) {
-                List<File> playlist = playlistManager.getPlaylist();
-                if (playlist.isEmpty()) {
-                    System.out.println("Playlist is empty.");
-                    return;
-                }
-                System.out.println("\n--- Current Playlist ---");
-                for (int i = 0; i < playlist.size(); i++) {
-                    boolean isPlaying = (i == playlistManager.getCurrentSongIndex() && isRadioActive);
-                    System.out.printf("  [%d] %s %s\n", i, playlist.get(i).getName(), isPlaying ? "<- NOW PLAYING" : "");
-                }
-                System.out.println("------------------------");
+            PlaylistSnapshot snap = station.playlistManager.snapshot();
+            List<File> playlist = snap.tracks;
+            if (playlist.isEmpty()) {
+                System.out.println("Playlist is empty.");
+                return;
+            }
+            System.out.println("\n--- Current Playlist ---");
+            for (int i = 0; i < playlist.size(); i++) {
+                boolean isPlaying = (i == snap.idx && station.isRadioActive);
+                System.out.printf("  [%d] %s %s\n", i, playlist.get(i).getName(), isPlaying ? "<- NOW PLAYING" : "");
+            }
+            System.out.println("------------------------");
+        }
+
+        private void printStations() {
+            for (Station st : allStations()) {
+                File now = st.playlistManager.getCurrentTrack();
+                System.out.printf("  %-16s %3d tracks  %4d listeners  %s%s\n", st.id, st.playlistManager.getSongCount(),
+                        st.subscribers.snapshot().length, st.isRadioActive ? "ON AIR" : "OFF AIR",
+                        now != null && st.isRadioActive ? "  - " + now.getName() : "");
+            }
+        }
+
+        private void printStats() {
+            System.out.println(controlPlane.getStats());
+            if (libraryWatcher != null) System.out.println(libraryWatcher.stats());
+            System.out.println(ingest.stats());
+            System.out.println(station.playlistManager.journalStats());
+            UDPStreamBroadcaster broadcaster = station.broadcaster;
+            if (broadcaster == null) {
+                System.out.println("Broadcaster not started.");
+                return;
             }
+            System.out.println(streamScheduler.stats());
+            System.out.println("[" + station.id + "] " + broadcaster.getPacerStats());
+            System.out.println("[" + station.id + "] " + broadcaster.getStreamStats());
+            System.out.println("[" + station.id + "] " + broadcaster.getCodecStats());
+            System.out.println("[" + station.id + "] " + broadcaster.getRetransmitStats());
+            System.out.println(pcmCache.stats());
+            System.out.println(trackIndex.stats());
         }
 
         private void handleDelete(BufferedReader reader) throws IOException {
              printPlaylist();
-             if (!playlistManager.hasSongs()) return;
+             if (!station.playlistManager.hasSongs()) return;
 
              System.out.print("Enter the index of the song to delete: ");
              try {
                 String indexStr = reader.readLine();
                 if (indexStr == null) return;
                 int index = Integer.parseInt(indexStr.trim());
-                playlistManager.deleteSong(index);
+                station.playlistManager.deleteSong(index);
              } catch (NumberFormatException e) {
                 System.out.println("Invalid number format. Please enter a valid index.");
              }
@@ -638,40 +4133,320 @@ public class server {
 
 
     /* ---------------------------------------------------------- *
-     *  YT-DLP DOWNLOADER
+     *  INGEST PIPELINE (download → probe → pre-decode → index)
      * ---------------------------------------------------------- */
-    private static void downloadAndAddToPlaylist(String url) {
-        new Thread(() -> {
+    /**
+     * Turns DOWNLOAD requests into library tracks on a bounded pool of
+     * INGEST_WORKERS threads, so a burst of requests never forks more
+     * downloaders than that. Jobs beyond the workers wait in a queue of
+     * INGEST_QUEUE. A client may have at most INGEST_PER_CLIENT jobs
+     * pending. A URL already being fetched for the same station is not
+     * fetched again: the second requester is attached to the running job.
+     *
+     * A job runs these stages:
+     * <ol>
+     * <li>download: runs INGEST_COMMAND ({url} and {dir} substituted, no
+     *     shell) into a hidden staging directory the library watcher does not
+     *     see. Percentages are read from "[download] 42.0%" lines. The output
+     *     file is the .mp3 path the downloader prints (yt-dlp's
+     *     {@code --print after_move:filepath}), or else the one .mp3 it left
+     *     in staging.</li>
+     * <li>probe: moves the file into the library and indexes its duration.</li>
+     * <li>decode: fills the PCM cache.</li>
+     * <li>index: appends it to the playlist.</li>
+     * </ol>
+     * The requesters get DOWNLOAD_PROGRESS messages along the way. The
+     * station gets DOWNLOAD_COMPLETE at the end. A failed probe or decode is
+     * logged and the track is listed anyway, with the same fallbacks as a
+     * file dropped into the library by hand. Point INGEST_COMMAND at
+     * download_stub.py to run all of this without yt-dlp or the network.
+     */
+    static class IngestScheduler {
+        private static final Pattern PERCENT =
+                Pattern.compile("^\\[download\\]\\s+(\\d+(?:\\.\\d+)?)%");
+        private static final int TAIL_LINES = 20;      // downloader output kept for the log on failure
+        private static final long PROGRESS_EVERY_MS = 250;
+
+        static final class Job {
+            final String   key, url;
+            final Station  station;
+            final List<ClientHandler> requesters = new ArrayList<>(); // guarded by the scheduler
+            String  stage = "queued";
+            double  percent = 0;
+            long    lastProgress = 0;
+
+            Job(String key, String url, Station station) {
+                this.key = key;
+                this.url = url;
+                this.station = station;
+            }
+        }
+
+        private final ThreadPoolExecutor pool;
+        private final Map<String, Job> active = new HashMap<>();            // dedup key -> queued or running job
+        private final Map<ClientHandler, Integer> perClient = new HashMap<>();
+        private final Set<Path> claimed = ConcurrentHashMap.newKeySet();    // moved in, not listed yet
+        private final AtomicInteger jobIds = new AtomicInteger();
+        private long submitted = 0, deduplicated = 0, rejected = 0, completed = 0, failed = 0;
+
+        IngestScheduler(int workers, int queue) {
+            AtomicInteger n = new AtomicInteger();
+            pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, queue)), r -> {
+                        Thread t = new Thread(r, "ingest-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+
+        /** Queues {@code url} for {@code st} on behalf of {@code client}; answers it with progress or an error. */
+        void submit(ClientHandler client, Station st, String url) {
+            if (url.isEmpty()) return;
+            if (!isWebUrl(url)) {
+                // The URL ends up in the downloader's argv; anything else (e.g. "--exec ...") could be read as an option
+                synchronized (this) { rejected++; }
+                client.sendMessage(errorJson(url, "only http(s) URLs can be downloaded"));
+                return;
+            }
+            String key = st.id + " " + normalize(url);
+            Job job;
+            synchronized (this) {
+                job = active.get(key);
+                if (job != null) {
+                    if (!job.requesters.contains(client)) job.requesters.add(client);
+                    deduplicated++;
+                    client.sendMessage(progressJson(job));
+                    return;
+                }
+                if (perClient.getOrDefault(client, 0) >= INGEST_PER_CLIENT) {
+                    rejected++;
+                    client.sendMessage(errorJson(url, "too many downloads in progress"));
+                    return;
+                }
+                job = new Job(key, url, st);
+                job.requesters.add(client);
+                try {
+                    Job j = job;
+                    pool.execute(() -> run(j));
+                } catch (RejectedExecutionException e) {
+                    rejected++;
+                    client.sendMessage(errorJson(url, "download queue is full"));
+                    return;
+                }
+                active.put(key, job);
+                perClient.merge(client, 1, Integer::sum);
+                submitted++;
+            }
+            System.out.println("📥 [" + st.id + "] Queued download: " + url);
+            progress(job, "queued", 0, true);
+        }
+
+        /** True while a finished download sits in the library but is not listed yet. */
+        boolean isClaimed(Path file) { return claimed.contains(file); }
+
+        private void run(Job job) {
+            Station st = job.station;
+            File staging = new File(new File(st.dir, ".ingest"), Integer.toString(jobIds.incrementAndGet()));
+            File track = null;
             try {
-                System.out.println("📥 Downloading: " + url);
-                ProcessBuilder pb = new ProcessBuilder("python", "download.py", url);
-                pb.redirectErrorStream(true);
-                Process p = pb.start();
-                
-                try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
-                    String ln; 
-                    while ((ln = r.readLine()) != null) {
-                        System.out.println(ln);
+                System.out.println("📥 [" + st.id + "] Downloading: " + job.url);
+                File downloaded = download(job, staging);
+                if (downloaded == null) return;
+
+                progress(job, "probe", 100, true);
+                track = moveIntoLibrary(downloaded, st.dir);
+                if (track == null) {
+                    finish(job, null, "could not move the download into the library");
+                    return;
+                }
+                TrackIndex.TrackInfo info = trackIndex.probeNow(track);
+                if (info == null) System.err.println("⚠️ [" + st.id + "] No duration for " + track.getName() + ", listing it anyway");
+
+                progress(job, "decode", 100, true);
+                if (!pcmCache.decodeNow(track)) System.err.println("⚠️ [" + st.id + "] Not pre-decoded: " + track.getName());
+
+                progress(job, "index", 100, true);
+                st.playlistManager.addTracks(Collections.singletonList(track));
+                st.broadcastPlaylistUpdate();
+                finish(job, track, null);
+            } catch (RuntimeException e) {
+                System.err.println("❌ Ingest of " + job.url + " failed: " + e);
+                finish(job, null, "internal error");
+            } finally {
+                if (track != null) claimed.remove(track.toPath());
+                deleteTree(staging);
+            }
+        }
+
+        /* Runs the downloader; returns the file it produced, or null after reporting the failure */
+        private File download(Job job, File staging) {
+            if (!staging.mkdirs()) {
+                finish(job, null, "cannot create " + staging);
+                return null;
+            }
+            List<String> command = new ArrayList<>();
+            for (String part : INGEST_COMMAND.trim().split("\\s+")) {
+                command.add(part.replace("{url}", job.url).replace("{dir}", staging.getPath()));
+            }
+            ArrayDeque<String> tail = new ArrayDeque<>();
+            File printed = null;
+            Process p;
+            try {
+                p = new ProcessBuilder(command).redirectErrorStream(true).start();
+            } catch (IOException e) {
+                System.err.println("❌ Cannot start downloader " + command.get(0) + ": " + e.getMessage());
+                finish(job, null, "downloader unavailable");
+                return null;
+            }
+            ScheduledFuture<?> watchdog =
+                    scheduler.schedule(() -> killTree(p), INGEST_TIMEOUT_S, TimeUnit.SECONDS);
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+                progress(job, "download", 0, true);
+                String ln;
+                while ((ln = r.readLine()) != null) {
+                    Matcher m = PERCENT.matcher(ln.trim());
+                    if (m.find()) {
+                        progress(job, "download", Double.parseDouble(m.group(1)), false);
+                        continue;
                     }
+                    String path = ln.trim();
+                    if (path.endsWith(".mp3") && new File(path).isFile()) printed = new File(path);
+                    if (tail.size() == TAIL_LINES) tail.removeFirst();
+                    tail.addLast(ln);
                 }
-                
-                if (p.waitFor() == 0) {
-                    System.out.println("✅ Download completed successfully");
-                    playlistManager.scanDirectory();
-                    broadcastPlaylistUpdate();
-                    
-                    // Send success message to clients
-                    broadcast("{\"type\":\"DOWNLOAD_COMPLETE\",\"payload\":{\"url\":\"" + url + "\"}}");
-                } else {
-                    System.out.println("❌ Download failed, exit code: " + p.exitValue());
-                    broadcast("{\"type\":\"DOWNLOAD_ERROR\",\"payload\":{\"url\":\"" + url + "\"}}");
+                int exit = p.waitFor();
+                if (exit != 0) {
+                    System.out.println("❌ Download failed, exit code: " + exit + " (" + job.url + ")");
+                    for (String t : tail) System.out.println("   " + t);
+                    finish(job, null, watchdog.isDone() ? "download timed out" : "download failed");
+                    return null;
+                }
+            } catch (IOException e) {
+                finish(job, null, watchdog.isDone() ? "download timed out" : "download failed: " + e.getMessage());
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                killTree(p);
+                finish(job, null, "interrupted");
+                return null;
+            } finally {
+                watchdog.cancel(false);
+            }
+            if (printed == null) {
+                File[] mp3 = staging.listFiles((f, n) -> n.endsWith(".mp3"));
+                if (mp3 != null && mp3.length == 1) printed = mp3[0];
+            }
+            if (printed == null) finish(job, null, "downloader produced no .mp3");
+            return printed;
+        }
+
+        /*
+         * Kills the downloader and everything it started. yt-dlp and its ffmpeg
+         * inherit the stdout pipe, so killing only the direct child would leave
+         * readLine() blocked until they exit. Children first: once the parent
+         * is gone they are reparented and no longer its descendants.
+         */
+        private static void killTree(Process p) {
+            p.descendants().forEach(ProcessHandle::destroyForcibly);
+            p.destroyForcibly();
+            try {
+                p.getInputStream().close(); // anything that escaped still cannot hold up the reader
+            } catch (IOException ignored) {
+            }
+        }
+
+        /* Same-directory rename into the library, numbered if the name is taken; claims it from the watcher */
+        private File moveIntoLibrary(File downloaded, File dir) {
+            String name = downloaded.getName();
+            String base = name.substring(0, name.length() - ".mp3".length());
+            for (int n = 1; n < 100; n++) {
+                File target = new File(dir, n == 1 ? name : base + " (" + n + ").mp3");
+                if (!claimed.add(target.toPath())) continue;
+                if (!target.exists()) {
+                    try {
+                        Files.move(downloaded.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                        return target;
+                    } catch (IOException e) {
+                        System.err.println("❌ Cannot move " + name + " into " + dir + ": " + e.getMessage());
+                        claimed.remove(target.toPath());
+                        return null;
+                    }
                 }
-            } catch (IOException | InterruptedException e) {
-                System.err.println("❌ Download error: " + e.getMessage());
-                e.printStackTrace();
-                broadcast("{\"type\":\"DOWNLOAD_ERROR\",\"payload\":{\"url\":\"" + url + "\"}}");
+                claimed.remove(target.toPath());
+            }
+            return null;
+        }
+
+        private void finish(Job job, File track, String error) {
+            List<ClientHandler> requesters;
+            synchronized (this) {
+                active.remove(job.key);
+                requesters = new ArrayList<>(job.requesters);
+                for (ClientHandler c : requesters) perClient.computeIfPresent(c, (k, v) -> v > 1 ? v - 1 : null);
+                if (error == null) completed++; else failed++;
+            }
+            if (error == null) {
+                System.out.println("✅ [" + job.station.id + "] Added " + track.getName());
+                job.station.broadcast("{\"type\":\"DOWNLOAD_COMPLETE\",\"payload\":{\"url\":\"" + PlaylistSnapshot.escapeJson(job.url)
+                        + "\",\"title\":\"" + PlaylistSnapshot.escapeJson(track.getName()) + "\"}}");
+            } else {
+                System.out.println("❌ [" + job.station.id + "] " + job.url + ": " + error);
+                String msg = errorJson(job.url, error);
+                for (ClientHandler c : requesters) c.sendMessage(msg);
+            }
+        }
+
+        /* Sends a stage change at once, download percentages at most every PROGRESS_EVERY_MS */
+        private void progress(Job job, String stage, double percent, boolean force) {
+            String msg;
+            List<ClientHandler> requesters;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                boolean changed = !stage.equals(job.stage);
+                job.stage = stage;
+                job.percent = percent;
+                if (!force && !changed && now - job.lastProgress < PROGRESS_EVERY_MS) return;
+                job.lastProgress = now;
+                msg = progressJson(job);
+                requesters = new ArrayList<>(job.requesters);
             }
-        }).start();
+            for (ClientHandler c : requesters) c.sendMessage(msg);
+        }
+
+        /* Caller holds the lock */
+        private String progressJson(Job job) {
+            return String.format(Locale.ROOT,
+                    "{\"type\":\"DOWNLOAD_PROGRESS\",\"payload\":{\"url\":\"%s\",\"stage\":\"%s\",\"percent\":%.1f,\"queued\":%d}}",
+                    PlaylistSnapshot.escapeJson(job.url), job.stage, job.percent, pool.getQueue().size());
+        }
+
+        private static String errorJson(String url, String reason) {
+            return "{\"type\":\"DOWNLOAD_ERROR\",\"payload\":{\"url\":\"" + PlaylistSnapshot.escapeJson(url)
+                    + "\",\"reason\":\"" + PlaylistSnapshot.escapeJson(reason) + "\"}}";
+        }
+
+        static boolean isWebUrl(String url) {
+            String u = url.toLowerCase(Locale.ROOT);
+            return (u.startsWith("http://") || u.startsWith("https://")) && url.chars().noneMatch(Character::isWhitespace);
+        }
+
+        /* One key per video: youtu.be/ID, watch?v=ID and their variants all map to "yt:ID" */
+        static String normalize(String url) {
+            Matcher m = Pattern
+                    .compile("(?:youtu\\.be/|youtube\\.com/(?:watch\\?(?:.*&)?v=|shorts/|embed/))([A-Za-z0-9_-]{11})")
+                    .matcher(url);
+            return m.find() ? "yt:" + m.group(1) : url.trim();
+        }
+
+        private static void deleteTree(File f) {
+            File[] children = f.listFiles();
+            if (children != null) for (File c : children) deleteTree(c);
+            f.delete();
+        }
+
+        synchronized String stats() {
+            return String.format("ingest: %d running, %d queued, %d submitted, %d deduplicated, %d rejected, %d completed, %d failed",
+                    pool.getActiveCount(), pool.getQueue().size(), submitted, deduplicated, rejected, completed, failed);
+        }
     }
 }
-
@@ -0,0 +1,36 @@
+package com.musicstreamer;
+
+/**
+ * Payload codec SPI for the UDP stream. The codec id travels in header flag
+ * bits 4-5, so each frame says how it was encoded; the name is what we offer
+ * the server in {@code SUBSCRIBE ... codecs=}.
+ */
+public interface AudioCodec {
+    int FLAG_CODEC_SHIFT = 4;
+    int FLAG_CODEC_MASK = 0x30;
+
+    int id();
+
+    String name();
+
+    /**
+     * Decodes one frame into s16le stereo PCM.
+     *
+     * @return number of PCM bytes written to {@code out}, or -1 if the payload is corrupt
+     */
+    int decode(byte[] in, int off, int len, byte[] out);
+
+    /** Codecs this client can decode, indexed by id. */
+    static AudioCodec[] supported() {
+        return new AudioCodec[] { new RawPcmCodec(), new LpcRiceCodec() };
+    }
+
+    /** Comma-separated preference list for the SUBSCRIBE handshake, best first. */
+    static String offer() {
+        return "lpcr,pcm";
+    }
+
+    static int codecId(byte flags) {
+        return (flags & FLAG_CODEC_MASK) >> FLAG_CODEC_SHIFT;
+    }
+}
@@ -1,15 +1,22 @@
 package com.musicstreamer;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Arrays;
-import java.util.PriorityQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
@@ -20,23 +27,52 @@ import javax.sound.sampled.SourceDataLine;
 public class AudioStreamReceiver implements Runnable {
     private static final int BUFFER_SIZE_BYTES = 4096;
     private static final int HEADER_SIZE_BYTES = 23; // 8+8+1+4+2 = seq+timestamp+flags+song_index+length
-    private static final int MAX_PACKET_SIZE = BUFFER_SIZE_BYTES + HEADER_SIZE_BYTES;
+    private static final int MAX_PACKET_SIZE = BUFFER_SIZE_BYTES + HEADER_SIZE_BYTES + 4; // FEC parity adds a 4-byte prefix
     private static final int SAMPLE_RATE = 44100;
     private static final int BITS_PER_SAMPLE = 16;
     private static final int CHANNELS = 2;
     private static final int FRAME_SIZE = CHANNELS * (BITS_PER_SAMPLE / 8);
 
-    // Jitter Buffer settings
-    private static final int MIN_JITTER_BUFFER_PACKETS = 10;
+    // Header flags
+    private static final byte FLAG_TRACK_START = 0x04; // gapless transition: this frame is the new track's first sample
+
+    // Jitter Buffer settings: the playout delay is set by PlayoutController between these bounds
     private static final int MAX_JITTER_BUFFER_PACKETS = 250;
-    private static final int TARGET_JITTER_BUFFER_PACKETS = 30; // Start with a modest target
-    private int jitterBufferSize = TARGET_JITTER_BUFFER_PACKETS;
+    private static final int JITTER_RING_CAPACITY = 512; // power of two above MAX_JITTER_BUFFER_PACKETS, ~12 s
+    private static final double FRAME_MS = BUFFER_SIZE_BYTES * 1000.0 / (SAMPLE_RATE * FRAME_SIZE);
+    private static final int MIN_PLAYOUT_MS = Integer.getInteger("musicstreamer.playout.min.ms", 40);
+    private static final double MAX_PLAYOUT_MS = MAX_JITTER_BUFFER_PACKETS * FRAME_MS;
+
+    // Multicast: how long the group may stay silent before the fallback callback fires
+    private static final int MULTICAST_SILENCE_TIMEOUT_MS = 3000;
+    private static final String MULTICAST_INTERFACE = System.getProperty("musicstreamer.multicast.interface");
+
+    // Datagrams read per selector wakeup
+    private static final int RECEIVE_BATCH = 16;
+
+    // Output: audio buffered between processing and the line, and how long processing may wait for room in it
+    private static final int OUTPUT_BUFFER_MS = Integer.getInteger("musicstreamer.output.ms", 60);
+    private static final int OUTPUT_STALL_MS = 1000;
+    private static final int BYTES_PER_SECOND = SAMPLE_RATE * FRAME_SIZE;
+
+    // Retransmission requests: holes this far behind the newest buffered frame count as lost
+    private static final int NACK_REORDER_GRACE = 3;
+    private static final int NACK_MAX_BATCH = 32;          // seqs per NACK line
+    private static final int NACK_WINDOW = MAX_JITTER_BUFFER_PACKETS;
 
     private final int port;
     private volatile boolean isRunning = false;
-    private DatagramSocket socket;
+    private volatile DatagramChannel channel;
+    private volatile Selector selector;
+
+    // Transport: unicast on `port` unless the server told us to join a group
+    private volatile InetAddress multicastGroup;
+    private volatile int multicastPort = -1;
+    private volatile boolean transportChanged = false;
+    private volatile Runnable multicastSilentCallback;
     private SourceDataLine audioLine;
-    private float volume = 1.0f;
+    private volatile float volume = 1.0f;
+    private int appliedGainQ16 = PcmDsp.UNITY; // gain the last processed frame ended on (processing thread)
     
     // Buffering flag: true until jitter buffer is initially filled
     private volatile boolean buffering = true;
@@ -47,16 +83,52 @@ public class AudioStreamReceiver implements Runnable {
     // Track packets processed since reconnection
     private int packetsProcessedSinceReconnection = 0;
 
-    // Decoupling audio processing from playback
+    // Decoupling audio processing from playback: the ring is the only path to audioLine
     private Thread playbackThread;
-    private final BlockingQueue<byte[]> playbackQueue = new LinkedBlockingQueue<>(100); // Buffer for ~2.3s of audio
+    private final PcmRing outputRing = new PcmRing(OUTPUT_BUFFER_MS, BYTES_PER_SECOND, FRAME_SIZE, OUTPUT_STALL_MS);
 
     // Current song tracking
     private volatile int currentSongIndex = -1;
     private volatile boolean songIndexChanged = false;
 
-    // Packet reordering and jitter buffer
-    private final PriorityQueue<AudioPacket> packetBuffer = new PriorityQueue<>();
+    // Payload codecs by id (header flag bits 4-5); only touched by the receive thread
+    private final AudioCodec[] codecs = AudioCodec.supported();
+    private volatile long undecodablePackets = 0;
+
+    // Forward error correction (receive thread only) and loss accounting
+    private final FecDecoder fecDecoder = new FecDecoder(MAX_PACKET_SIZE);
+    private volatile long packetsLost = 0;
+
+    // Selective retransmission (processing thread only, apart from the sender)
+    private volatile Consumer<String> nackSender;
+    private long lastNackedSeq = -1;
+    private volatile long nackedPackets = 0;
+
+    // Throttled stats line (processing thread only)
+    private static final int STATS_INTERVAL_MS = 10_000;
+    private long lastStatsNanos = 0;
+    private long loggedRecovered = 0;
+    private long loggedLost = 0;
+    private long loggedRestarts = 0;
+
+    // Receive frames, recycled once copied into the output ring; a datagram is read straight into one
+    private final FramePool framePool = new FramePool(
+            JITTER_RING_CAPACITY + RECEIVE_BATCH + 4, MAX_PACKET_SIZE, BUFFER_SIZE_BYTES);
+    private volatile long droppedNoFrame = 0;
+
+    // Packet reordering and jitter buffer: filled by the receive thread, drained by the processing thread
+    private final JitterBuffer packetBuffer = new JitterBuffer(JITTER_RING_CAPACITY, framePool);
+
+    // Adaptive playout: how deep the jitter buffer should be, and the time-stretching that steers it there
+    private final PlayoutController playout = new PlayoutController(SAMPLE_RATE, FRAME_MS, MIN_PLAYOUT_MS, MAX_PLAYOUT_MS);
+    private final WsolaStretcher stretcher = new WsolaStretcher(SAMPLE_RATE);
+    private double playoutRate = 1.0; // processing thread only
+    private double loggedTargetMillis = 0;
+
+    // Packet-loss concealment: pitch-period extrapolation fading to silence (processing thread only)
+    private static final byte[] SILENCE = new byte[BUFFER_SIZE_BYTES];
+    private final byte[] concealBuffer = new byte[BUFFER_SIZE_BYTES];
+    private final PacketLossConcealer concealer = new PacketLossConcealer(SAMPLE_RATE);
 
     private final AudioFormat audioFormat = new AudioFormat(
             AudioFormat.Encoding.PCM_SIGNED,
@@ -87,12 +159,15 @@ public class AudioStreamReceiver implements Runnable {
         justConnected = true; // Mark as just connected
         
         // Clear jitter buffer and reset all tracking state on (re)connect
-        synchronized (packetBuffer) {
-            packetBuffer.clear();
-        }
+        packetBuffer.reset();
         currentSongIndex = -1;
         songIndexChanged = false;
         packetsProcessedSinceReconnection = 0;
+        fecDecoder.reset();
+        lastNackedSeq = -1;
+        outputRing.reset();
+        stretcher.reset();
+        playoutRate = 1.0;
         
         new Thread(this::receivePackets).start();
         new Thread(this::processAudio).start();
@@ -107,66 +182,255 @@ public class AudioStreamReceiver implements Runnable {
         if (playbackThread != null) {
             playbackThread.interrupt();
         }
+        packetBuffer.wake();
+        outputRing.close();
 
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
         }
         // audioLine is now closed by the playbackLoop
     }
 
-    private void receivePackets() {
+    /**
+     * Receive from the group stream instead of unicast. Takes effect immediately
+     * if the receiver is running; the socket is reopened on the new transport.
+     */
+    public void useMulticast(InetAddress group, int groupPort) {
+        multicastGroup = group;
+        multicastPort = groupPort;
+        switchTransport();
+    }
+
+    /** Go back to unicast on the subscribed port (the per-client fallback). */
+    public void useUnicast() {
+        if (multicastGroup == null) return;
+        multicastGroup = null;
+        multicastPort = -1;
+        switchTransport();
+    }
+
+    public boolean isMulticast() { return multicastGroup != null; }
+
+    /** Called (on the receive thread) whenever the joined group has been silent for a while. */
+    public void setMulticastSilentCallback(Runnable callback) {
+        this.multicastSilentCallback = callback;
+    }
+
+    /** Receives "NACK seq,seq,..." lines to forward to the server on the control connection. */
+    public void setNackSender(Consumer<String> sender) {
+        this.nackSender = sender;
+    }
+
+    private void switchTransport() {
+        transportChanged = true;
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup(); // the receive loop reopens on the new transport
+        }
+    }
+
+    private DatagramChannel openChannel() throws IOException {
+        InetAddress group = multicastGroup;
+        DatagramChannel ch = DatagramChannel.open(StandardProtocolFamily.INET);
         try {
-            socket = new DatagramSocket(port);
-            byte[] receiveBuffer = new byte[MAX_PACKET_SIZE];
-            DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+            if (group == null) {
+                ch.bind(new InetSocketAddress(port));
+            } else {
+                ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                ch.bind(new InetSocketAddress(multicastPort));
+                ch.join(group, multicastInterface());
+                System.out.println("Joined multicast group " + group.getHostAddress() + ":" + multicastPort);
+            }
+            ch.configureBlocking(false);
+            return ch;
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+    }
 
-            while (isRunning) {
-                try {
-                    socket.receive(packet);
-                    if (packet.getLength() > HEADER_SIZE_BYTES) {
-                        processReceivedPacket(Arrays.copyOf(packet.getData(), packet.getLength()));
+    /**
+     * The interface to join the group on: -Dmusicstreamer.multicast.interface,
+     * else the first interface that is up and does IPv4 multicast, preferring
+     * a real one over loopback.
+     */
+    private static NetworkInterface multicastInterface() throws IOException {
+        if (MULTICAST_INTERFACE != null) {
+            NetworkInterface named = NetworkInterface.getByName(MULTICAST_INTERFACE);
+            if (named == null) throw new SocketException("No network interface " + MULTICAST_INTERFACE);
+            return named;
+        }
+        NetworkInterface loopback = null;
+        for (Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces(); e.hasMoreElements(); ) {
+            NetworkInterface ni = e.nextElement();
+            if (!ni.isUp() || !ni.supportsMulticast() && !ni.isLoopback()) continue;
+            boolean ipv4 = ni.inetAddresses().anyMatch(a -> a instanceof Inet4Address);
+            if (!ipv4) continue;
+            if (!ni.isLoopback()) return ni;
+            loopback = ni;
+        }
+        if (loopback == null) throw new SocketException("No interface to join multicast on");
+        return loopback;
+    }
+
+    /*
+     * One selector wakeup drains up to RECEIVE_BATCH datagrams, each read straight
+     * into a pooled frame that then goes on to the jitter buffer as it is. In
+     * steady state nothing here allocates.
+     */
+    private void receivePackets() {
+        FramePool.Frame spare = null; // sink for datagrams that arrive while every frame is in use
+
+        while (isRunning) {
+            transportChanged = false;
+            try {
+                channel = openChannel();
+                selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                System.err.println("Failed to open socket on port " + port + ": " + e.getMessage());
+                closeChannel();
+                return;
+            }
+
+            try {
+                while (isRunning && !transportChanged) {
+                    boolean group = multicastGroup != null;
+                    try {
+                        // The ready key is not needed, only the wakeup; this form also skips the selected-key set
+                        if (selector.select(key -> { }, group ? MULTICAST_SILENCE_TIMEOUT_MS : 0) == 0) {
+                            if (group && isRunning && !transportChanged) {
+                                // Only multicast waits time out: the group is silent
+                                Runnable callback = multicastSilentCallback;
+                                if (callback != null) callback.run();
+                            }
+                            continue;
+                        }
+                        for (int n = 0; n < RECEIVE_BATCH; n++) {
+                            FramePool.Frame frame = framePool.acquire();
+                            if (frame == null) {
+                                if (spare == null) spare = new FramePool.Frame(MAX_PACKET_SIZE, BUFFER_SIZE_BYTES);
+                                frame = spare;
+                            }
+                            frame.buffer.clear();
+                            if (channel.receive(frame.buffer) == null) {
+                                if (frame != spare) framePool.release(frame);
+                                break;
+                            }
+                            if (frame == spare) {
+                                droppedNoFrame++;
+                            } else {
+                                handleDatagram(frame, frame.buffer.position());
+                            }
+                        }
+                    } catch (ClosedChannelException e) {
+                        break;
+                    } catch (IOException e) {
+                        if (isRunning) System.err.println("IO error during receive: " + e.getMessage());
                     }
-                } catch (SocketException e) {
-                    if (isRunning) System.err.println("Socket error during receive: " + e.getMessage());
-                } catch (IOException e) {
-                    if (isRunning) System.err.println("IO error during receive: " + e.getMessage());
                 }
+            } finally {
+                closeChannel();
             }
-        } catch (SocketException e) {
-            System.err.println("Failed to open socket on port " + port + ": " + e.getMessage());
-        } finally {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            if (selector != null) selector.close();
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing socket: " + e.getMessage());
+        }
+    }
+
+    /** Takes ownership of {@code frame}: it ends up in the jitter buffer or back in the pool. */
+    private void handleDatagram(FramePool.Frame frame, int length) {
+        if (length <= HEADER_SIZE_BYTES) {
+            framePool.release(frame);
+            return;
+        }
+        byte[] data = frame.datagram;
+        int rebuiltLength;
+        if (FecDecoder.isParity(data[16])) {
+            rebuiltLength = fecDecoder.onParity(data, length);
+            framePool.release(frame);
+        } else {
+            // Only datagrams off the wire say anything about the network; rebuilt frames are late by design
+            playout.onArrival(frame.buffer.getLong(8), System.nanoTime());
+            rebuiltLength = fecDecoder.onData(frame.buffer.getLong(0), data, length);
+            processReceivedPacket(frame, length);
+        }
+        if (rebuiltLength > 0) {
+            // Counted by the decoder and reported in the stats line; nothing is logged from this thread
+            FramePool.Frame rebuilt = framePool.acquire();
+            if (rebuilt != null) {
+                System.arraycopy(fecDecoder.rebuilt(), 0, rebuilt.datagram, 0, rebuiltLength);
+                processReceivedPacket(rebuilt, rebuiltLength);
             }
         }
     }
 
-    private void processReceivedPacket(byte[] data) {
-        ByteBuffer bb = ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN);
-        long sequenceNumber = bb.getLong();
-        long timestamp = bb.getLong();
-        byte flags = bb.get();
-        int songIndex = bb.getInt();
-        int length = bb.getShort() & 0xFFFF;
+    private void processReceivedPacket(FramePool.Frame frame, int datagramLength) {
+        ByteBuffer bb = frame.buffer;
+        long sequenceNumber = bb.getLong(0);
+        long timestamp = bb.getLong(8);
+        byte flags = bb.get(16);
+        int songIndex = bb.getInt(17);
+        int length = bb.getShort(21) & 0xFFFF;
 
         // Check if song changed
         // Song index changes will be handled during playback to ensure accuracy with jitter buffer
 
-        if (length > 0 && bb.remaining() >= length) {
-            byte[] audioData = new byte[length];
-            bb.get(audioData);
-            synchronized (packetBuffer) {
-                packetBuffer.offer(new AudioPacket(sequenceNumber, songIndex, audioData));
+        if (length == 0 || datagramLength - HEADER_SIZE_BYTES < length) {
+            framePool.release(frame);
+            return;
+        }
+        int codecId = AudioCodec.codecId(flags);
+        if (codecId == 0) {
+            // Raw PCM is played from the datagram itself
+            frame.audio = frame.datagram;
+            frame.audioOffset = HEADER_SIZE_BYTES;
+            frame.audioLength = length;
+        } else {
+            int decoded = codecId < codecs.length
+                    ? codecs[codecId].decode(frame.datagram, HEADER_SIZE_BYTES, length, frame.pcm) : -1;
+            if (decoded <= 0) {
+                undecodablePackets++; // leave the gap to packet-loss handling
+                framePool.release(frame);
+                return;
             }
+            frame.audio = frame.pcm;
+            frame.audioOffset = 0;
+            frame.audioLength = decoded;
         }
+        frame.sequenceNumber = sequenceNumber;
+        frame.timestamp = timestamp;
+        frame.flags = flags;
+        frame.songIndex = songIndex;
+        packetBuffer.offer(frame);
     }
 
+    /*
+     * The only writer to audioLine. Each write is at most what the line can take
+     * right now, so it never blocks in the driver; while the line is full this
+     * thread sleeps for a slice of the time the line needs to play a chunk.
+     */
     private void playbackLoop() {
+        int chunk = Math.max(FRAME_SIZE, audioLine.getBufferSize() / 4 / FRAME_SIZE * FRAME_SIZE);
+        long lineWaitNanos = TimeUnit.SECONDS.toNanos(chunk) / BYTES_PER_SECOND / 4;
         try {
             while (isRunning) {
-                // take() blocks until an element is available and is interruptible.
-                byte[] audioData = playbackQueue.take();
-                audioLine.write(audioData, 0, audioData.length);
+                if (!outputRing.awaitData(100, TimeUnit.MILLISECONDS)) {
+                    continue; // nothing to play yet, or stopping: re-check isRunning
+                }
+                int room = audioLine.available();
+                if (room < Math.min(chunk, outputRing.buffered())) {
+                    LockSupport.parkNanos(lineWaitNanos);
+                    continue;
+                }
+                outputRing.drainTo(audioLine, room);
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -183,43 +447,52 @@ public class AudioStreamReceiver implements Runnable {
 
     private void processAudio() {
         long nextSequenceNumber = -1;
-        byte[] lastGoodPacketData = new byte[BUFFER_SIZE_BYTES];
+        concealer.reset();
 
         while (isRunning) {
             try {
-                // Wait until the buffer is filled to the target level before starting
-                waitForBufferFill();
-
-                AudioPacket currentPacket;
-                synchronized (packetBuffer) {
-                    currentPacket = packetBuffer.poll();
-                    // Debug buffer status only for critical situations
-                    if (packetBuffer.size() < 3) {
-                        System.out.println("WARNING: Jitter buffer critically low - " + packetBuffer.size() + " packets remaining");
-                    }
+                // Wait until the buffer is filled to the playout target before (re)starting
+                if (buffering) {
+                    waitForBufferFill();
                 }
 
+                FramePool.Frame currentPacket = packetBuffer.poll();
                 if (currentPacket == null) {
-                    // Buffer is empty, wait
-                    System.out.println("Buffer empty! Waiting for packets...");
-                    Thread.sleep(10);
+                    // Ran dry: play out what the stretcher holds, then rebuffer to a (possibly raised) target
+                    playout.onUnderrun();
+                    playoutRate = 1.0;
+                    stretcher.drain(outputRing);
+                    System.out.println("Buffer empty! Rebuffering to " + Math.round(playout.startMillis()) + " ms...");
+                    buffering = true;
                     continue;
                 }
 
-                // Detect song change *before* any sequence-number logic
+                // Gapless transition: the new track continues the same sample stream,
+                // so keep the jitter buffer and the sequence numbering intact.
+                if ((currentPacket.flags & FLAG_TRACK_START) != 0 && currentSongIndex != -1) {
+                    System.out.println("Gapless track change: " + currentSongIndex + " -> " + currentPacket.songIndex
+                            + " at sample " + currentPacket.timestamp);
+                    currentSongIndex = currentPacket.songIndex;
+                    songIndexChanged = true;
+                }
+
+                // Detect (non-gapless) song change *before* any sequence-number logic
                 if (currentSongIndex != currentPacket.songIndex) {
                     System.out.println("Song change detected: " + currentSongIndex + " -> " + currentPacket.songIndex);
+                    boolean firstSong = currentSongIndex == -1;
                     currentSongIndex = currentPacket.songIndex;
                     songIndexChanged = true;
 
-                    // Flush any leftover packets from previous song
-                    synchronized (packetBuffer) {
+                    // Flush any leftover packets from previous song; on the first one there are none,
+                    // and clearing would throw away the cushion just buffered
+                    if (!firstSong) {
                         packetBuffer.clear();
+                        stretcher.reset();
                     }
 
                     // Reset sequence tracking and packet-loss state
                     nextSequenceNumber = currentPacket.sequenceNumber;
-                    Arrays.fill(lastGoodPacketData, (byte) 0);
+                    concealer.reset();
                 }
 
                 if (nextSequenceNumber == -1 || justConnected) {
@@ -231,17 +504,22 @@ public class AudioStreamReceiver implements Runnable {
 
                 if (currentPacket.sequenceNumber < nextSequenceNumber) {
                     // Old packet, discard
+                    framePool.release(currentPacket);
                     continue;
                 }
 
                 if (currentPacket.sequenceNumber > nextSequenceNumber) {
                     System.out.println("Packet loss detected through nextSequenceNumber: " + (currentPacket.sequenceNumber - nextSequenceNumber) + " packets missing. Seq " + nextSequenceNumber + " to " + (currentPacket.sequenceNumber - 1));
-                    // Only detect packet loss if we've processed enough packets since reconnection
-                    if (packetsProcessedSinceReconnection >= 10) {
+                    // Only detect packet loss if we've processed enough packets since reconnection,
+                    // and not across a jump the ring could not have held (the sender started over)
+                    if (packetsProcessedSinceReconnection >= 10
+                            && currentPacket.sequenceNumber - nextSequenceNumber < packetBuffer.capacity()) {
                         // Packet loss detected
                         long packetsLost = currentPacket.sequenceNumber - nextSequenceNumber;
-                        System.out.println("Packet loss: " + packetsLost + " packets missing. Seq " + nextSequenceNumber + " to " + (currentPacket.sequenceNumber - 1));
-                        handlePacketLoss(packetsLost, lastGoodPacketData);
+                        this.packetsLost += packetsLost;
+                        System.out.println("Packet loss: " + packetsLost + " packets missing. Seq " + nextSequenceNumber + " to " + (currentPacket.sequenceNumber - 1)
+                                + " (FEC recovered " + fecDecoder.getRecovered() + ", lost " + this.packetsLost + ")");
+                        handlePacketLoss(packetsLost);
                     } else {
                         // Still in initial reconnection phase - just update sequence baseline
                         System.out.println("Initial reconnection phase - updating sequence baseline from " + nextSequenceNumber + " to " + currentPacket.sequenceNumber);
@@ -249,22 +527,28 @@ public class AudioStreamReceiver implements Runnable {
                     }
                 }
 
-                // We have a good packet
-                byte[] audioData = applyVolume(currentPacket.audioData, volume);
+                // We have a good packet; blend it in after any concealment and keep it unscaled
+                // as history for the next gap, then apply volume in place
+                long playedSeq = currentPacket.sequenceNumber;
+                concealer.recover(currentPacket.audio, currentPacket.audioOffset, currentPacket.audioLength);
+                concealer.remember(currentPacket.audio, currentPacket.audioOffset, currentPacket.audioLength);
+                applyVolume(currentPacket.audio, currentPacket.audioOffset, currentPacket.audioLength);
 
-                // Queue the processed audio for the dedicated playback thread
-                // This call will block if the queue is full, providing back-pressure.
-                playbackQueue.put(audioData);
+                // Steer the buffer toward the playout target by playing slightly faster or slower
+                double aheadMillis = Math.max(0, packetBuffer.highest() - playedSeq) * FRAME_MS + stretcher.pendingMillis();
+                playoutRate = playout.rate(aheadMillis);
+                logPlayoutTarget();
 
-                // Log sequence number of played packet
-                System.out.println("Queued packet for playback, seq: " + currentPacket.sequenceNumber);
-                
-                System.arraycopy(currentPacket.audioData, 0, lastGoodPacketData, 0, currentPacket.audioData.length);
+                // Hand the processed audio to the playback thread; the write waits while
+                // the output ring is full, providing back-pressure
+                play(currentPacket.audio, currentPacket.audioOffset, currentPacket.audioLength);
+                framePool.release(currentPacket);
 
-                nextSequenceNumber = currentPacket.sequenceNumber + 1;
+                nextSequenceNumber = playedSeq + 1;
                 packetsProcessedSinceReconnection++;
 
-                adjustJitterBuffer();
+                requestRetransmissions(nextSequenceNumber);
+                logStats();
 
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -274,56 +558,98 @@ public class AudioStreamReceiver implements Runnable {
         }
     }
     
+    /**
+     * Looks ahead in the jitter buffer for holes and asks the server to resend them
+     * while they can still be played. Each missing seq is requested once; holes
+     * right behind the newest frame are left alone in case they are only reordered.
+     */
+    private void requestRetransmissions(long playoutSeq) {
+        Consumer<String> sender = nackSender;
+        if (sender == null || packetsProcessedSinceReconnection < 10) return;
+
+        long highest = Math.min(packetBuffer.highest(), playoutSeq + NACK_WINDOW - 1);
+
+        StringBuilder nack = null;
+        int count = 0;
+        long seq = Math.max(playoutSeq, lastNackedSeq + 1);
+        for (; seq < highest - NACK_REORDER_GRACE && count < NACK_MAX_BATCH; seq++) {
+            if (packetBuffer.contains(seq)) continue;
+            if (nack == null) nack = new StringBuilder("NACK ");
+            else nack.append(',');
+            nack.append(seq);
+            count++;
+        }
+        lastNackedSeq = Math.max(lastNackedSeq, seq - 1);
+
+        if (nack != null) {
+            nackedPackets += count;
+            sender.accept(nack.toString());
+        }
+    }
+
+    /*
+     * Waits for the playout target's worth of frames, plus the ones that go
+     * straight on to fill the output ring and the line once playback starts.
+     * The target is re-read on every pass, as it can move while we wait.
+     */
     private void waitForBufferFill() throws InterruptedException {
-        while (isRunning && packetBuffer.size() < jitterBufferSize) {
-            Thread.sleep(10);
+        int outputFrames = (int) Math.ceil((outputRing.capacity() + audioLine.getBufferSize()) / (double) BUFFER_SIZE_BYTES);
+        while (isRunning) {
+            int frames = (int) Math.ceil(playout.startMillis() / FRAME_MS) + outputFrames;
+            if (packetBuffer.await(Math.min(frames, packetBuffer.capacity()), 100, TimeUnit.MILLISECONDS)) {
+                break;
+            }
+            // Woken early by stop(), or still filling: re-check isRunning
         }
         // Buffer has filled to target level
         buffering = false;
     }
 
-    private void handlePacketLoss(long packetsLost, byte[] lastPacketData) {
-        // Use a more advanced PLC by stretching the last good packet
-        // For short losses, this sounds better than silence or simple repetition.
-        if (packetsLost > 0 && packetsLost <= 5) { // Conceal up to 5 lost packets
-            System.out.println("Applying PLC for " + packetsLost + " packets.");
-            for (int i = 0; i < packetsLost; i++) {
-                 // Simple time-stretch: play the first half of the last packet, then the second half.
-                 // This is a basic form of time-stretching by repetition.
-                int half = lastPacketData.length / 2;
-                byte[] concealedPacket = new byte[lastPacketData.length];
-                System.arraycopy(lastPacketData, 0, concealedPacket, 0, half);
-                System.arraycopy(lastPacketData, 0, concealedPacket, half, half);
-
-                byte[] processedAudio = applyVolume(concealedPacket, volume);
-                audioLine.write(processedAudio, 0, processedAudio.length);
-            }
-        } else if (packetsLost > 5) {
-            // For longer losses, it's better to insert silence to avoid horrible distortion
-            System.out.println("Gap too large, inserting silence for " + packetsLost + " packets.");
-            byte[] silence = new byte[BUFFER_SIZE_BYTES]; // Already filled with zeros
-            for (int i = 0; i < packetsLost; i++) {
-                audioLine.write(silence, 0, silence.length);
-            }
+    /** Writes audio out through the time-stretcher at the current playout rate. */
+    private void play(byte[] pcm, int offset, int length) throws InterruptedException {
+        stretcher.process(pcm, offset, length, playoutRate, outputRing);
+    }
+
+    private void logPlayoutTarget() {
+        double target = playout.getTargetMillis();
+        if (Math.abs(target - loggedTargetMillis) >= FRAME_MS) {
+            System.out.printf("Playout target %.0f -> %.0f ms (jitter %.1f ms, lateness %.1f ms, underruns %d)%n",
+                    loggedTargetMillis, target, playout.getJitterMillis(), playout.getLatenessMillis(), playout.getUnderruns());
+            loggedTargetMillis = target;
         }
     }
 
-    private void adjustJitterBuffer() {
-        synchronized (packetBuffer) {
-            int currentSize = packetBuffer.size();
-            int oldBufferSize = jitterBufferSize;
-            
-            if (packetBuffer.size() > jitterBufferSize + 20 && jitterBufferSize > MIN_JITTER_BUFFER_PACKETS) {
-                // Buffer is growing, we can reduce latency
-                jitterBufferSize = Math.max(MIN_JITTER_BUFFER_PACKETS, jitterBufferSize - 5);
-            } else if (packetBuffer.size() < jitterBufferSize - 10 && jitterBufferSize < MAX_JITTER_BUFFER_PACKETS) {
-                // Buffer is shrinking, we need to increase it to avoid underruns
-                jitterBufferSize = Math.min(MAX_JITTER_BUFFER_PACKETS, jitterBufferSize + 5);
-            }
-            
-            if (oldBufferSize != jitterBufferSize) {
-                System.out.println("Jitter buffer adjusted: " + oldBufferSize + " -> " + jitterBufferSize + " (current packets: " + currentSize + ")");
+    /** At most every STATS_INTERVAL_MS, and only when something was recovered, lost or restarted since the last line. */
+    private void logStats() {
+        long now = System.nanoTime();
+        if (now - lastStatsNanos < TimeUnit.MILLISECONDS.toNanos(STATS_INTERVAL_MS)) return;
+        lastStatsNanos = now;
+        long recovered = fecDecoder.getRecovered();
+        long lost = packetsLost;
+        long restarts = packetBuffer.getRestarts();
+        if (recovered == loggedRecovered && lost == loggedLost && restarts == loggedRestarts) return;
+        System.out.println("Stream stats: FEC recovered " + recovered + " (+" + (recovered - loggedRecovered) + "), lost " + lost
+                + " (+" + (lost - loggedLost) + "), late " + packetBuffer.getLate() + ", nacked " + nackedPackets
+                + ", buffer restarts " + restarts);
+        loggedRecovered = recovered;
+        loggedLost = lost;
+        loggedRestarts = restarts;
+    }
+
+    /*
+     * Extrapolates the last pitch period for the first lost frames and fades it
+     * out over about three frames; the rest of a long gap is silence.
+     */
+    private void handlePacketLoss(long packetsLost) throws InterruptedException {
+        System.out.println("Applying PLC for " + packetsLost + " packets.");
+        for (int i = 0; i < packetsLost; i++) {
+            if (concealer.isSilent()) {
+                play(SILENCE, 0, SILENCE.length);
+                continue;
             }
+            concealer.conceal(concealBuffer, 0, concealBuffer.length);
+            applyVolume(concealBuffer, 0, concealBuffer.length);
+            play(concealBuffer, 0, concealBuffer.length);
         }
     }
 
@@ -334,7 +660,7 @@ public class AudioStreamReceiver implements Runnable {
         }
         audioLine = (SourceDataLine) AudioSystem.getLine(info);
         // Use a larger driver buffer (~100 ms) so occasional OS scheduling hiccups don't block writes
-        int lineBufferBytes = (int) (SAMPLE_RATE * FRAME_SIZE * 0.10); // 0.10 s ≈ 17 640 bytes
+        int lineBufferBytes = (int) (BYTES_PER_SECOND * 0.10); // 0.10 s ≈ 17 640 bytes
         audioLine.open(audioFormat, lineBufferBytes);
         audioLine.start();
         System.out.println("Audio line initialized with buffer size: " + audioLine.getBufferSize() + " bytes.");
@@ -356,18 +682,52 @@ public class AudioStreamReceiver implements Runnable {
 
     public boolean isBuffering() { return buffering; }
 
-    private byte[] applyVolume(byte[] audioData, float volume) {
-        if (Math.abs(volume - 1.0f) < 0.01f) {
-            return audioData;
-        }
-        byte[] processedData = new byte[audioData.length];
-        for (int i = 0; i < audioData.length - 1; i += 2) {
-            short sample = (short) ((audioData[i] & 0xFF) | (audioData[i + 1] << 8));
-            sample = (short) (sample * volume);
-            processedData[i] = (byte) (sample & 0xFF);
-            processedData[i + 1] = (byte) ((sample >> 8) & 0xFF);
-        }
-        return processedData;
+    /** Frames rebuilt from FEC parity since start. */
+    public long getFecRecoveredPackets() { return fecDecoder.getRecovered(); }
+
+    /** Frames asked for again with NACK. */
+    public long getNackedPackets() { return nackedPackets; }
+
+    /** Frames that were still missing when their turn to play came. */
+    public long getLostPackets() { return packetsLost; }
+
+    /** Frames that arrived after their turn to play had passed. */
+    public long getLatePackets() { return packetBuffer.getLate(); }
+
+    public long getDuplicatePackets() { return packetBuffer.getDuplicates(); }
+
+    /** Times the jitter buffer started over because the sender's seqs jumped back (server restart, new station). */
+    public long getJitterBufferRestarts() { return packetBuffer.getRestarts(); }
+
+    /** Times the line ran dry (an audible gap), and writes cut short because the line stalled. */
+    public long getOutputUnderruns() { return outputRing.getUnderruns(); }
+
+    public long getOutputOverruns() { return outputRing.getOverruns(); }
+
+    /** Audio written but not yet heard: the output ring plus what the line still holds. */
+    public float getOutputLatencyMillis() {
+        SourceDataLine line = audioLine;
+        int inLine = line != null ? line.getBufferSize() - line.available() : 0;
+        return outputRing.bufferedMillis() + inLine * 1000f / BYTES_PER_SECOND;
+    }
+
+    /** RFC 3550 interarrival jitter of the stream, milliseconds. */
+    public double getJitterMillis() { return playout.getJitterMillis(); }
+
+    /** How much audio the jitter buffer is being steered to hold, milliseconds. */
+    public double getPlayoutTargetMillis() { return playout.getTargetMillis(); }
+
+    /** Times the jitter buffer ran dry while frames were still arriving. */
+    public long getPlayoutUnderruns() { return playout.getUnderruns(); }
+
+    /** Datagrams dropped because every receive frame was still in the jitter buffer. */
+    public long getDroppedPackets() { return droppedNoFrame; }
+
+    /** Scales a frame in place; a slider move is ramped across the frame instead of stepping. */
+    private void applyVolume(byte[] audioData, int offset, int length) {
+        int target = PcmDsp.gainQ16(volume);
+        PcmDsp.ramp(audioData, offset, length, appliedGainQ16, target);
+        appliedGainQ16 = target;
     }
     
     @Override
@@ -376,21 +736,4 @@ public class AudioStreamReceiver implements Runnable {
         System.out.println("Starting AudioStreamReceiver...");
         start();
     }
-
-    private static class AudioPacket implements Comparable<AudioPacket> {
-        private final long sequenceNumber;
-        private final int songIndex;
-        private final byte[] audioData;
-
-        public AudioPacket(long sequenceNumber, int songIndex, byte[] audioData) {
-            this.sequenceNumber = sequenceNumber;
-            this.songIndex = songIndex;
-            this.audioData = audioData;
-        }
-
-        @Override
-        public int compareTo(AudioPacket other) {
-            return Long.compare(this.sequenceNumber, other.sequenceNumber);
-        }
-    }
 }
\ No newline at end of file
@@ -0,0 +1,276 @@
+package com.musicstreamer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the server's control stream: JSON lines and, once {@code PROTO 1} is
+ * sent, binary frames. A frame is [0xB1][type:1][length:4][payload] and a JSON
+ * line always starts with '{', so the first byte says which one follows.
+ *
+ * Binary frames are decoded straight out of the receive buffer into the fields
+ * below; no JSON objects are built. Playlist changes arrive as ops (add,
+ * remove, move, now-playing) and are applied to the title list here and handed
+ * to the listener one by one, so the UI can update in place. A delta names the
+ * version it applies to. If that is not the version held here, the frame is
+ * skipped and {@link Listener#onResync()} asks for the missing changes. A
+ * frame that is cut short or holds an op that does not fit the list held
+ * here is treated the same way, after dropping what it may have half applied.
+ *
+ * Only used from the control connection's reader thread.
+ */
+public class ControlDecoder {
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0xB1;
+    private static final byte STATE = 1;
+    private static final byte PLAYLIST = 2;
+    private static final byte PLAYLIST_OPS = 3;
+
+    private static final byte OP_ADD = 1, OP_REMOVE = 2, OP_MOVE = 3, OP_NOW_PLAYING = 4;
+
+    private static final int F_PLAYING = 1, F_VOLUME = 2, F_TIME = 4, F_DURATION = 8, F_RADIO = 16, F_SONG = 32;
+
+    public interface Listener {
+        void onPlaybackState(boolean playing, boolean radioActive, float currentTime, float duration, String currentSong);
+
+        /** {@code titles} is an immutable copy the listener may keep. */
+        void onPlaylistSnapshot(List<String> titles, int nowPlaying);
+
+        void onPlaylistAdd(int index, String title);
+
+        void onPlaylistRemove(int index);
+
+        void onPlaylistMove(int from, int to);
+
+        void onNowPlaying(int index);
+
+        void onResync();
+    }
+
+    private final Listener listener;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+    private byte[] frame = new byte[4096];
+
+    private int stateVersion = 0;
+    private boolean playing, radioActive;
+    private float volume, currentTime, duration;
+    private String currentSong = "";
+
+    private volatile int playlistVersion = 0; // read by the UI thread for STATUS
+    private final ArrayList<String> titles = new ArrayList<>();
+
+    private boolean resyncRequested = false; // until a snapshot arrives, further gaps are not re-reported
+    private long frames = 0;
+    private long frameBytes = 0;
+
+    public ControlDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the next JSON line, handing any binary frames before it to the
+     * listener. Returns null at end of stream.
+     */
+    public String next(DataInputStream in) throws IOException {
+        int first;
+        while ((first = in.read()) == MAGIC) {
+            byte type = in.readByte();
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Bad control frame length " + length);
+            }
+            if (length > frame.length) {
+                frame = new byte[Math.max(length, frame.length * 2)];
+            }
+            in.readFully(frame, 0, length);
+            frames++;
+            frameBytes += length + 6;
+            decode(type, ByteBuffer.wrap(frame, 0, length));
+        }
+        if (first == -1) {
+            return null;
+        }
+        line.reset();
+        for (int b = first; b != '\n'; b = in.read()) {
+            if (b == -1) {
+                break;
+            }
+            line.write(b);
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    private void decode(byte type, ByteBuffer payload) {
+        try {
+            if (type == STATE) {
+                decodeState(payload);
+            } else if (type == PLAYLIST) {
+                decodePlaylist(payload);
+            } else if (type == PLAYLIST_OPS) {
+                decodePlaylistOps(payload);
+            }
+            // Unknown types are from a newer server; skipping them is safe
+        } catch (BufferUnderflowException e) {
+            // Truncated: the fields read so far cannot be trusted either
+            if (type == STATE) {
+                stateVersion = 0;
+                resync();
+            } else if (type == PLAYLIST || type == PLAYLIST_OPS) {
+                startOver();
+            }
+        }
+    }
+
+    private void decodeState(ByteBuffer b) {
+        int version = b.getInt();
+        int base = b.getInt();
+        if (!accepts(version, base, stateVersion)) {
+            return;
+        }
+        int mask = b.get() & 0xFF;
+        if ((mask & F_PLAYING) != 0) playing = b.get() != 0;
+        if ((mask & F_VOLUME) != 0) volume = b.getFloat();
+        if ((mask & F_TIME) != 0) currentTime = b.getFloat();
+        if ((mask & F_DURATION) != 0) duration = b.getFloat();
+        if ((mask & F_RADIO) != 0) radioActive = b.get() != 0;
+        if ((mask & F_SONG) != 0) currentSong = string(b);
+        stateVersion = version;
+        listener.onPlaybackState(playing, radioActive, currentTime, duration, currentSong);
+    }
+
+    private void decodePlaylist(ByteBuffer b) {
+        int version = b.getInt();
+        if (!accepts(version, 0, playlistVersion)) {
+            return;
+        }
+        int nowPlaying = b.getInt();
+        int count = b.getInt();
+        titles.clear();
+        titles.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            titles.add(string(b));
+        }
+        playlistVersion = version;
+        listener.onPlaylistSnapshot(Collections.unmodifiableList(new ArrayList<>(titles)), nowPlaying);
+    }
+
+    private void decodePlaylistOps(ByteBuffer b) {
+        int version = b.getInt();
+        int base = b.getInt();
+        if (!accepts(version, base, playlistVersion)) {
+            return;
+        }
+        int count = b.getShort() & 0xFFFF;
+        boolean failed = false;
+        for (int i = 0; i < count; i++) {
+            byte kind = b.get();
+            int index = b.getInt();
+            if (kind == OP_ADD) {
+                String title = string(b);
+                if (index < 0 || index > titles.size()) {
+                    failed = true;
+                    break;
+                }
+                titles.add(index, title);
+                listener.onPlaylistAdd(index, title);
+            } else if (kind == OP_REMOVE) {
+                if (index < 0 || index >= titles.size()) {
+                    failed = true;
+                    break;
+                }
+                titles.remove(index);
+                listener.onPlaylistRemove(index);
+            } else if (kind == OP_MOVE) {
+                int to = b.getInt();
+                if (index < 0 || index >= titles.size() || to < 0 || to >= titles.size()) {
+                    failed = true;
+                    break;
+                }
+                titles.add(to, titles.remove(index));
+                listener.onPlaylistMove(index, to);
+            } else if (kind == OP_NOW_PLAYING) {
+                listener.onNowPlaying(index);
+            } else {
+                failed = true; // unknown op: the rest of the frame cannot be parsed
+                break;
+            }
+        }
+        if (failed || b.hasRemaining()) {
+            // An op did not fit the list held here, even if it was the last one
+            startOver();
+            return;
+        }
+        playlistVersion = version;
+    }
+
+    /* The list held here no longer matches the server's: drop it and ask for a snapshot */
+    private void startOver() {
+        titles.clear();
+        playlistVersion = 0;
+        listener.onPlaylistSnapshot(Collections.emptyList(), -1);
+        resync();
+    }
+
+    /*
+     * Versions only grow, across all stations. A full frame (base 0) applies unless
+     * something newer is already held; a delta only on top of the version it was
+     * made from. Before the first snapshot, deltas are dropped quietly: the
+     * snapshot is already on its way.
+     */
+    private boolean accepts(int version, int base, int held) {
+        if (base == held) {
+            resyncRequested = false;
+            return true;
+        }
+        if (base == 0) {
+            if (version - held < 0) {
+                return false; // a snapshot that was overtaken by a delta on the way
+            }
+            resyncRequested = false;
+            return true;
+        }
+        if (held != 0 && version - held > 0) {
+            resync();
+        }
+        return false;
+    }
+
+    private void resync() {
+        if (!resyncRequested) {
+            resyncRequested = true;
+            listener.onResync();
+        }
+    }
+
+    private static String string(ByteBuffer b) {
+        int length = b.getShort() & 0xFFFF;
+        if (length > b.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String s = new String(b.array(), b.arrayOffset() + b.position(), length, StandardCharsets.UTF_8);
+        b.position(b.position() + length);
+        return s;
+    }
+
+    /** Playlist version held, for {@code STATUS <version>}; 0 before the first snapshot. */
+    public int getPlaylistVersion() {
+        return playlistVersion;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getFrameBytes() {
+        return frameBytes;
+    }
+}
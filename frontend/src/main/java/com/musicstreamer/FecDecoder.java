@@ -0,0 +1,161 @@
+package com.musicstreamer;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Rebuilds lost UDP audio frames from the server's XOR parity packets.
+ *
+ * A parity packet (flag {@link #FLAG_FEC}) protects {@code count} consecutive
+ * frames starting at its seq. Its timestamp and song index are the XOR of the
+ * group's, and its payload is [count:1][xor flags:1][xor length:2][xor of the
+ * payloads]. When exactly one frame of a group is missing, XOR-ing the parity
+ * with the frames that did arrive yields the missing datagram byte for byte.
+ *
+ * Datagrams are copied into buffers allocated up front, so callers may reuse
+ * theirs as soon as a call returns. Only used from the receive thread.
+ */
+public class FecDecoder {
+    public static final byte FLAG_FEC = 0x08;
+
+    private static final int HEADER_SIZE_BYTES = 23;
+    private static final int PREFIX_BYTES = 4;
+    private static final int WINDOW = 256;        // recent data frames kept, by seq
+    private static final int PARITY_SLOTS = 32;   // recent parity packets kept
+
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+
+    private final int maxDatagram;
+    private final long[] seqs = new long[WINDOW];
+    private final byte[][] frames;
+    private final int[] frameLengths = new int[WINDOW];
+    private final long[] parityBase = new long[PARITY_SLOTS];
+    private final byte[][] parity;
+    private final int[] parityLengths = new int[PARITY_SLOTS]; // 0: slot free
+    private int nextParitySlot = 0;
+
+    private final byte[] payload;
+    private final byte[] rebuilt;
+
+    private volatile long recovered = 0; // written by the receive thread only, read by the stats line
+
+    public FecDecoder(int maxDatagramBytes) {
+        maxDatagram = maxDatagramBytes;
+        frames = new byte[WINDOW][maxDatagramBytes];
+        parity = new byte[PARITY_SLOTS][maxDatagramBytes];
+        payload = new byte[maxDatagramBytes];
+        rebuilt = new byte[maxDatagramBytes];
+        reset();
+    }
+
+    public void reset() {
+        Arrays.fill(seqs, -1);
+        Arrays.fill(parityBase, -1);
+        Arrays.fill(parityLengths, 0);
+    }
+
+    public static boolean isParity(byte flags) {
+        return (flags & FLAG_FEC) != 0;
+    }
+
+    /**
+     * Remembers a data datagram. If this arrival left exactly one hole in a
+     * group whose parity is already here, rebuilds the missing datagram into
+     * {@link #rebuilt()} and returns its length, else returns 0.
+     */
+    public int onData(long seq, byte[] datagram, int length) {
+        if (length > maxDatagram) return 0;
+        remember(seq, datagram, length);
+        for (int i = 0; i < PARITY_SLOTS; i++) {
+            if (parityLengths[i] == 0) continue;
+            long base = parityBase[i];
+            if (seq >= base && seq < base + (parity[i][HEADER_SIZE_BYTES] & 0xFF)) {
+                return tryRecover(i);
+            }
+        }
+        return 0;
+    }
+
+    /** Stores a parity datagram; like {@link #onData}, returns the length of a frame rebuilt now, or 0. */
+    public int onParity(byte[] datagram, int length) {
+        if (length < HEADER_SIZE_BYTES + PREFIX_BYTES || length > maxDatagram) return 0;
+        int slot = nextParitySlot;
+        nextParitySlot = (nextParitySlot + 1) % PARITY_SLOTS;
+        parityBase[slot] = (long) LONG.get(datagram, 0);
+        System.arraycopy(datagram, 0, parity[slot], 0, length);
+        parityLengths[slot] = length;
+        return tryRecover(slot);
+    }
+
+    /** The last datagram rebuilt; valid until the next call. */
+    public byte[] rebuilt() {
+        return rebuilt;
+    }
+
+    public long getRecovered() {
+        return recovered;
+    }
+
+    private void remember(long seq, byte[] datagram, int length) {
+        int slot = (int) (seq & (WINDOW - 1));
+        seqs[slot] = seq;
+        System.arraycopy(datagram, 0, frames[slot], 0, length);
+        frameLengths[slot] = length;
+    }
+
+    private boolean has(long seq) {
+        return seqs[(int) (seq & (WINDOW - 1))] == seq;
+    }
+
+    private int tryRecover(int paritySlot) {
+        byte[] p = parity[paritySlot];
+        long base = parityBase[paritySlot];
+        int count = p[HEADER_SIZE_BYTES] & 0xFF;
+        long missing = -1;
+        for (long s = base; s < base + count; s++) {
+            if (has(s)) continue;
+            if (missing != -1) return 0;      // two or more holes: XOR cannot help
+            missing = s;
+        }
+        if (missing == -1) {
+            parityLengths[paritySlot] = 0;    // group complete, parity no longer needed
+            return 0;
+        }
+
+        long timestamp = (long) LONG.get(p, 8);
+        int songIndex = (int) INT.get(p, 17);
+        int flags = p[HEADER_SIZE_BYTES + 1];
+        int length = (short) SHORT.get(p, HEADER_SIZE_BYTES + 2) & 0xFFFF;
+        int parityLen = parityLengths[paritySlot] - HEADER_SIZE_BYTES - PREFIX_BYTES;
+        System.arraycopy(p, HEADER_SIZE_BYTES + PREFIX_BYTES, payload, 0, parityLen);
+
+        for (long s = base; s < base + count; s++) {
+            if (s == missing) continue;
+            byte[] f = frames[(int) (s & (WINDOW - 1))];
+            timestamp ^= (long) LONG.get(f, 8);
+            flags ^= f[16];
+            songIndex ^= (int) INT.get(f, 17);
+            int len = (short) SHORT.get(f, 21) & 0xFFFF;
+            length ^= len;
+            for (int i = 0; i < len && i < parityLen; i++) {
+                payload[i] ^= f[HEADER_SIZE_BYTES + i];
+            }
+        }
+        parityLengths[paritySlot] = 0;
+        if (length > parityLen) return 0; // inconsistent group, give up
+
+        LONG.set(rebuilt, 0, missing);
+        LONG.set(rebuilt, 8, timestamp);
+        rebuilt[16] = (byte) flags;
+        INT.set(rebuilt, 17, songIndex);
+        SHORT.set(rebuilt, 21, (short) length);
+        System.arraycopy(payload, 0, rebuilt, HEADER_SIZE_BYTES, length);
+        remember(missing, rebuilt, HEADER_SIZE_BYTES + length);
+        recovered++;
+        return HEADER_SIZE_BYTES + length;
+    }
+}
@@ -0,0 +1,110 @@
+package com.musicstreamer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Slab of receive frames allocated once at start-up and recycled, so a
+ * datagram goes from the socket to the audio line without a per-frame
+ * allocation. A frame holds the datagram as received and, for compressed
+ * codecs, the PCM decoded from it; {@link Frame#audio} points at whichever of
+ * the two holds the samples to play.
+ *
+ * The free list is a bounded lock-free queue (one sequence counter per cell)
+ * that any thread may acquire from or release to. {@link #acquire()} returns
+ * null rather than waiting when every frame is in use. A frame must be
+ * released exactly once, by whoever holds it last.
+ */
+public class FramePool {
+
+    public static final class Frame {
+        final byte[] datagram;
+        final ByteBuffer buffer; // over datagram: receive target and big-endian header reads
+        final byte[] pcm;
+
+        long sequenceNumber;
+        long timestamp; // stream sample clock of the first sample
+        byte flags;
+        int songIndex;
+
+        byte[] audio; // datagram (raw PCM payload) or pcm (decoded)
+        int audioOffset;
+        int audioLength;
+
+        Frame(int datagramBytes, int pcmBytes) {
+            datagram = new byte[datagramBytes];
+            buffer = ByteBuffer.wrap(datagram).order(ByteOrder.BIG_ENDIAN);
+            pcm = new byte[pcmBytes];
+        }
+    }
+
+    private final int mask;
+    private final AtomicReferenceArray<Frame> cells;
+    private final AtomicLongArray turns;
+    private final AtomicLong head = new AtomicLong(); // next cell to acquire from
+    private final AtomicLong tail = new AtomicLong(); // next cell to release into
+    private final int frames;
+
+    public FramePool(int frames, int datagramBytes, int pcmBytes) {
+        int capacity = Integer.highestOneBit(Math.max(1, frames - 1)) << 1;
+        this.frames = frames;
+        this.mask = capacity - 1;
+        this.cells = new AtomicReferenceArray<>(capacity);
+        this.turns = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            turns.set(i, i);
+        }
+        for (int i = 0; i < frames; i++) {
+            release(new Frame(datagramBytes, pcmBytes));
+        }
+    }
+
+    /** A free frame, or null if all are in use. */
+    public Frame acquire() {
+        for (;;) {
+            long pos = head.get();
+            int cell = (int) (pos & mask);
+            long diff = turns.get(cell) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    Frame f = cells.get(cell);
+                    cells.set(cell, null);
+                    turns.set(cell, pos + mask + 1);
+                    return f;
+                }
+            } else if (diff < 0) {
+                return null; // empty
+            }
+            // else another thread took this cell first; retry with the new head
+        }
+    }
+
+    public void release(Frame frame) {
+        for (;;) {
+            long pos = tail.get();
+            int cell = (int) (pos & mask);
+            long diff = turns.get(cell) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    cells.set(cell, frame);
+                    turns.set(cell, pos + 1);
+                    return;
+                }
+            } else if (diff < 0) {
+                throw new IllegalStateException("Frame released twice"); // more releases than frames
+            }
+        }
+    }
+
+    /** Frames currently free; approximate while other threads are using the pool. */
+    public int available() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int size() {
+        return frames;
+    }
+}
@@ -0,0 +1,263 @@
+package com.musicstreamer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.musicstreamer.FramePool.Frame;
+
+/**
+ * Fixed-size reordering buffer for received audio frames, indexed by
+ * {@code seq & (capacity - 1)}. One thread offers frames as they arrive, one
+ * thread polls them in seq order; neither takes a lock, and offering never
+ * waits for the poller.
+ *
+ * A frame older than the next one to play is late and dropped on arrival, as
+ * is a second copy of a frame already held. A frame a whole ring ahead of the
+ * player takes the slot of the unplayed frame there (an overrun), so memory
+ * stays at {@code capacity} frames whatever the sender does. A seq far behind
+ * the player is a new sequence space (the server restarted or the station
+ * changed): the ring is emptied and starts over from that frame.
+ *
+ * The poller waits in {@link #await} and is unparked by the offering thread
+ * once enough frames are held.
+ *
+ * Frames come from a {@link FramePool}. The ring owns every frame offered to
+ * it and returns the ones it drops to the pool; a polled frame belongs to the
+ * caller.
+ */
+public class JitterBuffer {
+
+    private static final long NONE = -1;
+
+    private final FramePool pool;
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Frame> slots;
+    private final AtomicInteger size = new AtomicInteger();
+
+    // Next seq to play; NONE until the poller has picked a starting point
+    private final AtomicLong next = new AtomicLong(NONE);
+    // Written by the offering thread only
+    private volatile long first = Long.MAX_VALUE; // lowest seq offered while next is NONE
+    private volatile long highest = NONE;
+
+    private volatile Thread waiter;
+    private volatile int wanted;
+
+    private volatile long late = 0;
+    private volatile long duplicates = 0;
+    private volatile long overruns = 0;
+    private volatile long restarts = 0;
+
+    /** {@code capacity} must be a power of two. */
+    public JitterBuffer(int capacity, FramePool pool) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.pool = pool;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Frames held, including any left behind by a gap that playback has not reached yet. */
+    public int size() {
+        return size.get();
+    }
+
+    /** Highest seq offered so far, or -1. */
+    public long highest() {
+        return highest;
+    }
+
+    public boolean contains(long seq) {
+        Frame p = slots.get((int) (seq & mask));
+        return p != null && p.sequenceNumber == seq;
+    }
+
+    /**
+     * Stores a frame, or drops it back into the pool and returns false if it was
+     * late or a duplicate. Called from the receiving thread only.
+     */
+    public boolean offer(Frame packet) {
+        long seq = packet.sequenceNumber;
+        long n = next.get();
+        if (n != NONE && seq < n) {
+            if (n - seq <= capacity) {
+                late++;
+                pool.release(packet);
+                return false;
+            }
+            restart(seq);
+            n = NONE;
+        } else if (n == NONE && seq < first) {
+            first = seq;
+        }
+        if (seq > highest) {
+            highest = seq; // before the store: poll() never passes a frame it can see
+        }
+
+        int i = (int) (seq & mask);
+        for (;;) {
+            Frame old = slots.get(i);
+            if (old != null && old.sequenceNumber >= seq) {
+                if (old.sequenceNumber == seq) duplicates++;
+                else late++; // a whole ring behind the newest frame
+                pool.release(packet);
+                return false;
+            }
+            if (slots.compareAndSet(i, old, packet)) {
+                if (old == null) {
+                    size.incrementAndGet();
+                } else {
+                    if (old.sequenceNumber >= n) {
+                        overruns++; // n is NONE (-1) before playback starts, which counts every replacement
+                    }
+                    pool.release(old);
+                }
+                break;
+            }
+            // The poller took or swept the old frame; try again on the empty slot
+        }
+
+        Thread w = waiter;
+        if (w != null && size.get() >= wanted) {
+            LockSupport.unpark(w);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the lowest-seq frame at or after the play position and moves the
+     * play position past it, or null if none is held. Seqs skipped on the way
+     * are lost. Called from the playing thread only.
+     */
+    public Frame poll() {
+        long n = next.get();
+        if (n == NONE) {
+            long f = first;
+            if (f == Long.MAX_VALUE || !next.compareAndSet(NONE, f)) {
+                return null;
+            }
+            n = f;
+        }
+        long h = highest;
+        long from = Math.max(n, h - capacity + 1); // anything older has been overwritten
+        for (long s = from; s <= h; s++) {
+            int i = (int) (s & mask);
+            Frame p = slots.get(i);
+            if (p == null) {
+                continue;
+            }
+            if (p.sequenceNumber == s) {
+                if (slots.compareAndSet(i, p, null)) {
+                    size.decrementAndGet();
+                    // Re-read: a recycled frame may have come back to this slot with a later seq
+                    next.compareAndSet(n, p.sequenceNumber + 1); // fails only if offer() restarted the ring
+                    return p;
+                }
+            } else if (p.sequenceNumber < s && slots.compareAndSet(i, p, null)) {
+                size.decrementAndGet(); // stored just as playback passed it
+                pool.release(p);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parks until at least {@code count} frames are held, the timeout passes or
+     * {@link #wake} is called. Returns whether the frames are there.
+     */
+    public boolean await(int count, long timeout, TimeUnit unit) throws InterruptedException {
+        if (size.get() >= count) {
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        wanted = count;
+        waiter = Thread.currentThread();
+        try {
+            while (size.get() < count) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (waiter == null) {
+                    return size.get() >= count; // woken by wake()
+                }
+            }
+            return true;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    /** Releases a poller parked in {@link #await}, e.g. on shutdown. */
+    public void wake() {
+        Thread w = waiter;
+        if (w != null) {
+            waiter = null;
+            LockSupport.unpark(w);
+        }
+    }
+
+    /** Drops every frame held; the play position is kept. Called from the playing thread. */
+    public void clear() {
+        drain();
+    }
+
+    /** Empties the ring and forgets the play position. Only while neither thread is running. */
+    public void reset() {
+        drain();
+        next.set(NONE);
+        first = Long.MAX_VALUE;
+        highest = NONE;
+    }
+
+    private void restart(long seq) {
+        drain();
+        first = seq;
+        highest = seq; // below the play position, so a poll in progress finds nothing
+        next.set(NONE);
+        restarts++;
+    }
+
+    private void drain() {
+        for (int i = 0; i < capacity; i++) {
+            Frame p = slots.getAndSet(i, null);
+            if (p != null) {
+                size.decrementAndGet();
+                pool.release(p);
+            }
+        }
+    }
+
+    /** Frames that arrived after their turn to play had passed. */
+    public long getLate() {
+        return late;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /** Unplayed frames pushed out by one a whole ring ahead. */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /** Times a seq far behind the player started the ring over. */
+    public long getRestarts() {
+        return restarts;
+    }
+}
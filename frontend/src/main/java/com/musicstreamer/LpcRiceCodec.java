@@ -0,0 +1,152 @@
+package com.musicstreamer;
+
+/**
+ * Decoder for the server's lossless "lpcr" codec (codec id 1): fixed
+ * polynomial prediction of order 0-4 per channel with Rice-coded residuals,
+ * FLAC style. Every frame carries its own warm-up samples, so frames decode
+ * independently and a lost packet never breaks the next one.
+ *
+ * Layout (bit packed, MSB first): mode:2, samples:16, then per channel
+ * order:3, order x warm-up sample (16 or 17 bits, two's complement), and per
+ * 256-sample partition k:5 followed by unary(quotient) + k-bit remainder of
+ * each zigzagged residual. Mode 0 = L/R, 1 = L/side, 2 = R/side.
+ */
+public class LpcRiceCodec implements AudioCodec {
+    private static final int MODE_LEFT_RIGHT = 0;
+    private static final int MODE_LEFT_SIDE = 1;
+    private static final int MODE_RIGHT_SIDE = 2;
+    private static final int MAX_ORDER = 4;
+    private static final int PARTITION = 256;
+
+    private int[] first = new int[0];
+    private int[] second = new int[0];
+    private final BitReader bits = new BitReader();
+
+    @Override
+    public int id() {
+        return 1;
+    }
+
+    @Override
+    public String name() {
+        return "lpcr";
+    }
+
+    @Override
+    public int decode(byte[] in, int off, int len, byte[] out) {
+        BitReader r = bits.reset(in, off, len);
+        int mode = r.read(2);
+        int n = r.read(16);
+        if (mode > MODE_RIGHT_SIDE || n * 4 > out.length) return -1;
+        if (first.length < n) {
+            first = new int[n];
+            second = new int[n];
+        }
+        if (!decodeChannel(r, first, n, 16)) return -1;
+        if (!decodeChannel(r, second, n, mode == MODE_LEFT_RIGHT ? 16 : 17)) return -1;
+
+        for (int i = 0, p = 0; i < n; i++, p += 4) {
+            int left, right;
+            if (mode == MODE_LEFT_RIGHT) {
+                left = first[i];
+                right = second[i];
+            } else if (mode == MODE_LEFT_SIDE) {
+                left = first[i];
+                right = left - second[i];
+            } else {
+                right = first[i];
+                left = right + second[i];
+            }
+            out[p] = (byte) left;
+            out[p + 1] = (byte) (left >> 8);
+            out[p + 2] = (byte) right;
+            out[p + 3] = (byte) (right >> 8);
+        }
+        return n * 4;
+    }
+
+    private static boolean decodeChannel(BitReader r, int[] x, int n, int sampleBits) {
+        int order = r.read(3);
+        if (order > MAX_ORDER || order > n) return false;
+        for (int i = 0; i < order; i++) {
+            x[i] = r.readSigned(sampleBits);
+        }
+        for (int start = order; start < n; start += PARTITION) {
+            int end = Math.min(n, start + PARTITION);
+            int k = r.read(5);
+            for (int i = start; i < end; i++) {
+                int q = r.readUnary();
+                if (q < 0) return false;
+                int u = (q << k) | (k > 0 ? r.read(k) : 0);
+                int e = (u >>> 1) ^ -(u & 1); // un-zigzag
+                x[i] = e + prediction(x, i, order);
+            }
+        }
+        return !r.overrun();
+    }
+
+    private static int prediction(int[] x, int i, int order) {
+        switch (order) {
+            case 0:  return 0;
+            case 1:  return x[i - 1];
+            case 2:  return 2 * x[i - 1] - x[i - 2];
+            case 3:  return 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+            default: return 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+        }
+    }
+
+    /** MSB-first bit reader over a byte range; reading past the end yields zeros and sets a flag. */
+    private static final class BitReader {
+        private byte[] in;
+        private int pos;
+        private int end;
+        private int nbits;
+        private long acc;
+        private boolean overrun;
+
+        BitReader reset(byte[] in, int off, int len) {
+            this.in = in;
+            this.pos = off;
+            this.end = off + len;
+            this.nbits = 0;
+            this.acc = 0;
+            this.overrun = false;
+            return this;
+        }
+
+        int read(int count) {
+            while (nbits < count) {
+                int b;
+                if (pos < end) {
+                    b = in[pos++] & 0xFF;
+                } else {
+                    b = 0;
+                    overrun = true;
+                }
+                acc = (acc << 8) | b;
+                nbits += 8;
+            }
+            nbits -= count;
+            return (int) ((acc >>> nbits) & ((1L << count) - 1));
+        }
+
+        int readSigned(int count) {
+            int v = read(count);
+            return (v << (32 - count)) >> (32 - count);
+        }
+
+        /** Counts zero bits up to the terminating one; -1 if the data runs out first. */
+        int readUnary() {
+            int zeros = 0;
+            while (read(1) == 0) {
+                if (overrun) return -1;
+                zeros++;
+            }
+            return zeros;
+        }
+
+        boolean overrun() {
+            return overrun;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.musicstreamer;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Fills in lost frames of 16-bit stereo PCM by repeating the last pitch
+ * period of what was played, in the manner of G.711 Appendix I.
+ *
+ * Every frame played goes through {@link #remember}, which keeps the last
+ * {@link #HISTORY} samples. When a frame is lost, the pitch period is found
+ * by normalised autocorrelation of the L+R mix (a coarse pass on every fourth
+ * sample and lag, then a fine pass around the best lag), and {@link #conceal}
+ * plays a template cut from the end of the history over and over, easing
+ * out any offset between it and the last sample played. The template's tail
+ * is crossfaded into the audio just before its start, so it loops without a
+ * seam. To keep a long gap from buzzing, the template grows to two and then
+ * three periods on the second and third lost frame, and the
+ * level fades from {@link #FADE_START_MS} on to silence at
+ * {@link #FADE_END_MS}. The next real frame is crossfaded in from the
+ * extrapolation over a quarter period ({@link #recover}).
+ *
+ * The period search runs once per gap and is bounded by the constants
+ * below, so a concealed frame never costs more than the search plus one
+ * pass over the frame. Only used from the processing thread.
+ */
+public class PacketLossConcealer {
+    private static final int HISTORY = 4096;         // samples kept per channel, ~93 ms
+    private static final int MIN_PERIOD = 110;       // 400 Hz
+    private static final int MAX_PERIOD = 882;       // 50 Hz
+    private static final int CORRELATION = 441;      // samples compared per lag, 10 ms
+    private static final int COARSE_STEP = 4;
+    private static final int MAX_PERIODS = 3;        // template grows to this many periods
+    private static final int MIN_OVERLAP = 32;
+    private static final int MAX_OVERLAP = 256;
+    private static final double FADE_START_MS = 10;
+    private static final double FADE_END_MS = 70;
+
+    private static final int FRAME_BYTES = 4;
+    private static final VarHandle S16 =
+            MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final int fadeStart;
+    private final int fadeEnd;
+
+    // Last samples played, oldest first; end at HISTORY
+    private final short[] histL = new short[HISTORY];
+    private final short[] histR = new short[HISTORY];
+    private int held = 0;
+
+    // Template being looped, and the one it replaced while the two are crossfaded
+    private short[] tplL = new short[MAX_PERIODS * MAX_PERIOD];
+    private short[] tplR = new short[MAX_PERIODS * MAX_PERIOD];
+    private short[] oldL = new short[MAX_PERIODS * MAX_PERIOD];
+    private short[] oldR = new short[MAX_PERIODS * MAX_PERIOD];
+    private final byte[] tail = new byte[MAX_OVERLAP * FRAME_BYTES];
+    private int span;         // template length
+    private int oldSpan;
+    private int period = 0;   // 0: not concealing
+    private int overlap;
+    private int phase;        // position in the template
+    private int concealed;    // samples played since the gap began
+    private int frames;       // frames concealed in this gap
+
+    public PacketLossConcealer(int sampleRate) {
+        this.fadeStart = (int) (sampleRate * FADE_START_MS / 1000);
+        this.fadeEnd = (int) (sampleRate * FADE_END_MS / 1000);
+    }
+
+    /** Adds played audio to the history. Call with every real frame, after {@link #recover}. */
+    public void remember(byte[] pcm, int off, int len) {
+        int n = Math.min(len / FRAME_BYTES, HISTORY);
+        System.arraycopy(histL, n, histL, 0, HISTORY - n);
+        System.arraycopy(histR, n, histR, 0, HISTORY - n);
+        int at = off + len / FRAME_BYTES * FRAME_BYTES - n * FRAME_BYTES;
+        for (int i = HISTORY - n; i < HISTORY; i++, at += FRAME_BYTES) {
+            histL[i] = (short) S16.get(pcm, at);
+            histR[i] = (short) S16.get(pcm, at + 2);
+        }
+        held = Math.min(HISTORY, held + n);
+    }
+
+    /** True once a gap has faded all the way out; the rest of it is plain silence. */
+    public boolean isSilent() {
+        return period != 0 && concealed >= fadeEnd;
+    }
+
+    /** Writes {@code len} bytes of concealment for the next lost frame into {@code out}. */
+    public void conceal(byte[] out, int off, int len) {
+        if (period == 0) {
+            begin();
+        } else if (frames < MAX_PERIODS && !isSilent()) {
+            // Swap the template for one a period longer, crossfading over the first overlap of this frame
+            short[] t = oldL; oldL = tplL; tplL = t;
+            t = oldR; oldR = tplR; tplR = t;
+            oldSpan = span;
+            buildTemplate(span + period);
+        }
+        int n = len / FRAME_BYTES;
+        boolean blend = oldSpan > 0;
+        boolean first = frames == 0;
+        // How far the last sample played is from the one the template carries on from
+        int stepL = histL[HISTORY - 1] - histL[HISTORY - period - 1];
+        int stepR = histR[HISTORY - 1] - histR[HISTORY - period - 1];
+        int oldPhase = phase; // the longer template starts a whole number of periods earlier: same phase
+        for (int i = 0, p = off; i < n; i++, p += FRAME_BYTES) {
+            int l = tplL[phase], r = tplR[phase];
+            if (first && i < overlap) {
+                // Carry that offset in and let it die away, so the waveform joins without a step
+                int w = 32768 - ((i + 1) << 15) / (overlap + 1);
+                // Loud or clipped audio can push this past 16 bits; clamp, or the cast flips the sign
+                l = clamp(l + ((stepL * w) >> 15));
+                r = clamp(r + ((stepR * w) >> 15));
+            } else if (blend && i < overlap) {
+                int w = (i << 15) / overlap;
+                l = (oldL[oldPhase] * (32768 - w) + l * w) >> 15;
+                r = (oldR[oldPhase] * (32768 - w) + r * w) >> 15;
+                if (++oldPhase == oldSpan) oldPhase = 0;
+            }
+            int g = gain(concealed + i);
+            S16.set(out, p, (short) ((l * g) >> 15));
+            S16.set(out, p + 2, (short) ((r * g) >> 15));
+            if (++phase == span) phase = 0;
+        }
+        oldSpan = 0;
+        concealed += n;
+        frames++;
+    }
+
+    /**
+     * Crossfades the first real frame after a gap in from the extrapolation,
+     * in place. Does nothing if no frame was concealed.
+     */
+    public void recover(byte[] pcm, int off, int len) {
+        if (period == 0) return;
+        int n = Math.min(overlap, len / FRAME_BYTES);
+        for (int i = 0, p = 0; i < n; i++, p += FRAME_BYTES) {
+            int g = gain(concealed + i);
+            S16.set(tail, p, (short) ((tplL[phase] * g) >> 15));
+            S16.set(tail, p + 2, (short) ((tplR[phase] * g) >> 15));
+            if (++phase == span) phase = 0;
+        }
+        PcmDsp.crossfade(tail, 0, pcm, off, pcm, off, n * FRAME_BYTES, 0, PcmDsp.UNITY);
+        period = 0;
+    }
+
+    /** Forgets the history, e.g. when the stream moves to another song. */
+    public void reset() {
+        held = 0;
+        period = 0;
+        Arrays.fill(histL, (short) 0);
+        Arrays.fill(histR, (short) 0);
+    }
+
+    private void begin() {
+        period = held >= MAX_PERIOD + CORRELATION ? findPeriod() : MIN_PERIOD;
+        overlap = Math.max(MIN_OVERLAP, Math.min(MAX_OVERLAP, period / 4));
+        concealed = 0;
+        frames = 0;
+        oldSpan = 0;
+        buildTemplate(period);
+        phase = 0;
+    }
+
+    /**
+     * The last {@code length} samples of the history, with the last overlap
+     * crossfaded into the samples just before them, so that looping goes on
+     * from the end back to the start without a jump.
+     */
+    private void buildTemplate(int length) {
+        int start = HISTORY - length;
+        System.arraycopy(histL, start, tplL, 0, length);
+        System.arraycopy(histR, start, tplR, 0, length);
+        for (int i = 0; i < overlap; i++) {
+            int w = ((i + 1) << 15) / (overlap + 1);
+            int j = length - overlap + i;
+            int k = start - overlap + i;
+            tplL[j] = (short) ((tplL[j] * (32768 - w) + histL[k] * w) >> 15);
+            tplR[j] = (short) ((tplR[j] * (32768 - w) + histR[k] * w) >> 15);
+        }
+        span = length;
+    }
+
+    /** Lag in [MIN_PERIOD, MAX_PERIOD] at which the history best matches its own last CORRELATION samples. */
+    private int findPeriod() {
+        int ref = HISTORY - CORRELATION;
+        int best = search(ref, MIN_PERIOD, MAX_PERIOD, COARSE_STEP);
+        return search(ref, Math.max(MIN_PERIOD, best - COARSE_STEP + 1), Math.min(MAX_PERIOD, best + COARSE_STEP - 1), 1);
+    }
+
+    private int search(int ref, int from, int to, int step) {
+        int best = from;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int lag = from; lag <= to; lag += step) {
+            long dot = 0, energy = 0;
+            for (int i = 0; i < CORRELATION; i += step) {
+                int a = histL[ref + i] + histR[ref + i];
+                int b = histL[ref - lag + i] + histR[ref - lag + i];
+                dot += (long) a * b;
+                energy += (long) b * b;
+            }
+            double score = energy == 0 ? 0 : dot / Math.sqrt(energy);
+            if (score > bestScore) {
+                bestScore = score;
+                best = lag;
+            }
+        }
+        return best;
+    }
+
+    private static int clamp(int v) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+    }
+
+    /** Q15 level for the sample {@code at} samples into the gap. */
+    private int gain(int at) {
+        if (at <= fadeStart) return 32768;
+        if (at >= fadeEnd) return 0;
+        return (int) (32768L * (fadeEnd - at) / (fadeEnd - fadeStart));
+    }
+}
@@ -0,0 +1,99 @@
+package com.musicstreamer;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * In-place kernels for 16-bit little-endian PCM: gain, gain ramps and a
+ * two-stream crossfade. Gains are Q16 fixed point ({@link #UNITY} = 1.0) so the
+ * inner loops are integer multiply, shift and clamp, with one 16-bit load and
+ * store per sample instead of byte assembly. Results saturate instead of
+ * wrapping, so gains above unity or hot mixes clip rather than crackle.
+ */
+public final class PcmDsp {
+    public static final int UNITY = 1 << 16;
+
+    private static final int CHANNELS = 2;
+    private static final int FRAME_BYTES = CHANNELS * 2;
+    private static final VarHandle S16 =
+            MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private PcmDsp() { }
+
+    /** Converts a linear gain to Q16, clamped to [0, 8]. */
+    public static int gainQ16(double gain) {
+        return (int) Math.round(Math.max(0.0, Math.min(8.0, gain)) * UNITY);
+    }
+
+    /** Multiplies every sample by a constant gain, saturating. */
+    public static void scale(byte[] pcm, int off, int len, int gainQ16) {
+        if (gainQ16 == UNITY) return;
+        int end = off + (len & ~1);
+        for (int i = off; i < end; i += 2) {
+            int s = (short) S16.get(pcm, i);
+            S16.set(pcm, i, clamp((s * (long) gainQ16) >> 16));
+        }
+    }
+
+    /**
+     * Moves the gain linearly from {@code fromQ16} to {@code toQ16} across the
+     * buffer, one step per stereo frame, so a volume change cannot click.
+     */
+    public static void ramp(byte[] pcm, int off, int len, int fromQ16, int toQ16) {
+        if (fromQ16 == toQ16) {
+            scale(pcm, off, len, toQ16);
+            return;
+        }
+        int frames = len / FRAME_BYTES;
+        if (frames == 0) return;
+        long gain = (long) fromQ16 << 16;               // Q32 accumulator keeps the step exact enough
+        long step = (((long) toQ16 << 16) - gain) / frames;
+        int end = off + frames * FRAME_BYTES;
+        for (int i = off; i < end; i += FRAME_BYTES) {
+            long g = gain >> 16;
+            int l = (short) S16.get(pcm, i);
+            int r = (short) S16.get(pcm, i + 2);
+            S16.set(pcm, i,     clamp((l * g) >> 16));
+            S16.set(pcm, i + 2, clamp((r * g) >> 16));
+            gain += step;
+        }
+    }
+
+    /**
+     * Crossfades two streams into {@code out}: {@code a * (1 - w) + b * w}, with the
+     * weight of {@code b} ramping from {@code fromQ16} to {@code toQ16}. {@code out}
+     * may be either input.
+     */
+    public static void crossfade(byte[] a, int aOff, byte[] b, int bOff, byte[] out, int outOff,
+                                 int len, int fromQ16, int toQ16) {
+        int frames = len / FRAME_BYTES;
+        if (frames == 0) return;
+        long weight = (long) fromQ16 << 16;
+        long step = (((long) toQ16 << 16) - weight) / frames;
+        for (int f = 0; f < frames; f++) {
+            long wb = weight >> 16;
+            long wa = UNITY - wb;
+            for (int c = 0; c < FRAME_BYTES; c += 2) {
+                int j = f * FRAME_BYTES + c;
+                int sa = (short) S16.get(a, aOff + j);
+                int sb = (short) S16.get(b, bOff + j);
+                S16.set(out, outOff + j, clamp((sa * wa + sb * wb) >> 16));
+            }
+            weight += step;
+        }
+    }
+
+    /** Sums {@code src} into {@code dst} sample by sample, saturating. */
+    public static void mix(byte[] dst, int dstOff, byte[] src, int srcOff, int len) {
+        int n = len & ~1;
+        for (int j = 0; j < n; j += 2) {
+            int s = (short) S16.get(dst, dstOff + j) + (short) S16.get(src, srcOff + j);
+            S16.set(dst, dstOff + j, clamp(s));
+        }
+    }
+
+    private static short clamp(long v) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+    }
+}
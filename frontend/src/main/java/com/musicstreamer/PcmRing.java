@@ -0,0 +1,173 @@
+package com.musicstreamer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Single-producer/single-consumer PCM ring between the processing thread and
+ * the audio output thread, sized in milliseconds of audio. It is the only way
+ * samples reach the {@link SourceDataLine}: decoded frames and concealment
+ * alike are written here, and the output thread moves them to the line in
+ * pieces no bigger than the line can take without blocking.
+ *
+ * Positions only grow; each side writes its own and reads the other's, so no
+ * locks are needed. A side that has to wait parks and is unparked by the
+ * other. The producer waits for room at most {@code stallMillis}; what still
+ * does not fit after that is dropped and counted as an overrun. An underrun
+ * is counted when the consumer finds the line already played dry, i.e. the
+ * listener heard a gap.
+ */
+public class PcmRing {
+    private final byte[] buffer;
+    private final int capacity;
+    private final int frameBytes;
+    private final int bytesPerSecond;
+    private final long stallNanos;
+
+    private volatile long readPos = 0;  // written by the consumer only
+    private volatile long writePos = 0; // written by the producer only
+
+    private volatile Thread producerWaiting;
+    private volatile Thread consumerWaiting;
+    private volatile boolean closed = false;
+
+    private boolean flowing = false; // consumer only: the line has been fed since the last reset
+    private volatile long underruns = 0;
+    private volatile long overruns = 0;
+
+    public PcmRing(int millis, int bytesPerSecond, int frameBytes, int stallMillis) {
+        int bytes = (int) ((long) bytesPerSecond * millis / 1000);
+        this.capacity = Math.max(frameBytes, bytes - bytes % frameBytes);
+        this.buffer = new byte[capacity];
+        this.frameBytes = frameBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.stallNanos = TimeUnit.MILLISECONDS.toNanos(stallMillis);
+    }
+
+    /**
+     * Copies {@code len} bytes in (whole frames), waiting for the consumer to
+     * make room. Returns the number of bytes taken; less than {@code len} only
+     * after an overrun or {@link #close()}. Producer thread only.
+     */
+    public int write(byte[] src, int off, int len) throws InterruptedException {
+        len -= len % frameBytes; // a stray partial sample would shift every one after it
+        int done = 0;
+        long deadline = 0;
+        while (done < len && !closed) {
+            long w = writePos;
+            int free = capacity - (int) (w - readPos);
+            if (free == 0) {
+                long now = System.nanoTime();
+                if (deadline == 0) {
+                    deadline = now + stallNanos;
+                } else if (now - deadline >= 0) {
+                    overruns++;
+                    return done;
+                }
+                producerWaiting = Thread.currentThread();
+                if (writePos - readPos == capacity) { // re-check after publishing, or a wakeup is lost
+                    LockSupport.parkNanos(this, deadline - now);
+                }
+                producerWaiting = null;
+                if (Thread.interrupted()) throw new InterruptedException();
+                continue;
+            }
+            int n = Math.min(free, len - done);
+            int at = (int) (w % capacity);
+            int first = Math.min(n, capacity - at);
+            System.arraycopy(src, off + done, buffer, at, first);
+            System.arraycopy(src, off + done + first, buffer, 0, n - first);
+            writePos = w + n;
+            done += n;
+            Thread c = consumerWaiting;
+            if (c != null) LockSupport.unpark(c);
+        }
+        return done;
+    }
+
+    /**
+     * Parks until audio is buffered, the timeout passes or the ring is closed.
+     * Returns whether audio is buffered. Consumer thread only.
+     */
+    public boolean awaitData(long timeout, TimeUnit unit) throws InterruptedException {
+        if (writePos != readPos) return true;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        consumerWaiting = Thread.currentThread();
+        try {
+            while (writePos == readPos && !closed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+            return writePos != readPos;
+        } finally {
+            consumerWaiting = null;
+        }
+    }
+
+    /**
+     * Writes up to {@code max} buffered bytes (whole frames) to the line and
+     * returns how many. With {@code max} no larger than the line's
+     * {@code available()} the line does not block. Consumer thread only.
+     */
+    public int drainTo(SourceDataLine line, int max) {
+        long r = readPos;
+        int n = Math.min((int) (writePos - r), max);
+        n -= n % frameBytes;
+        if (n <= 0) return 0;
+        if (flowing && line.available() >= line.getBufferSize()) {
+            underruns++;
+        }
+        int at = (int) (r % capacity);
+        int first = Math.min(n, capacity - at);
+        line.write(buffer, at, first);
+        if (n > first) line.write(buffer, 0, n - first);
+        readPos = r + n;
+        flowing = true;
+        Thread p = producerWaiting;
+        if (p != null) LockSupport.unpark(p);
+        return n;
+    }
+
+    /** Wakes both sides for good; writes are refused until {@link #reset()}. */
+    public void close() {
+        closed = true;
+        Thread p = producerWaiting;
+        if (p != null) LockSupport.unpark(p);
+        Thread c = consumerWaiting;
+        if (c != null) LockSupport.unpark(c);
+    }
+
+    /** Empties the ring and reopens it. Only while neither thread is running. */
+    public void reset() {
+        readPos = 0;
+        writePos = 0;
+        flowing = false;
+        closed = false;
+    }
+
+    public int buffered() {
+        return (int) (writePos - readPos);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public float bufferedMillis() {
+        return buffered() * 1000f / bytesPerSecond;
+    }
+
+    /** Times the line had played everything it was given before more arrived. */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /** Writes cut short because the output did not make room in time. */
+    public long getOverruns() {
+        return overruns;
+    }
+}
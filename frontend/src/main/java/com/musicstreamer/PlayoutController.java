@@ -0,0 +1,208 @@
+package com.musicstreamer;
+
+/**
+ * Decides how much audio to hold back before playing and how fast to play it.
+ *
+ * The receive thread reports every data frame with {@link #onArrival}. From
+ * the frame's media timestamp and its arrival time this keeps the RFC 3550
+ * interarrival jitter and, over the last {@link #WINDOW} frames, each frame's
+ * lateness: its transit time minus the shortest transit in the window, i.e.
+ * how long it was held up on the way. The target playout delay is the 99.5th
+ * percentile of that lateness plus one frame (playback waits for whole
+ * frames), so about one frame in two hundred would arrive after its turn on a
+ * network that keeps behaving as it just did. On a clean network that is a
+ * couple of frames; on a bad one it grows up to {@code maxMillis}.
+ *
+ * The processing thread calls {@link #rate} once per frame with the audio it
+ * holds. Inside a tolerance band around the target the answer is 1; outside
+ * it, a play-out rate a few percent off 1, in proportion to the error, which
+ * {@link WsolaStretcher} applies. The buffer thus drifts onto the target
+ * instead of stalling or skipping. An underrun while frames are still coming
+ * in raises the target by a frame, and that boost decays over half a minute.
+ *
+ * A gap of more than {@link #EPOCH_GAP_NS} between arrivals, or a jump that
+ * large in transit time (the server paused or restarted its clock), starts the
+ * statistics over.
+ */
+public class PlayoutController {
+    private static final int WINDOW = 1024;              // frames of history, ~24 s
+    private static final int WARMUP = 64;                // arrivals before the percentile is trusted
+    private static final int RECOMPUTE_EVERY = 16;       // arrivals between percentile updates
+    private static final double PERCENTILE = 0.995;
+    private static final long EPOCH_GAP_NS = 500_000_000L;
+    private static final long LIVE_NS = 200_000_000L;    // an underrun only counts if frames arrived this recently
+
+    private static final double LEVEL_SMOOTHING = 0.05;  // per frame, ~0.5 s
+    private static final double BAND_FRACTION = 0.2;     // tolerance band, share of the target
+    private static final double MAX_SLOWDOWN = 0.08;
+    private static final double MAX_SPEEDUP = 0.12;
+    private static final double BOOST_DECAY_MS = 30_000; // one frame of underrun boost decays over this
+
+    private final double frameMillis;
+    private final double minMillis;
+    private final double maxMillis;
+    private final double nanosPerSample;
+
+    // Receive thread only
+    private final long[] transits = new long[WINDOW];
+    private final long[] scratch = new long[WINDOW];
+    private int count = 0;
+    private int head = 0;
+    private long lastArrival = 0;
+    private long lastTransit = 0;
+    private double jitterNanos = 0;
+
+    // Published to the processing thread and the UI
+    private volatile double jitterMillis = 0;
+    private volatile double latenessMillis = -1; // percentile of lateness; -1 until WARMUP arrivals
+    private volatile long lastArrivalNanos = 0;
+
+    // Processing thread only
+    private double level = -1;
+    private double boostMillis = 0;
+    private long boostAt = 0;
+    private volatile double targetMillis;
+    private volatile long underruns = 0;
+
+    public PlayoutController(int sampleRate, double frameMillis, double minMillis, double maxMillis) {
+        this.frameMillis = frameMillis;
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis;
+        this.nanosPerSample = 1e9 / sampleRate;
+        this.targetMillis = initialTarget();
+    }
+
+    /** A data frame with media timestamp {@code timestamp} (samples) arrived at {@code now}. Receive thread. */
+    public void onArrival(long timestamp, long now) {
+        long transit = now - (long) (timestamp * nanosPerSample);
+        if (count > 0 && (now - lastArrival > EPOCH_GAP_NS || Math.abs(transit - lastTransit) > EPOCH_GAP_NS)) {
+            count = 0;
+            head = 0;
+            jitterNanos = 0;
+            jitterMillis = 0;
+            latenessMillis = -1;
+        }
+        if (count > 0) {
+            // RFC 3550 6.4.1: J += (|D(i-1,i)| - J) / 16
+            long d = Math.abs(transit - lastTransit);
+            jitterNanos += (d - jitterNanos) / 16;
+            jitterMillis = jitterNanos / 1e6;
+        }
+        lastArrival = now;
+        lastTransit = transit;
+        lastArrivalNanos = now;
+
+        transits[head] = transit;
+        head = (head + 1) % WINDOW;
+        if (count < WINDOW) count++;
+        if (count >= WARMUP && count % RECOMPUTE_EVERY == 0) {
+            latenessMillis = percentileLateness() / 1e6;
+        }
+    }
+
+    private long percentileLateness() {
+        System.arraycopy(transits, 0, scratch, 0, count);
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            min = Math.min(min, scratch[i]);
+        }
+        int k = (int) Math.ceil(PERCENTILE * count) - 1;
+        return select(scratch, count, k) - min;
+    }
+
+    /** k-th smallest of a[0, n), partially reordering a (Hoare's quickselect). */
+    private static long select(long[] a, int n, int k) {
+        int lo = 0, hi = n - 1;
+        while (lo < hi) {
+            long pivot = a[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (a[i] < pivot) i++;
+                while (a[j] > pivot) j--;
+                if (i <= j) {
+                    long t = a[i]; a[i] = a[j]; a[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) hi = j;
+            else if (k >= i) lo = i;
+            else break;
+        }
+        return a[k];
+    }
+
+    /**
+     * Play-out rate for the next frame given the audio held ahead of it, in
+     * milliseconds: above 1 to play faster and shrink the buffer, below 1 to
+     * let it grow. Processing thread.
+     */
+    public double rate(double aheadMillis) {
+        level = level < 0 ? aheadMillis : level + (aheadMillis - level) * LEVEL_SMOOTHING;
+        double target = updateTarget();
+        double error = level - target;
+        double band = Math.max(frameMillis * 0.75, target * BAND_FRACTION);
+        if (Math.abs(error) <= band) {
+            return 1.0;
+        }
+        double beyond = error - Math.copySign(band, error);
+        return 1.0 + Math.max(-MAX_SLOWDOWN, Math.min(MAX_SPEEDUP, beyond / 1000.0));
+    }
+
+    /** Audio to hold before (re)starting playback, in milliseconds. Processing thread. */
+    public double startMillis() {
+        level = -1;
+        return updateTarget();
+    }
+
+    /** The buffer ran dry. Counts it and raises the target if the stream is still live. Processing thread. */
+    public void onUnderrun() {
+        if (System.nanoTime() - lastArrivalNanos > LIVE_NS) {
+            return; // the sender paused; nothing to learn
+        }
+        underruns++;
+        decayBoost();
+        boostMillis = Math.min(boostMillis + frameMillis, maxMillis);
+    }
+
+    private double updateTarget() {
+        decayBoost();
+        double lateness = latenessMillis;
+        double base = lateness < 0 ? initialTarget() : lateness + frameMillis;
+        double target = Math.max(minMillis, Math.min(maxMillis, base + boostMillis));
+        targetMillis = target;
+        return target;
+    }
+
+    private double initialTarget() {
+        return Math.max(minMillis, Math.min(maxMillis, Math.max(3 * frameMillis, 4 * jitterMillis)));
+    }
+
+    private void decayBoost() {
+        long now = System.nanoTime();
+        if (boostMillis > 0 && boostAt != 0) {
+            double elapsedMs = (now - boostAt) / 1e6;
+            boostMillis = Math.max(0, boostMillis - frameMillis * elapsedMs / BOOST_DECAY_MS);
+        }
+        boostAt = now;
+    }
+
+    /** RFC 3550 interarrival jitter, milliseconds. */
+    public double getJitterMillis() {
+        return jitterMillis;
+    }
+
+    /** 99.5th percentile of arrival lateness, milliseconds; -1 while warming up. */
+    public double getLatenessMillis() {
+        return latenessMillis;
+    }
+
+    public double getTargetMillis() {
+        return targetMillis;
+    }
+
+    /** Times playback found nothing to play while frames were still arriving. */
+    public long getUnderruns() {
+        return underruns;
+    }
+}
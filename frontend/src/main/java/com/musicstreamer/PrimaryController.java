@@ -1,10 +1,14 @@
 package com.musicstreamer;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -54,15 +58,77 @@ public class PrimaryController {
 
     private Socket socket;
     private PrintWriter out;
-    private BufferedReader in;
+    private DataInputStream in;
     private AudioStreamReceiver audioReceiver;
     private boolean isConnected = false;
     private boolean isServerConnected = false;
     private ScheduledExecutorService executorService;
     
-    // Playlist tracking for song index mapping
-    private JSONArray currentPlaylist = new JSONArray();
+    // Playlist tracking for song index mapping; both only touched on the FX thread
+    private final List<String> currentPlaylist = new ArrayList<>();
+    private int markedRow = -1; // playlistView row showing "Now Playing"
+    private volatile int jsonPlaylistVersion = 0;
+    private final ControlDecoder controlDecoder = new ControlDecoder(new ControlDecoder.Listener() {
+        @Override
+        public void onPlaybackState(boolean playing, boolean radioActive, float currentTime, float duration, String currentSong) {
+            handleRadioActive(radioActive);
+        }
+
+        @Override
+        public void onPlaylistSnapshot(List<String> titles, int nowPlaying) {
+            handlePlaylist(titles);
+        }
+
+        @Override
+        public void onPlaylistAdd(int index, String title) {
+            Platform.runLater(() -> {
+                currentPlaylist.add(index, title);
+                playlistView.getItems().add(index, "♪ " + title);
+                if (markedRow >= index) markedRow++;
+                markNowPlaying();
+                updatePlaylistCount(currentPlaylist.size());
+            });
+        }
+
+        @Override
+        public void onPlaylistRemove(int index) {
+            Platform.runLater(() -> {
+                currentPlaylist.remove(index);
+                playlistView.getItems().remove(index);
+                if (markedRow == index) markedRow = -1;
+                else if (markedRow > index) markedRow--;
+                markNowPlaying();
+                updatePlaylistCount(currentPlaylist.size());
+            });
+        }
+
+        @Override
+        public void onPlaylistMove(int from, int to) {
+            Platform.runLater(() -> {
+                currentPlaylist.add(to, currentPlaylist.remove(from));
+                playlistView.getItems().add(to, playlistView.getItems().remove(from));
+                if (markedRow == from) markedRow = to;
+                else {
+                    if (markedRow > from) markedRow--;
+                    if (markedRow >= to) markedRow++;
+                }
+                markNowPlaying();
+            });
+        }
+
+        @Override
+        public void onNowPlaying(int index) {
+            // The "Now Playing" row follows the song index in the audio packets instead
+        }
+
+        @Override
+        public void onResync() {
+            // A delta was missed; the server answers with the ops since our version, or a snapshot
+            out.println(statusCommand());
+        }
+    });
     private volatile int lastKnownSongIndex = -1;
+    private volatile boolean radioActive = false;
 
     @FXML
     public void initialize() {
@@ -78,6 +144,8 @@ public class PrimaryController {
         
         // Setup audio receiver
         audioReceiver = new AudioStreamReceiver(5555);
+        audioReceiver.setMulticastSilentCallback(this::handleMulticastSilence);
+        audioReceiver.setNackSender(this::sendNack);
         
         // Add volume slider listener for local volume control
         volumeSlider.valueProperty().addListener((observable, oldValue, newValue) -> {
@@ -136,7 +204,7 @@ public class PrimaryController {
         try {
             socket = new Socket("localhost", 9090);
             out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
             
             isServerConnected = true;
             Platform.runLater(() -> {
@@ -145,8 +213,15 @@ public class PrimaryController {
             });
             updateConnectionStatus(ConnectionState.CONNECTED);
             
-            // Subscribe to UDP stream
-            out.println("SUBSCRIBE 5555");
+            // Subscribe to UDP stream; the server answers with STREAM_CONFIG
+            // -Dmusicstreamer.station=<id> tunes into another station; the server's default otherwise
+            String station = System.getProperty("musicstreamer.station");
+            // Binary control frames with delta updates unless -Dmusicstreamer.control=json
+            if (isBinaryControl()) {
+                out.println("PROTO " + ControlDecoder.VERSION);
+            }
+            out.println("SUBSCRIBE 5555 multicast=yes codecs=" + AudioCodec.offer()
+                    + (station != null && !station.isEmpty() ? " station=" + station : ""));
             
             // Start listening for server messages
             startListening();
@@ -165,7 +240,7 @@ public class PrimaryController {
         new Thread(() -> {
             try {
                 String line;
-                while ((line = in.readLine()) != null) {
+                while ((line = controlDecoder.next(in)) != null) {
                     handleServerMessage(line);
                 }
             } catch (IOException e) {
@@ -222,9 +297,19 @@ public class PrimaryController {
             nowPlayingLabel.setText("Buffering...");
             
             // Request current playing info
-            out.println("STATUS");
+            out.println(statusCommand());
         }
     }
+
+    /* STATUS names the playlist version held, so an unchanged playlist is not sent again */
+    private String statusCommand() {
+        int version = isBinaryControl() ? controlDecoder.getPlaylistVersion() : jsonPlaylistVersion;
+        return "STATUS " + version;
+    }
+
+    private boolean isBinaryControl() {
+        return !"json".equalsIgnoreCase(System.getProperty("musicstreamer.control"));
+    }
     
     private void handleVolumeChange(double volume) {
         // Local volume control (not server-side)
@@ -256,42 +341,61 @@ public class PrimaryController {
     
     private void updateNowPlayingFromSongIndex(int songIndex) {
         Platform.runLater(() -> {
-            try {
-                if (songIndex >= 0 && songIndex < currentPlaylist.length()) {
-                    JSONObject song = currentPlaylist.getJSONObject(songIndex);
-                    String songTitle = song.getString("title");
-                    nowPlayingLabel.setText("♫ " + songTitle);
-                    System.out.println("Updated now playing from packet song index: " + songTitle);
-                    
-                    // Also update the playlist display to show the correct "Now Playing" indicator
-                    refreshPlaylistDisplay();
-                } else {
-                    nowPlayingLabel.setText("Playing unknown song (index: " + songIndex + ")");
-                }
-            } catch (JSONException e) {
-                System.err.println("Error updating now playing from song index: " + e.getMessage());
+            if (songIndex >= 0 && songIndex < currentPlaylist.size()) {
+                String songTitle = currentPlaylist.get(songIndex);
+                nowPlayingLabel.setText("♫ " + songTitle);
+                System.out.println("Updated now playing from packet song index: " + songTitle);
+                
+                // Also move the "Now Playing" indicator; only the two affected rows change
+                markNowPlaying();
+            } else {
+                nowPlayingLabel.setText("Playing unknown song (index: " + songIndex + ")");
             }
         });
     }
     
     private void refreshPlaylistDisplay() {
-        playlistView.getItems().clear();
-        for (int i = 0; i < currentPlaylist.length(); i++) {
-            try {
-                JSONObject song = currentPlaylist.getJSONObject(i);
-                String songTitle = song.getString("title");
-                
-                // Show current playing song based on actual song index from packets
-                if (isConnected && i == lastKnownSongIndex) {
-                    playlistView.getItems().add("♫ " + songTitle + " • Now Playing");
-                } else {
-                    playlistView.getItems().add("♪ " + songTitle);
-                }
-            } catch (JSONException e) {
-                System.err.println("Error processing playlist item: " + e.getMessage());
-            }
+        List<String> items = new ArrayList<>(currentPlaylist.size());
+        for (String songTitle : currentPlaylist) {
+            items.add("♪ " + songTitle);
+        }
+        playlistView.getItems().setAll(items);
+        markedRow = -1;
+        markNowPlaying();
+        updatePlaylistCount(currentPlaylist.size());
+    }
+
+    /* Show current playing song based on actual song index from packets */
+    private void markNowPlaying() {
+        int target = isConnected && lastKnownSongIndex < currentPlaylist.size() ? lastKnownSongIndex : -1;
+        if (target == markedRow) {
+            return;
+        }
+        if (markedRow >= 0 && markedRow < currentPlaylist.size()) {
+            playlistView.getItems().set(markedRow, "♪ " + currentPlaylist.get(markedRow));
+        }
+        if (target >= 0) {
+            playlistView.getItems().set(target, "♫ " + currentPlaylist.get(target) + " • Now Playing");
+        }
+        markedRow = target;
+    }
+
+    /* Full snapshot: the only path that rebuilds the whole list */
+    private void handlePlaylist(List<String> titles) {
+        Platform.runLater(() -> {
+            currentPlaylist.clear();
+            currentPlaylist.addAll(titles); // Store for song index mapping
+            refreshPlaylistDisplay();
+        });
+    }
+
+    private void handleRadioActive(boolean radioActive) {
+        this.radioActive = radioActive;
+        if (!radioActive && isConnected) {
+            Platform.runLater(() -> {
+                nowPlayingLabel.setText("Radio is currently offline");
+            });
         }
-        updatePlaylistCount(currentPlaylist.length());
     }
 
     private void handleServerMessage(String jsonResponse) {
@@ -303,23 +407,39 @@ public class PrimaryController {
                 
                 // Update playlist
                 JSONArray queue = payload.getJSONArray("queue");
-                currentPlaylist = queue; // Store for song index mapping
-                Platform.runLater(() -> {
-                    refreshPlaylistDisplay();
-                });
+                List<String> titles = new ArrayList<>(queue.length());
+                for (int i = 0; i < queue.length(); i++) {
+                    titles.add(queue.getJSONObject(i).getString("title"));
+                }
+                jsonPlaylistVersion = payload.optInt("version");
+                handlePlaylist(titles);
             } else if (json.getString("type").equals("PLAYBACK_STATE")) {
                 JSONObject payload = json.getJSONObject("payload");
                 
                 // Only update radio status - don't update nowPlayingLabel from server broadcasts
                 // The nowPlayingLabel is now controlled by packet-based song index updates
                 if (payload.has("radioActive")) {
-                    boolean radioActive = payload.getBoolean("radioActive");
-                    if (!radioActive && isConnected) {
-                        Platform.runLater(() -> {
-                            nowPlayingLabel.setText("Radio is currently offline");
-                        });
-                    }
+                    handleRadioActive(payload.getBoolean("radioActive"));
                 }
+            } else if (json.getString("type").equals("STREAM_CONFIG")) {
+                handleStreamConfig(json.getJSONObject("payload"));
+            } else if (json.getString("type").equals("DOWNLOAD_PROGRESS")) {
+                // Progress of a song this client asked for: queued, download %, then probe/decode/index
+                JSONObject payload = json.getJSONObject("payload");
+                String stage = payload.optString("stage");
+                String text;
+                if (stage.equals("queued")) {
+                    text = "⏳ Queued";
+                } else if (stage.equals("download")) {
+                    text = String.format("⬇ Downloading %.0f%%", payload.optDouble("percent", 0));
+                } else {
+                    text = "⚙ Processing (" + stage + ")";
+                }
+                Platform.runLater(() -> {
+                    connectionStatusLabel.setText(text);
+                    connectionStatusLabel.getStyleClass().removeAll("status-connected", "status-disconnected", "status-connecting");
+                    connectionStatusLabel.getStyleClass().add("status-connecting");
+                });
             } else if (json.getString("type").equals("DOWNLOAD_COMPLETE")) {
                 // Success message
                 Platform.runLater(() -> {
@@ -337,9 +457,10 @@ public class PrimaryController {
                     }, 2, java.util.concurrent.TimeUnit.SECONDS);
                 });
             } else if (json.getString("type").equals("DOWNLOAD_ERROR")) {
-                // Error adding song
+                // Error adding song; the server says why (queue full, download failed, ...)
+                String reason = json.getJSONObject("payload").optString("reason", "");
                 Platform.runLater(() -> {
-                    connectionStatusLabel.setText("✗ Failed to add song");
+                    connectionStatusLabel.setText(reason.isEmpty() ? "✗ Failed to add song" : "✗ " + reason);
                     connectionStatusLabel.getStyleClass().removeAll("status-connected", "status-disconnected", "status-connecting");
                     connectionStatusLabel.getStyleClass().add("status-disconnected");
                     
@@ -359,6 +480,37 @@ public class PrimaryController {
         }
     }
     
+    private void handleStreamConfig(JSONObject payload) {
+        if ("multicast".equals(payload.optString("transport"))) {
+            try {
+                InetAddress group = InetAddress.getByName(payload.getString("group"));
+                audioReceiver.useMulticast(group, payload.getInt("port"));
+            } catch (UnknownHostException e) {
+                System.err.println("Invalid multicast group, staying on unicast: " + e.getMessage());
+                out.println("UNICAST");
+            }
+        } else {
+            audioReceiver.useUnicast();
+        }
+    }
+
+    private void handleMulticastSilence() {
+        // Silence is expected while the radio is off air; only fall back when audio should be flowing
+        if (radioActive && audioReceiver.isMulticast()) {
+            System.out.println("No multicast traffic received, falling back to unicast.");
+            out.println("UNICAST");
+            audioReceiver.useUnicast();
+        }
+    }
+
+    private void sendNack(String nack) {
+        // Called from the receiver's processing thread; PrintWriter serialises lines
+        PrintWriter writer = out;
+        if (writer != null) {
+            writer.println(nack);
+        }
+    }
+
     public void shutdown() {
         if (audioReceiver != null) {
             audioReceiver.stop();
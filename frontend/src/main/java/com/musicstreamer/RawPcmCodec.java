@@ -0,0 +1,24 @@
+package com.musicstreamer;
+
+/**
+ * Codec id 0: the payload already is s16le stereo PCM.
+ */
+public class RawPcmCodec implements AudioCodec {
+
+    @Override
+    public int id() {
+        return 0;
+    }
+
+    @Override
+    public String name() {
+        return "pcm";
+    }
+
+    @Override
+    public int decode(byte[] in, int off, int len, byte[] out) {
+        if (len > out.length) return -1;
+        System.arraycopy(in, off, out, 0, len);
+        return len;
+    }
+}
@@ -0,0 +1,186 @@
+package com.musicstreamer;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * WSOLA time-scale modification for 16-bit stereo PCM: plays audio a few
+ * percent faster or slower without changing its pitch, so the playout buffer
+ * can be steered without stalls or skips.
+ *
+ * Output is made in hops of {@link #HOP} samples. Each hop crossfades from the
+ * natural continuation of the previous segment into a segment picked within
+ * {@link #SEEK} samples of where the analysis position has got to; the
+ * analysis position advances by {@code HOP * rate} per hop. The segment picked
+ * is the one whose start correlates best with the continuation, so the seam
+ * falls where the waveforms line up. At rate 1 the best segment is the
+ * continuation itself and the crossfade is the identity.
+ *
+ * Audio passes straight through while the rate is 1. The stretcher keeps
+ * about 26 ms of input while it works ({@link #pendingMillis()}) and hands
+ * that back unchanged once the rate returns to 1. Only used from the
+ * processing thread.
+ */
+public class WsolaStretcher {
+    private static final int HOP = 512;             // output samples per step, ~11.6 ms
+    private static final int SEEK = 128;            // search radius around the analysis position
+    private static final int CORRELATION_STEP = 2;  // correlate every other sample of the L+R mix
+    private static final int CAPACITY = 16384;      // input samples held, per channel
+
+    private static final int FRAME_BYTES = 4;
+    private static final VarHandle S16 =
+            MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final int[] FADE_IN = new int[HOP]; // raised cosine, Q15
+    static {
+        for (int i = 0; i < HOP; i++) {
+            FADE_IN[i] = (int) Math.round(32768 * (0.5 - 0.5 * Math.cos(Math.PI * (i + 0.5) / HOP)));
+        }
+    }
+
+    private final int sampleRate;
+    private final short[] left = new short[CAPACITY];
+    private final short[] right = new short[CAPACITY];
+    private final byte[] out = new byte[HOP * FRAME_BYTES];
+    private int end = 0;          // samples held
+    private boolean active = false;
+    private double analysis = 0;  // where the next segment should come from
+    private int continuation = 0; // where the previous segment would naturally go on
+
+    private long stretchedHops = 0;
+
+    public WsolaStretcher(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Plays {@code len} bytes of PCM into {@code ring} at {@code rate} (1.05 =
+     * 5% faster). Blocks while the ring is full.
+     */
+    public void process(byte[] pcm, int off, int len, double rate, PcmRing ring) throws InterruptedException {
+        if (!active) {
+            if (rate == 1.0) {
+                ring.write(pcm, off, len);
+                return;
+            }
+            active = true;
+            end = 0;
+            analysis = 0;
+            continuation = 0;
+        }
+        append(pcm, off, len);
+        if (rate == 1.0) {
+            flush(ring);
+            return;
+        }
+        while (step(rate, ring)) {
+            stretchedHops++;
+        }
+    }
+
+    /** Plays whatever is held unchanged, e.g. before the buffer runs dry. */
+    public void drain(PcmRing ring) throws InterruptedException {
+        if (active) {
+            flush(ring);
+        }
+    }
+
+    /** Drops whatever is held, e.g. when the stream jumps. */
+    public void reset() {
+        active = false;
+        end = 0;
+    }
+
+    /** Input held and not yet played, in milliseconds. */
+    public double pendingMillis() {
+        return active ? (end - continuation) * 1000.0 / sampleRate : 0;
+    }
+
+    /** Hops played at a rate other than 1. */
+    public long getStretchedHops() {
+        return stretchedHops;
+    }
+
+    private void append(byte[] pcm, int off, int len) {
+        int samples = len / FRAME_BYTES;
+        if (end + samples > CAPACITY) {
+            compact();
+        }
+        samples = Math.min(samples, CAPACITY - end); // more than CAPACITY at once does not happen with 4 KB frames
+        for (int i = 0, p = off; i < samples; i++, p += FRAME_BYTES) {
+            left[end + i] = (short) S16.get(pcm, p);
+            right[end + i] = (short) S16.get(pcm, p + 2);
+        }
+        end += samples;
+    }
+
+    /** Moves the samples still needed to the front. */
+    private void compact() {
+        int keep = Math.max(0, Math.min(continuation, (int) analysis - SEEK));
+        System.arraycopy(left, keep, left, 0, end - keep);
+        System.arraycopy(right, keep, right, 0, end - keep);
+        end -= keep;
+        continuation -= keep;
+        analysis -= keep;
+    }
+
+    /** One output hop, if enough input is held for it. */
+    private boolean step(double rate, PcmRing ring) throws InterruptedException {
+        int nominal = (int) Math.round(analysis);
+        if (nominal + SEEK + HOP > end || continuation + HOP > end) {
+            return false;
+        }
+        int from = Math.max(0, nominal - SEEK);
+        int segment = bestMatch(from, nominal + SEEK);
+
+        for (int i = 0, p = 0; i < HOP; i++, p += FRAME_BYTES) {
+            int w = FADE_IN[i];
+            int c = continuation + i, s = segment + i;
+            S16.set(out, p, (short) ((left[c] * (32768 - w) + left[s] * w) >> 15));
+            S16.set(out, p + 2, (short) ((right[c] * (32768 - w) + right[s] * w) >> 15));
+        }
+        ring.write(out, 0, out.length);
+
+        continuation = segment + HOP;
+        analysis += HOP * rate;
+        return true;
+    }
+
+    /** Start in [from, to] whose first HOP samples best match those at the continuation. */
+    private int bestMatch(int from, int to) {
+        int best = Math.max(from, Math.min(to, (int) Math.round(analysis)));
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int s = from; s <= to; s++) {
+            long dot = 0, energy = 0;
+            for (int i = 0; i < HOP; i += CORRELATION_STEP) {
+                int ref = left[continuation + i] + right[continuation + i];
+                int cand = left[s + i] + right[s + i];
+                dot += (long) ref * cand;
+                energy += (long) cand * cand;
+            }
+            if (energy == 0) continue;
+            double score = dot / Math.sqrt(energy);
+            if (score > bestScore) {
+                bestScore = score;
+                best = s;
+            }
+        }
+        return best;
+    }
+
+    /** Plays the held input from the continuation on unchanged and goes back to passing audio through. */
+    private void flush(PcmRing ring) throws InterruptedException {
+        for (int at = continuation; at < end; ) {
+            int n = Math.min(HOP, end - at);
+            for (int i = 0, p = 0; i < n; i++, p += FRAME_BYTES) {
+                S16.set(out, p, left[at + i]);
+                S16.set(out, p + 2, right[at + i]);
+            }
+            ring.write(out, 0, n * FRAME_BYTES);
+            at += n;
+        }
+        active = false;
+        end = 0;
+    }
+}